@@ -0,0 +1,266 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.querying.Request;
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexConfigurable;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.MetaIndex;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs a batch of queries concurrently, one task per query, on virtual threads when the JVM has them and on a
+ * pool of one thread per core otherwise, and writes their results in the order of the query file.
+ * <p>
+ * The postings of a query are read with one of eps.batch.readers readers, one per core by default, each an
+ * instance of the index with its own files, as the posting files of an index are not safe to read from
+ * several threads; a query waits for a free reader, which bounds the number of open posting readers. The
+ * postings are then scored in memory by a clone of the model, without a reader. The collection statistics
+ * are computed before the first query and shared by all of them. At most eps.batch.window queries are in
+ * flight or waiting to be written, 1024 by default, which bounds the memory of the results. When the
+ * {@link ResultCache} is enabled, the results of a query already searched are returned from it.
+ * <p>
+ * Usage: BatchExecutor queries [k]
+ * <p>
+ * The model is that of the property trec.model, and its results are printed in the TREC format.
+ *
+ * @author Aldo Lipani
+ */
+public class BatchExecutor implements AutoCloseable {
+
+    private static final int READERS = Integer.parseInt(System.getProperty("eps.batch.readers",
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+    private static final int WINDOW = Integer.parseInt(System.getProperty("eps.batch.window", "1024"));
+
+    private final Index index;
+    private final WeightingModel model;
+    private final Request rq;
+    private final CollectionStatistics cs;
+    private final BlockingQueue<Reader> readers;
+    private final ExecutorService executor;
+    private final ResultCache cache;
+
+    /**
+     * @param index   the index, which is also the first reader
+     * @param model   the model, cloned for every query
+     * @param readers the number of readers, more than one only for an index on disk
+     */
+    public BatchExecutor(Index index, WeightingModel model, int readers) throws IOException {
+        this.index = index;
+        this.model = model;
+        this.rq = new Request();
+        this.rq.setIndex(index);
+        this.cs = index.getCollectionStatistics();
+        // the statistics are computed, and the index of the model, which its clones keep, set before any query runs
+        EPsStatistics.get(index);
+        if (model instanceof IndexConfigurable)
+            ((IndexConfigurable) model).setIndex(index);
+
+        if (!(index instanceof IndexOnDisk))
+            readers = 1;
+        this.readers = new ArrayBlockingQueue<>(readers);
+        this.readers.add(new Reader(index));
+        for (int i = 1; i < readers; i++) {
+            IndexOnDisk reader = Index.createIndex(((IndexOnDisk) index).getPath(), ((IndexOnDisk) index).getPrefix());
+            if (reader == null)
+                throw new IOException(Index.getLastIndexLoadError());
+            this.readers.add(new Reader(reader));
+        }
+        this.executor = newExecutor();
+        if (ResultCache.ENABLED) {
+            this.cache = new ResultCache(index, ResultCache.BUDGET);
+            if (ResultCache.FILE != null)
+                this.cache.load(new File(ResultCache.FILE));
+        } else {
+            this.cache = null;
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BatchExecutor queries [k]");
+            System.exit(1);
+        }
+        IndexOnDisk index = Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        WeightingModel model = Models.fromProperties();
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        Map<String, String[]> queries = Queries.read(args[0]);
+
+        long start = System.nanoTime();
+        PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(System.out), 1 << 16));
+        try (BatchExecutor executor = new BatchExecutor(index, model, READERS)) {
+            executor.run(queries, k, WINDOW, out);
+        }
+        out.flush();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(queries.size() + " queries in " + seconds + " s, " + queries.size() / seconds + " queries/s");
+        index.close();
+    }
+
+    /**
+     * Runs the queries and writes their k best documents to out in the TREC format, in the order of the
+     * queries, as soon as the results of a query and of all the queries before it are ready.
+     *
+     * @param window the maximum number of queries in flight or waiting to be written
+     * @throws IOException if a query fails, in which case the queries in flight are cancelled
+     */
+    public void run(Map<String, String[]> queries, int k, int window, Writer out) throws IOException {
+        MetaIndex meta = index.getMetaIndex();
+        String info = model.getInfo();
+        ArrayDeque<Future<Result>> pending = new ArrayDeque<>(window);
+        try {
+            for (Map.Entry<String, String[]> q : queries.entrySet()) {
+                if (pending.size() == window)
+                    write(pending.poll(), meta, info, out);
+                String qid = q.getKey();
+                String[] terms = q.getValue();
+                pending.add(executor.submit(() -> search(qid, terms, k)));
+            }
+            while (!pending.isEmpty())
+                write(pending.poll(), meta, info, out);
+        } finally {
+            for (Future<Result> f : pending)
+                f.cancel(true);
+        }
+    }
+
+    /**
+     * Returns the k best documents for the query terms.
+     */
+    public Result search(String qid, String[] terms, int k) throws IOException {
+        long start = EPsMetrics.ENABLED ? System.nanoTime() : 0L;
+        String info = null;
+        EPsStatistics statistics = null;
+        String overrides = null;
+        if (cache != null) {
+            info = model.getInfo();
+            statistics = EPsStatistics.get(index);
+            overrides = ResultCache.getOverrides();
+            Result res = cache.get(info, terms, k, qid);
+            if (res != null)
+                return res;
+        }
+        QueryPostings qp;
+        Reader reader = takeReader();
+        try {
+            qp = QueryPostings.load(reader.index, reader.documentStatistics, qid, terms);
+        } finally {
+            readers.add(reader);
+        }
+        WeightingModel m = model.clone();
+        m.setRequest(rq);
+        m.setCollectionStatistics(cs);
+        double[] accumulators = new double[qp.candidates.length];
+        qp.score(m, accumulators, new double[qp.getMaxNumberOfPostings()]);
+
+        TopK top = new TopK(k);
+        for (int i = 0; i < accumulators.length; i++)
+            top.add(qp.candidates[i], accumulators[i]);
+        Result res = new Result(qid, top.size());
+        top.drain(res.docIds, res.scores);
+        if (cache != null)
+            cache.put(info, terms, k, res, statistics, overrides);
+        if (EPsMetrics.ENABLED) {
+            long postings = 0;
+            for (int t = 0; t < qp.terms.length; t++)
+                postings += qp.getNumberOfPostings(t);
+            EPsMetrics.recordQuery(postings, System.nanoTime() - start);
+        }
+        return res;
+    }
+
+    private Reader takeReader() throws IOException {
+        try {
+            return readers.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a reader", e);
+        }
+    }
+
+    private static void write(Future<Result> future, MetaIndex meta, String info, Writer out) throws IOException {
+        Result res;
+        try {
+            res = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a query", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+        for (int i = 0; i < res.docIds.length; i++)
+            out.write(res.qid + " Q0 " + meta.getItem("docno", res.docIds[i]) + " " + i + " " + res.scores[i] + " " + info + "\n");
+    }
+
+    /**
+     * Returns an executor starting a virtual thread per task if the JVM has virtual threads, found by
+     * reflection so that the code still runs on Java 8, or a pool of one thread per core otherwise.
+     */
+    private static ExecutorService newExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        }
+    }
+
+    /**
+     * Shuts the executor down, saves the result cache if it has a file, and closes the readers opened by this
+     * executor, not the index.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        if (cache != null && ResultCache.FILE != null)
+            cache.save(new File(ResultCache.FILE));
+        for (Reader reader : readers)
+            if (reader.index != index)
+                reader.index.close();
+    }
+
+    /**
+     * The results of a query, best first.
+     */
+    public static class Result {
+
+        public final String qid;
+        public final int[] docIds;
+        public final double[] scores;
+
+        Result(String qid, int n) {
+            this.qid = qid;
+            this.docIds = new int[n];
+            this.scores = new double[n];
+        }
+    }
+
+    private static class Reader {
+
+        final Index index;
+        final DocumentStatistics documentStatistics;
+
+        Reader(Index index) throws IOException {
+            this.index = index;
+            this.documentStatistics = DocumentStatistics.forIndex(index);
+        }
+    }
+}
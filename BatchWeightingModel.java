@@ -0,0 +1,21 @@
+package at.ac.tuwien.ifs;
+
+/**
+ * A weighting model that scores blocks of postings of the prepared query term given as parallel primitive arrays.
+ *
+ * @author Aldo Lipani
+ */
+public interface BatchWeightingModel {
+
+    /**
+     * Scores the first n postings of the arrays into scores, without allocating.
+     *
+     * @param docIds the document ids
+     * @param tfd    the frequencies of the term in the documents
+     * @param l_d    the lengths of the documents
+     * @param nT_d   the numbers of unique terms of the documents, as read from their {@link DocumentStatistics}
+     * @param n      the number of postings
+     * @param scores the scores, written by the model
+     */
+    void score(int[] docIds, int[] tfd, int[] l_d, double[] nT_d, int n, double[] scores);
+}
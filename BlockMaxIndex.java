@@ -0,0 +1,158 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * The block-max metadata of the posting lists of an index, read from a memory-mapped file written by
+ * {@link BlockMaxIndexBuilder}. The postings of every term are split in blocks of a fixed number of postings,
+ * and for each block, and for the whole list, the file holds the maximum tf, the minimum and maximum document
+ * length and the minimum and maximum verboseness, from which a {@link BoundedWeightingModel} bounds the scores.
+ * <p>
+ * After a fixed header, with the numbers of documents and of tokens of the index it was built from, which tell a
+ * stale file apart, the file holds a record per term id, the index of its first block, its number of blocks and
+ * the statistics of its list, then a record per block, the id of its last document and its statistics.
+ *
+ * @author Aldo Lipani
+ */
+public class BlockMaxIndex {
+
+    static final String SUFFIX = ".blockmax";
+
+    static final int MAGIC = 0x4550424D;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 32;
+    static final int TERM_SIZE = 32;
+    static final int BLOCK_SIZE = 24;
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final int blockSize;
+    private final int nT;
+    private final int nD;
+    private final long numberOfTokens;
+
+    private final MappedByteBuffer[] segments;
+
+    public BlockMaxIndex(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, 1L << SEGMENT_SHIFT));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        if (segments.length == 0 || segments[0].getInt(0) != MAGIC || segments[0].getInt(4) != VERSION)
+            throw new IOException("Not a block-max file of version " + VERSION + ": " + file);
+        blockSize = segments[0].getInt(8);
+        nT = segments[0].getInt(12);
+        nD = segments[0].getInt(16);
+        numberOfTokens = segments[0].getLong(24);
+        long size = 0L;
+        for (MappedByteBuffer segment : segments)
+            size += segment.capacity();
+        if (size < getBlockOffset(0, nT))
+            throw new IOException("Truncated block-max file: " + file);
+    }
+
+    /**
+     * Returns the block-max metadata of the index, or null if it has none. Metadata built from an index with
+     * other numbers of documents, tokens or terms is stale, and is ignored with a warning.
+     */
+    public static BlockMaxIndex forIndex(Index index) throws IOException {
+        if (index instanceof IndexOnDisk) {
+            File file = getFile((IndexOnDisk) index);
+            if (file.exists()) {
+                BlockMaxIndex blockMax = new BlockMaxIndex(file);
+                if (blockMax.matches(index))
+                    return blockMax;
+                System.err.println("Ignoring stale block-max metadata " + file + ", rebuild them with BlockMaxIndexBuilder");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the file was built from an index with the same numbers of documents, tokens and terms as
+     * this one.
+     */
+    boolean matches(Index index) {
+        CollectionStatistics cs = index.getCollectionStatistics();
+        return nD == cs.getNumberOfDocuments() && numberOfTokens == cs.getNumberOfTokens()
+                && nT == cs.getNumberOfUniqueTerms();
+    }
+
+    static File getFile(IndexOnDisk index) {
+        return new File(index.getPath(), index.getPrefix() + SUFFIX);
+    }
+
+    static long getTermOffset(int termId) {
+        return HEADER_SIZE + (long) TERM_SIZE * termId;
+    }
+
+    static long getBlockOffset(long block, int nT) {
+        return getTermOffset(nT) + BLOCK_SIZE * block;
+    }
+
+    /**
+     * Returns the number of postings of a block, but the last of a list.
+     */
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public long getFirstBlock(int termId) {
+        return getLong(getTermOffset(termId));
+    }
+
+    public int getNumberOfBlocks(int termId) {
+        return getInt(getTermOffset(termId) + 8);
+    }
+
+    public int getLastDocId(long block) {
+        return getInt(getBlockOffset(block, nT));
+    }
+
+    /**
+     * Returns the upper bound of the scores of the postings of the term, the model being prepared for it.
+     */
+    public double getUpperBound(BoundedWeightingModel model, int termId) {
+        return getUpperBound(model, getTermOffset(termId) + 12);
+    }
+
+    /**
+     * Returns the upper bound of the scores of the postings of a block, the model being prepared for its term.
+     */
+    public double getBlockUpperBound(BoundedWeightingModel model, long block) {
+        return getUpperBound(model, getBlockOffset(block, nT) + 4);
+    }
+
+    private double getUpperBound(BoundedWeightingModel model, long position) {
+        return model.getUpperBound(getInt(position), getInt(position + 4), getInt(position + 8),
+                getFloat(position + 12), getFloat(position + 16));
+    }
+
+    private int getInt(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].getInt((int) (position & SEGMENT_MASK));
+    }
+
+    private long getLong(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+    }
+
+    private float getFloat(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].getFloat((int) (position & SEGMENT_MASK));
+    }
+}
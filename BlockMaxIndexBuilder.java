@@ -0,0 +1,175 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.Lexicon;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.PostingIndex;
+import org.terrier.structures.postings.IterablePosting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes the block-max metadata of an index, read by {@link BlockMaxIndex}. The size of the blocks is set by
+ * the property eps.blockmax.size, 128 postings by default.
+ * <p>
+ * Usage: BlockMaxIndexBuilder [path prefix]
+ *
+ * @author Aldo Lipani
+ */
+public class BlockMaxIndexBuilder {
+
+    private static final int SIZE = Integer.parseInt(System.getProperty("eps.blockmax.size", "128"));
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public static void main(String[] args) throws IOException {
+        IndexOnDisk index = args.length == 2 ? Index.createIndex(args[0], args[1]) : Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        File file = BlockMaxIndex.getFile(index);
+        build(index, file, SIZE);
+        index.close();
+        System.err.println("Block-max metadata written to " + file);
+    }
+
+    public static void build(Index index, File file, int blockSize) throws IOException {
+        Lexicon<String> lex = index.getLexicon();
+        PostingIndex<?> inv = index.getInvertedIndex();
+        DocumentStatistics ds = DocumentStatistics.forIndex(index);
+        int nT = lex.numberOfEntries();
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(BlockMaxIndex.getTermOffset(nT));
+
+            ByteBuffer header = ByteBuffer.allocate(BlockMaxIndex.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(BlockMaxIndex.MAGIC);
+            header.putInt(BlockMaxIndex.VERSION);
+            header.putInt(blockSize);
+            header.putInt(nT);
+            header.putInt(index.getCollectionStatistics().getNumberOfDocuments());
+            header.putInt(0);
+            header.putLong(index.getCollectionStatistics().getNumberOfTokens());
+            write(channel, header, 0);
+
+            ByteBuffer term = ByteBuffer.allocate(BlockMaxIndex.TERM_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            ByteBuffer blocks = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            long position = BlockMaxIndex.getBlockOffset(0, nT);
+            long block = 0;
+            Block list = new Block();
+            Block current = new Block();
+            for (int i = 0; i < nT; i++) {
+                LexiconEntry le = lex.getIthLexiconEntry(i).getValue();
+                long first = block;
+                list.reset();
+                current.reset();
+                IterablePosting ip = inv.getPostings(le);
+                while (ip.next() != IterablePosting.EOL) {
+                    int docId = ip.getId();
+                    int l_d = ip.getDocumentLength();
+                    double v = l_d / ds.getNumberOfUniqueTerms(docId);
+                    current.add(docId, ip.getFrequency(), l_d, v);
+                    if (current.size == blockSize) {
+                        list.add(current);
+                        current.write(blocks);
+                        block++;
+                        current.reset();
+                        if (blocks.remaining() < BlockMaxIndex.BLOCK_SIZE)
+                            position += write(channel, blocks, position);
+                    }
+                }
+                ip.close();
+                if (current.size > 0) {
+                    list.add(current);
+                    current.write(blocks);
+                    block++;
+                    if (blocks.remaining() < BlockMaxIndex.BLOCK_SIZE)
+                        position += write(channel, blocks, position);
+                }
+
+                term.putLong(first);
+                term.putInt((int) (block - first));
+                list.putStatistics(term);
+                write(channel, term, BlockMaxIndex.getTermOffset(le.getTermId()));
+            }
+            write(channel, blocks, position);
+        }
+    }
+
+    private static int write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int n = buffer.remaining();
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        buffer.clear();
+        return n;
+    }
+
+    /**
+     * The statistics of a block of postings, or of a list. The verboseness is rounded outwards to floats, so
+     * that the bounds computed from them still hold.
+     */
+    private static class Block {
+
+        int size;
+        int lastDocId;
+        int maxTfd;
+        int minL_d;
+        int maxL_d;
+        double minV_d;
+        double maxV_d;
+
+        void reset() {
+            size = 0;
+            lastDocId = -1;
+            maxTfd = 0;
+            minL_d = Integer.MAX_VALUE;
+            maxL_d = 0;
+            minV_d = Double.POSITIVE_INFINITY;
+            maxV_d = 0d;
+        }
+
+        void add(int docId, int tfd, int l_d, double v_d) {
+            size++;
+            lastDocId = docId;
+            maxTfd = Math.max(maxTfd, tfd);
+            minL_d = Math.min(minL_d, l_d);
+            maxL_d = Math.max(maxL_d, l_d);
+            minV_d = Math.min(minV_d, v_d);
+            maxV_d = Math.max(maxV_d, v_d);
+        }
+
+        void add(Block other) {
+            size += other.size;
+            lastDocId = other.lastDocId;
+            maxTfd = Math.max(maxTfd, other.maxTfd);
+            minL_d = Math.min(minL_d, other.minL_d);
+            maxL_d = Math.max(maxL_d, other.maxL_d);
+            minV_d = Math.min(minV_d, other.minV_d);
+            maxV_d = Math.max(maxV_d, other.maxV_d);
+        }
+
+        void write(ByteBuffer buffer) {
+            buffer.putInt(lastDocId);
+            putStatistics(buffer);
+        }
+
+        void putStatistics(ByteBuffer buffer) {
+            float minV = (float) minV_d;
+            float maxV = (float) maxV_d;
+            buffer.putInt(maxTfd);
+            buffer.putInt(size > 0 ? minL_d : 0);
+            buffer.putInt(maxL_d);
+            buffer.putFloat(size > 0 ? (minV > minV_d ? Math.nextDown(minV) : minV) : 0f);
+            buffer.putFloat(maxV < maxV_d ? Math.nextUp(maxV) : maxV);
+        }
+    }
+}
@@ -0,0 +1,257 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.querying.Request;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexConfigurable;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.MetaIndex;
+import org.terrier.structures.postings.IterablePosting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Top-k retrieval with Block-Max WAND dynamic pruning, for the models that implement
+ * {@link BoundedWeightingModel}, over an index with block-max metadata. The documents whose score bound, from
+ * the bounds of the blocks of their terms, cannot enter the top k are skipped without being scored, so the
+ * top k is the same as that of an exhaustive evaluation. The bound of a term counts as 0 when negative, since a
+ * document that does not contain the term does not get its negative score.
+ * <p>
+ * Usage: BlockMaxWand queries [k]
+ * <p>
+ * The model is that of the property trec.model, and its results are printed in the TREC format.
+ *
+ * @author Aldo Lipani
+ */
+public class BlockMaxWand {
+
+    private final Index index;
+    private final BlockMaxIndex blockMax;
+    private final Request rq;
+
+    private long scoredPostings;
+    private long totalPostings;
+
+    /**
+     * @throws IllegalArgumentException if the block-max metadata was built from another index
+     */
+    public BlockMaxWand(Index index, BlockMaxIndex blockMax) {
+        if (!blockMax.matches(index))
+            throw new IllegalArgumentException("The block-max metadata is stale for " + index);
+        this.index = index;
+        this.blockMax = blockMax;
+        this.rq = new Request();
+        this.rq.setIndex(index);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: BlockMaxWand queries [k]");
+            System.exit(1);
+        }
+        IndexOnDisk index = Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        BlockMaxIndex blockMax = BlockMaxIndex.forIndex(index);
+        if (blockMax == null) {
+            System.err.println("The index has no block-max metadata, run BlockMaxIndexBuilder first");
+            System.exit(1);
+        }
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        WeightingModel model = Models.fromProperties();
+        MetaIndex meta = index.getMetaIndex();
+
+        BlockMaxWand wand = new BlockMaxWand(index, blockMax);
+        int[] docIds = new int[k];
+        double[] scores = new double[k];
+        for (Map.Entry<String, String[]> q : Queries.read(args[0]).entrySet()) {
+            int n = wand.match(q.getValue(), model, k, docIds, scores);
+            for (int i = 0; i < n; i++)
+                System.out.println(q.getKey() + " Q0 " + meta.getItem("docno", docIds[i]) + " " + i + " " + scores[i] + " " + model.getInfo());
+        }
+        System.err.println("Scored " + wand.scoredPostings + " of " + wand.totalPostings + " postings");
+        index.close();
+    }
+
+    /**
+     * Writes the k best documents for the query terms into docIds and scores, best first.
+     *
+     * @param terms  the query terms, after the term pipeline
+     * @param model  the model, cloned and prepared for each term
+     * @param k      the number of documents
+     * @return the number of documents written
+     */
+    public int match(String[] terms, WeightingModel model, int k, int[] docIds, double[] scores) throws IOException {
+        long start = EPsMetrics.ENABLED ? System.nanoTime() : 0L;
+        long scored = scoredPostings;
+        List<Cursor> list = new ArrayList<>();
+        // the first clone takes the statistics on its prepare(), and the clones of it share them
+        WeightingModel first = null;
+        for (String term : terms) {
+            LexiconEntry le = index.getLexicon().getLexiconEntry(term);
+            if (le == null)
+                continue;
+            WeightingModel m = prepare(first != null ? first : model, le);
+            if (first == null)
+                first = m;
+            list.add(new Cursor(le, m));
+        }
+        Cursor[] cursors = list.toArray(new Cursor[list.size()]);
+        int n = cursors.length;
+        TopK top = new TopK(k);
+
+        while (true) {
+            sort(cursors);
+            double threshold = top.getThreshold();
+
+            int p = -1;
+            double bound = 0d;
+            for (int i = 0; i < n && cursors[i].docId != Integer.MAX_VALUE; i++) {
+                bound += cursors[i].upperBound;
+                if (bound >= threshold) {
+                    p = i;
+                    break;
+                }
+            }
+            if (p < 0)
+                break;
+            int pivot = cursors[p].docId;
+            while (p + 1 < n && cursors[p + 1].docId == pivot)
+                p++;
+
+            double blockBound = 0d;
+            for (int i = 0; i <= p; i++)
+                blockBound += cursors[i].getBlockUpperBound(pivot);
+
+            if (blockBound >= threshold) {
+                if (cursors[0].docId == pivot) {
+                    double score = 0d;
+                    for (int i = 0; i <= p; i++) {
+                        score += cursors[i].model.score(cursors[i].ip);
+                        scoredPostings++;
+                        cursors[i].next();
+                    }
+                    top.add(pivot, score);
+                } else {
+                    for (int i = 0; i < p; i++) {
+                        if (cursors[i].docId < pivot) {
+                            cursors[i].next(pivot);
+                            break;
+                        }
+                    }
+                }
+            } else {
+                long next = p + 1 < n ? cursors[p + 1].docId : Integer.MAX_VALUE;
+                int max = 0;
+                for (int i = 0; i <= p; i++) {
+                    next = Math.min(next, blockMax.getLastDocId(cursors[i].block) + 1L);
+                    if (cursors[i].upperBound > cursors[max].upperBound)
+                        max = i;
+                }
+                cursors[max].next((int) Math.min(Integer.MAX_VALUE, Math.max(next, pivot + 1L)));
+            }
+        }
+
+        for (Cursor c : cursors) {
+            totalPostings += c.le.getDocumentFrequency();
+            c.ip.close();
+        }
+        if (EPsMetrics.ENABLED)
+            EPsMetrics.recordQuery(scoredPostings - scored, System.nanoTime() - start);
+        return top.drain(docIds, scores);
+    }
+
+    private WeightingModel prepare(WeightingModel model, LexiconEntry le) {
+        WeightingModel m = model.clone();
+        if (m instanceof IndexConfigurable)
+            ((IndexConfigurable) m).setIndex(index);
+        m.setRequest(rq);
+        m.setCollectionStatistics(index.getCollectionStatistics());
+        m.setEntryStatistics(le);
+        m.setKeyFrequency(1d);
+        m.prepare();
+        return m;
+    }
+
+    /**
+     * Insertion sort by document id, the cursors being nearly sorted between two moves.
+     */
+    private static void sort(Cursor[] cursors) {
+        for (int i = 1; i < cursors.length; i++) {
+            Cursor c = cursors[i];
+            int j = i - 1;
+            while (j >= 0 && cursors[j].docId > c.docId) {
+                cursors[j + 1] = cursors[j];
+                j--;
+            }
+            cursors[j + 1] = c;
+        }
+    }
+
+    public long getNumberOfScoredPostings() {
+        return scoredPostings;
+    }
+
+    public long getNumberOfPostings() {
+        return totalPostings;
+    }
+
+    /**
+     * The position in the postings and in the blocks of a query term. The document id past the last posting
+     * is Integer.MAX_VALUE.
+     */
+    private class Cursor {
+
+        final LexiconEntry le;
+        final WeightingModel model;
+        final IterablePosting ip;
+        final long lastBlock;
+
+        /**
+         * The bound of the scores of the term, at least 0
+         */
+        final double upperBound;
+
+
+        long block;
+        int docId;
+
+        Cursor(LexiconEntry le, WeightingModel model) throws IOException {
+            this.le = le;
+            this.model = model;
+            this.ip = index.getInvertedIndex().getPostings(le);
+            this.upperBound = Math.max(0d, blockMax.getUpperBound((BoundedWeightingModel) model, le.getTermId()));
+            this.block = blockMax.getFirstBlock(le.getTermId());
+            this.lastBlock = block + blockMax.getNumberOfBlocks(le.getTermId()) - 1;
+            next();
+        }
+
+        void next() throws IOException {
+            set(ip.next());
+        }
+
+        void next(int target) throws IOException {
+            set(ip.next(target));
+        }
+
+        private void set(int id) {
+            docId = id == IterablePosting.EOL ? Integer.MAX_VALUE : id;
+        }
+
+        /**
+         * Moves to the block that may contain the document, without reading the postings, and returns its bound,
+         * at least 0.
+         */
+        double getBlockUpperBound(int target) {
+            while (block < lastBlock && blockMax.getLastDocId(block) < target)
+                block++;
+            return Math.max(0d, blockMax.getBlockUpperBound((BoundedWeightingModel) model, block));
+        }
+    }
+}
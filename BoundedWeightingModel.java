@@ -0,0 +1,17 @@
+package at.ac.tuwien.ifs;
+
+/**
+ * A weighting model that bounds the scores of the postings of its prepared query term, for dynamic pruning.
+ * The bounds hold up to rounding, so a pruning strategy should keep the documents whose bound equals its
+ * threshold.
+ *
+ * @author Aldo Lipani
+ */
+public interface BoundedWeightingModel {
+
+    /**
+     * Returns an upper bound of the scores of the postings of the query term whose tf is at most maxTfd, and
+     * whose documents have length in [minL_d, maxL_d] and verboseness l_d/nT_d in [minV_d, maxV_d].
+     */
+    double getUpperBound(int maxTfd, int minL_d, int maxL_d, double minV_d, double maxV_d);
+}
@@ -0,0 +1,149 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.utility.ApplicationSetup;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Term-at-a-time retrieval over a {@link CompactIndex}, without Terrier objects on the path of a query: the
+ * postings of every query term are decoded from the bytes of the index and their scores added to the
+ * accumulators of their documents, then the k best documents are selected. An engine owns its accumulators
+ * and scorer and is not thread-safe; the index is shared, so a service runs one engine per thread.
+ * <p>
+ * Usage: CompactEngine compact queries [k]
+ * <p>
+ * The model is that of the property trec.model, configured by its properties, and its results are printed in
+ * the TREC format.
+ *
+ * @author Aldo Lipani
+ */
+public class CompactEngine {
+
+    private final CompactIndex index;
+    private final CompactScorer scorer;
+
+    /**
+     * The accumulators of the documents, and the documents whose accumulators have been added to, marked by
+     * the number of the query that touched them last
+     */
+    private final double[] accumulators;
+    private final int[] marks;
+    private int[] touched = new int[1024];
+    private int query;
+
+    private long processedPostings;
+
+    public CompactEngine(CompactIndex index, CompactScorer scorer) {
+        this.index = index;
+        this.scorer = scorer;
+        this.accumulators = new double[index.nD];
+        this.marks = new int[index.nD];
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: CompactEngine compact queries [k]");
+            System.exit(1);
+        }
+        CompactIndex index = CompactIndex.read(new File(args[0]));
+        CompactScorer scorer = CompactScorer.forModel(ApplicationSetup.getProperty("trec.model", TFs_IDF_EPs.class.getName()));
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 1000;
+
+        CompactEngine engine = new CompactEngine(index, scorer);
+        int[] docIds = new int[k];
+        double[] scores = new double[k];
+        Map<String, String[]> queries = Queries.read(args[1]);
+        long start = System.nanoTime();
+        for (Map.Entry<String, String[]> q : queries.entrySet()) {
+            int n = engine.search(q.getValue(), k, docIds, scores);
+            for (int i = 0; i < n; i++)
+                System.out.println(q.getKey() + " Q0 " + index.getDocno(docIds[i]) + " " + i + " " + scores[i] + " " + scorer.getInfo());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(queries.size() + " queries in " + seconds + " s, " + engine.processedPostings + " postings");
+    }
+
+    /**
+     * Writes the k best documents for the query terms into docIds and scores, best first. The terms missing
+     * from the index are ignored, and a repeated term is scored once per occurrence.
+     *
+     * @param terms the query terms, after the term pipeline
+     * @param k     the number of documents
+     * @return the number of documents written
+     */
+    public int search(String[] terms, int k, int[] docIds, double[] scores) {
+        long start = EPsMetrics.ENABLED ? System.nanoTime() : 0L;
+        long postings = processedPostings;
+        if (++query == 0) {
+            Arrays.fill(marks, 0);
+            query = 1;
+        }
+        int numberOfTouched = 0;
+        int[] lengths = index.lengths;
+        int[] uniqueTerms = index.uniqueTerms;
+        for (String term : terms) {
+            int termId = index.getTermId(term);
+            if (termId < 0)
+                continue;
+            scorer.prepare(index, termId);
+            long position = index.offsets[termId];
+            long end = index.offsets[termId + 1];
+            byte[] page = index.pages[(int) (position >>> CompactIndex.PAGE_SHIFT)];
+            int p = (int) (position & CompactIndex.PAGE_MASK);
+            int docId = -1;
+            while (position < end) {
+                int gap = 0, tfd = 0;
+                byte b;
+                int shift = 0;
+                do {
+                    if (p == page.length) {
+                        page = index.pages[(int) (position >>> CompactIndex.PAGE_SHIFT)];
+                        p = 0;
+                    }
+                    b = page[p++];
+                    position++;
+                    gap |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                shift = 0;
+                do {
+                    if (p == page.length) {
+                        page = index.pages[(int) (position >>> CompactIndex.PAGE_SHIFT)];
+                        p = 0;
+                    }
+                    b = page[p++];
+                    position++;
+                    tfd |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+                docId += gap;
+
+                double score = scorer.score(tfd, lengths[docId], uniqueTerms[docId]);
+                if (marks[docId] != query) {
+                    marks[docId] = query;
+                    accumulators[docId] = score;
+                    if (numberOfTouched == touched.length)
+                        touched = Arrays.copyOf(touched, 2 * numberOfTouched);
+                    touched[numberOfTouched++] = docId;
+                } else {
+                    accumulators[docId] += score;
+                }
+                processedPostings++;
+            }
+        }
+
+        TopK top = new TopK(k);
+        for (int i = 0; i < numberOfTouched; i++)
+            top.add(touched[i], accumulators[touched[i]]);
+        if (EPsMetrics.ENABLED)
+            EPsMetrics.recordQuery(processedPostings - postings, System.nanoTime() - start);
+        return top.drain(docIds, scores);
+    }
+
+    public long getNumberOfProcessedPostings() {
+        return processedPostings;
+    }
+}
@@ -0,0 +1,298 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.Lexicon;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.MetaIndex;
+import org.terrier.structures.postings.IterablePosting;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * A memory-resident index made of primitive arrays only: the lengths and numbers of unique terms of the
+ * documents, the sorted terms with their document and term frequencies, and the postings in compressed sparse
+ * row layout, the postings of term t being the bytes from offsets[t] to offsets[t + 1], as variable-byte
+ * encoded pairs of document id gap and tf. The bytes are held in pages of 1 GiB, so that the postings are not
+ * limited by the size of an array. It is immutable, and so can be shared by any number of threads.
+ * <p>
+ * It is imported from a Terrier index, with the collection statistics of the models and the docnos, and
+ * written to and read from a single file, next to the index.
+ * <p>
+ * Usage: CompactIndex [path prefix]
+ *
+ * @author Aldo Lipani
+ */
+public class CompactIndex {
+
+    static final String SUFFIX = ".compact";
+
+    private static final int MAGIC = 0x45504349;
+    private static final int VERSION = 1;
+
+    static final int PAGE_SHIFT = 30;
+    static final int PAGE_MASK = (1 << PAGE_SHIFT) - 1;
+
+    final int nD;
+    final int numberOfUniqueTerms;
+    final long numberOfTokens;
+    final String[] docnos;
+    final int[] lengths;
+    final int[] uniqueTerms;
+
+    final String[] terms;
+    final int[] documentFrequencies;
+    final int[] termFrequencies;
+    final long[] offsets;
+    final byte[][] pages;
+
+    final EPsStatistics statistics;
+
+    private CompactIndex(int nD, int numberOfUniqueTerms, long numberOfTokens, String[] docnos, int[] lengths,
+                         int[] uniqueTerms, String[] terms, int[] documentFrequencies, int[] termFrequencies,
+                         long[] offsets, byte[][] pages, EPsStatistics statistics) {
+        this.nD = nD;
+        this.numberOfUniqueTerms = numberOfUniqueTerms;
+        this.numberOfTokens = numberOfTokens;
+        this.docnos = docnos;
+        this.lengths = lengths;
+        this.uniqueTerms = uniqueTerms;
+        this.terms = terms;
+        this.documentFrequencies = documentFrequencies;
+        this.termFrequencies = termFrequencies;
+        this.offsets = offsets;
+        this.pages = pages;
+        this.statistics = statistics;
+    }
+
+    public static void main(String[] args) throws IOException {
+        IndexOnDisk index = args.length == 2 ? Index.createIndex(args[0], args[1]) : Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        File file = getFile(index);
+        importIndex(index).write(file);
+        index.close();
+        System.err.println("Compact index written to " + file);
+    }
+
+    /**
+     * Returns the compact index next to the index, or null if it has none.
+     */
+    public static CompactIndex forIndex(Index index) throws IOException {
+        if (index instanceof IndexOnDisk) {
+            File file = getFile((IndexOnDisk) index);
+            if (file.exists())
+                return read(file);
+        }
+        return null;
+    }
+
+    static File getFile(IndexOnDisk index) {
+        return new File(index.getPath(), index.getPrefix() + SUFFIX);
+    }
+
+    public int getNumberOfDocuments() {
+        return nD;
+    }
+
+    public int getNumberOfTerms() {
+        return terms.length;
+    }
+
+    /**
+     * Returns the average document length, over all the documents, as in the collection statistics of Terrier.
+     */
+    public double getAverageDocumentLength() {
+        return nD != 0 ? 1d * numberOfTokens / nD : 0d;
+    }
+
+    public String getDocno(int docId) {
+        return docnos[docId];
+    }
+
+    /**
+     * Returns the id of the term, or -1 if it is not in the index.
+     */
+    public int getTermId(String term) {
+        int t = Arrays.binarySearch(terms, term);
+        return t >= 0 ? t : -1;
+    }
+
+    /**
+     * Imports the documents, lexicon and postings of a Terrier index. The terms are sorted, whatever the order
+     * of the term ids of the index.
+     */
+    public static CompactIndex importIndex(Index index) throws IOException {
+        CollectionStatistics cs = index.getCollectionStatistics();
+        DocumentStatistics ds = DocumentStatistics.forIndex(index);
+        int nD = ds.getNumberOfDocuments();
+        int[] lengths = new int[nD];
+        int[] uniqueTerms = new int[nD];
+        String[] docnos = new String[nD];
+        MetaIndex meta = index.getMetaIndex();
+        for (int i = 0; i < nD; i++) {
+            lengths[i] = (int) ds.getDocumentLength(i);
+            uniqueTerms[i] = (int) ds.getNumberOfUniqueTerms(i);
+            docnos[i] = meta.getItem("docno", i);
+        }
+
+        Lexicon<String> lex = index.getLexicon();
+        int nT = lex.numberOfEntries();
+        String[] terms = new String[nT];
+        LexiconEntry[] entries = new LexiconEntry[nT];
+        for (int i = 0; i < nT; i++) {
+            Map.Entry<String, LexiconEntry> e = lex.getIthLexiconEntry(i);
+            terms[i] = e.getKey();
+            entries[i] = e.getValue();
+        }
+        Integer[] order = new Integer[nT];
+        for (int i = 0; i < nT; i++)
+            order[i] = i;
+        Arrays.sort(order, (x, y) -> terms[x].compareTo(terms[y]));
+
+        String[] sortedTerms = new String[nT];
+        int[] documentFrequencies = new int[nT];
+        int[] termFrequencies = new int[nT];
+        long[] offsets = new long[nT + 1];
+        Output out = new Output();
+        for (int t = 0; t < nT; t++) {
+            LexiconEntry le = entries[order[t]];
+            sortedTerms[t] = terms[order[t]];
+            documentFrequencies[t] = le.getDocumentFrequency();
+            termFrequencies[t] = le.getFrequency();
+            offsets[t] = out.size;
+            IterablePosting ip = index.getInvertedIndex().getPostings(le);
+            int previous = -1;
+            while (ip.next() != IterablePosting.EOL) {
+                out.putVarInt(ip.getId() - previous);
+                out.putVarInt(ip.getFrequency());
+                previous = ip.getId();
+            }
+            ip.close();
+        }
+        offsets[nT] = out.size;
+
+        return new CompactIndex(nD, cs.getNumberOfUniqueTerms(), cs.getNumberOfTokens(), docnos, lengths,
+                uniqueTerms, sortedTerms, documentFrequencies, termFrequencies, offsets, out.getPages(),
+                EPsStatistics.get(index));
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nD);
+            out.writeInt(terms.length);
+            out.writeInt(numberOfUniqueTerms);
+            out.writeLong(numberOfTokens);
+            out.writeInt(statistics.nZnD);
+            out.writeDouble(statistics.avgV);
+            out.writeDouble(statistics.avgB);
+            for (int i = 0; i < nD; i++) {
+                out.writeUTF(docnos[i]);
+                out.writeInt(lengths[i]);
+                out.writeInt(uniqueTerms[i]);
+            }
+            for (int t = 0; t < terms.length; t++) {
+                out.writeUTF(terms[t]);
+                out.writeInt(documentFrequencies[t]);
+                out.writeInt(termFrequencies[t]);
+                out.writeLong(offsets[t + 1]);
+            }
+            for (byte[] page : pages)
+                out.write(page);
+        }
+    }
+
+    public static CompactIndex read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a compact index file: " + file);
+            int nD = in.readInt();
+            int nT = in.readInt();
+            int numberOfUniqueTerms = in.readInt();
+            long numberOfTokens = in.readLong();
+            EPsStatistics statistics = new EPsStatistics(in.readInt(), in.readDouble(), in.readDouble());
+            int[] lengths = new int[nD];
+            int[] uniqueTerms = new int[nD];
+            String[] docnos = new String[nD];
+            for (int i = 0; i < nD; i++) {
+                docnos[i] = in.readUTF();
+                lengths[i] = in.readInt();
+                uniqueTerms[i] = in.readInt();
+            }
+            String[] terms = new String[nT];
+            int[] documentFrequencies = new int[nT];
+            int[] termFrequencies = new int[nT];
+            long[] offsets = new long[nT + 1];
+            for (int t = 0; t < nT; t++) {
+                terms[t] = in.readUTF();
+                documentFrequencies[t] = in.readInt();
+                termFrequencies[t] = in.readInt();
+                offsets[t + 1] = in.readLong();
+            }
+            long size = offsets[nT];
+            byte[][] pages = new byte[(int) ((size + PAGE_MASK) >>> PAGE_SHIFT)][];
+            for (int p = 0; p < pages.length; p++) {
+                pages[p] = new byte[(int) Math.min(size - ((long) p << PAGE_SHIFT), 1L << PAGE_SHIFT)];
+                in.readFully(pages[p]);
+            }
+            return new CompactIndex(nD, numberOfUniqueTerms, numberOfTokens, docnos, lengths, uniqueTerms, terms,
+                    documentFrequencies, termFrequencies, offsets, pages, statistics);
+        }
+    }
+
+    /**
+     * A growable sequence of pages of bytes.
+     */
+    private static class Output {
+
+        private byte[][] pages = new byte[1][];
+        private byte[] page = new byte[1 << 16];
+        long size;
+
+        void putVarInt(int value) {
+            while ((value & ~0x7F) != 0) {
+                put((byte) ((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            put((byte) value);
+        }
+
+        private void put(byte b) {
+            int p = (int) (size >>> PAGE_SHIFT);
+            int i = (int) (size & PAGE_MASK);
+            if (i == page.length) {
+                if (page.length < 1 << PAGE_SHIFT) {
+                    page = Arrays.copyOf(page, Math.min(2 * page.length, 1 << PAGE_SHIFT));
+                } else {
+                    pages[p - 1] = page;
+                    pages = Arrays.copyOf(pages, p + 1);
+                    page = new byte[1 << 16];
+                }
+            }
+            page[i] = b;
+            size++;
+        }
+
+        byte[][] getPages() {
+            int n = (int) ((size + PAGE_MASK) >>> PAGE_SHIFT);
+            byte[][] res = Arrays.copyOf(pages, n);
+            if (n > 0)
+                res[n - 1] = Arrays.copyOf(page, (int) (size - ((long) (n - 1) << PAGE_SHIFT)));
+            return res;
+        }
+    }
+}
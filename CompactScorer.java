@@ -0,0 +1,198 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModelLibrary;
+
+/**
+ * The scoring of the three models over a {@link CompactIndex}, with the same formulas as their score(double...),
+ * split as in their prepare() and score(Posting): prepare() computes the constants of a query term, and
+ * score() the part that depends on the document, so that the scores are the same as those of the models on
+ * the index the compact index was imported from. A scorer is not thread-safe, one is used per thread.
+ *
+ * @author Aldo Lipani
+ */
+public abstract class CompactScorer {
+
+    final NormalizationCombination combination;
+    final NormalizationPivotization pivotization;
+    final double b;
+    final double a;
+
+    private CompactScorer(NormalizationCombination combination, NormalizationPivotization pivotization, double b, double a) {
+        this.combination = combination;
+        this.pivotization = pivotization;
+        this.b = b;
+        this.a = a;
+    }
+
+    /**
+     * Returns the scorer of the model of the given class name, configured by the same properties as the
+     * default constructor of the model.
+     *
+     * @throws IllegalArgumentException if the model is not one of the three, or its configuration is invalid
+     */
+    public static CompactScorer forModel(String model) {
+        double b = Double.parseDouble(System.getProperty("b", "0.5d"));
+        double a = Double.parseDouble(System.getProperty("a", "0.5d"));
+        switch (model.substring(model.lastIndexOf('.') + 1)) {
+            case "TFs_IDF_EPs":
+                return new TFs_IDF(System.getProperty("tf.quantification", "total").toLowerCase(),
+                        System.getProperty("tf.normalization.combination", "linear").toLowerCase(),
+                        System.getProperty("tf.normalization.pivotization", "non_elite").toLowerCase(),
+                        b, a, Double.parseDouble(System.getProperty("k1", "1.2d")));
+            case "LMDs_EPs":
+                return new LMDs(System.getProperty("tf.normalization.combination", "linear").toLowerCase(),
+                        System.getProperty("tf.normalization.pivotization", "non_elite").toLowerCase(), b, a);
+            case "LM_TFs_IDF_EPs":
+                return new LM_TFs_IDF(System.getProperty("lambdaq.normalization.combination", "linear").toLowerCase(),
+                        System.getProperty("lambdaq.normalization.pivotization", "non_elite").toLowerCase(), b, a);
+            default:
+                throw new IllegalArgumentException("Unknown model " + model);
+        }
+    }
+
+    /**
+     * Returns the getInfo() of the model with the same configuration.
+     */
+    public abstract String getInfo();
+
+    /**
+     * Computes the constants of the query term.
+     */
+    public abstract void prepare(CompactIndex index, int termId);
+
+    /**
+     * Returns the score of a posting of the query term.
+     *
+     * @param tfd  the frequency of the term in the document
+     * @param l_d  the length of the document
+     * @param nT_d the number of unique terms of the document
+     */
+    public abstract double score(int tfd, int l_d, int nT_d);
+
+    double getVerbosenessPivot(CompactIndex index, double l_c) {
+        if (pivotization == NormalizationPivotization.ELITE)
+            return index.statistics.avgV;
+        return l_c / index.numberOfUniqueTerms;
+    }
+
+    public static class TFs_IDF extends CompactScorer {
+
+        private final String info;
+        private final TfQuantification quantification;
+        private final double k_1;
+
+        private double lengthPivot;
+        private double verbosenessPivot;
+        private double IDF;
+
+        public TFs_IDF(String tfQuantification, String tfNormalizationCombination, String tfNormalizationPivotization,
+                       double b, double a, double k_1) {
+            super(NormalizationCombination.of("tf.normalization.combination", tfNormalizationCombination),
+                    NormalizationPivotization.of("tf.normalization.pivotization", tfNormalizationPivotization), b, a);
+            this.quantification = TfQuantification.of("tf.quantification", tfQuantification);
+            this.k_1 = k_1;
+            this.info = "TFs_IDF_EPs" +
+                    ".q_" + tfQuantification +
+                    ".nc_" + tfNormalizationCombination +
+                    ".np_" + tfNormalizationPivotization +
+                    ".k1_" + String.format("%.4f", k_1) +
+                    ".b_" + String.format("%.1f", b) +
+                    ".a_" + String.format("%.1f", a);
+        }
+
+        public String getInfo() {
+            return info;
+        }
+
+        public void prepare(CompactIndex index, int termId) {
+            double nD = index.statistics.nZnD;
+            double l_c = index.numberOfTokens * nD;
+            lengthPivot = l_c / nD;
+            verbosenessPivot = getVerbosenessPivot(index, l_c);
+            IDF = WeightingModelLibrary.log(nD / index.documentFrequencies[termId]);
+        }
+
+        public double score(int tfd, int l_d, int nT_d) {
+            double KD = k_1 * combination.getK(l_d / lengthPivot, ((double) l_d / nT_d) / verbosenessPivot, b, a);
+            return quantification.getTFD(tfd, KD) * IDF;
+        }
+    }
+
+    public static class LMDs extends CompactScorer {
+
+        private final String info;
+
+        private double lengthPivot;
+        private double verbosenessPivot;
+        private double ILF;
+
+        public LMDs(String tfNormalizationCombination, String tfNormalizationPivotization, double b, double a) {
+            super(NormalizationCombination.of("tf.normalization.combination", tfNormalizationCombination),
+                    NormalizationPivotization.of("tf.normalization.pivotization", tfNormalizationPivotization), b, a);
+            this.info = "LMDs_EPs" +
+                    ".nc_" + tfNormalizationCombination +
+                    ".np_" + tfNormalizationPivotization +
+                    ".b_" + String.format("%.1f", b) +
+                    ".a_" + String.format("%.2f", a);
+        }
+
+        public String getInfo() {
+            return info;
+        }
+
+        public void prepare(CompactIndex index, int termId) {
+            double nD = index.statistics.nZnD;
+            double l_c = index.numberOfTokens * nD;
+            lengthPivot = l_c / nD;
+            verbosenessPivot = getVerbosenessPivot(index, l_c);
+            ILF = l_c / index.termFrequencies[termId];
+        }
+
+        public double score(int tfd, int l_d, int nT_d) {
+            double KD = combination.getK(l_d / lengthPivot, ((double) l_d / nT_d) / verbosenessPivot, b, a);
+            double lambda = KD / (KD + 1d);
+            return WeightingModelLibrary.log(1d - lambda + lambda * ((double) tfd / l_d) * ILF);
+        }
+    }
+
+    public static class LM_TFs_IDF extends CompactScorer {
+
+        private final String info;
+
+        private double IDF;
+
+        public LM_TFs_IDF(String lambdaqNormalizationCombination, String lambdaqNormalizationPivotization, double b, double a) {
+            super(NormalizationCombination.of("lambdaq.normalization.combination", lambdaqNormalizationCombination),
+                    NormalizationPivotization.of("lambdaq.normalization.pivotization", lambdaqNormalizationPivotization), b, a);
+            this.info = "LM_TFs_IDF_EPs" +
+                    ".nc_" + lambdaqNormalizationCombination +
+                    ".np_" + lambdaqNormalizationPivotization +
+                    ".b_" + String.format("%.1f", b) +
+                    ".a_" + String.format("%.2f", a);
+        }
+
+        public String getInfo() {
+            return info;
+        }
+
+        /**
+         * The score depends on the document through the tf only, so the IDF is computed here.
+         */
+        public void prepare(CompactIndex index, int termId) {
+            double nD = index.statistics.nZnD;
+            double l_c = index.getAverageDocumentLength() * nD;
+            double l_t = index.termFrequencies[termId];
+            double df = index.documentFrequencies[termId];
+            double pivtb = pivotization == NormalizationPivotization.ELITE ?
+                    (l_t / df) / index.statistics.avgB : (l_t / df) / (l_c / nD);
+            double pivtl = l_t / (l_c / nD);
+            double KT = combination.getK(pivtl, pivtb, b, a);
+            double lambdaq = KT / (KT + 1);
+            IDF = WeightingModelLibrary.log(1d - lambdaq + lambdaq * nD / df);
+        }
+
+        public double score(int tfd, int l_d, int nT_d) {
+            return tfd * IDF;
+        }
+    }
+}
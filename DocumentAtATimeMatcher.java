@@ -0,0 +1,227 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.querying.Request;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexConfigurable;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.MetaIndex;
+import org.terrier.structures.postings.IterablePosting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Exhaustive document-at-a-time retrieval: the postings of all the query terms are traversed together, and
+ * each document is scored once for all its terms. For the models that implement {@link FactoredWeightingModel},
+ * the length, the number of unique terms and the factor of a document (KD or lambda) are computed once per
+ * document instead of once per posting, so a long query costs little more normalization than a single term.
+ * The other models score every posting with score(Posting). The scores of a document are added in the order
+ * of the query terms, so they are the same as those of a term-at-a-time evaluation.
+ * <p>
+ * Usage: DocumentAtATimeMatcher queries [k]
+ * <p>
+ * The model is that of the property trec.model, and its results are printed in the TREC format.
+ *
+ * @author Aldo Lipani
+ */
+public class DocumentAtATimeMatcher {
+
+    private final Index index;
+    private final DocumentStatistics ds;
+    private final Request rq;
+
+    private long scoredPostings;
+    private long scoredDocuments;
+
+    public DocumentAtATimeMatcher(Index index) throws IOException {
+        this.index = index;
+        this.ds = DocumentStatistics.forIndex(index);
+        this.rq = new Request();
+        this.rq.setIndex(index);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: DocumentAtATimeMatcher queries [k]");
+            System.exit(1);
+        }
+        IndexOnDisk index = Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        WeightingModel model = Models.fromProperties();
+        MetaIndex meta = index.getMetaIndex();
+
+        DocumentAtATimeMatcher matcher = new DocumentAtATimeMatcher(index);
+        int[] docIds = new int[k];
+        double[] scores = new double[k];
+        long start = System.nanoTime();
+        for (Map.Entry<String, String[]> q : Queries.read(args[0]).entrySet()) {
+            int n = matcher.match(q.getValue(), model, k, docIds, scores);
+            for (int i = 0; i < n; i++)
+                System.out.println(q.getKey() + " Q0 " + meta.getItem("docno", docIds[i]) + " " + i + " " + scores[i] + " " + model.getInfo());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println("Scored " + matcher.scoredPostings + " postings of " + matcher.scoredDocuments + " documents in " + seconds + " s");
+        index.close();
+    }
+
+    /**
+     * Writes the k best documents for the query terms into docIds and scores, best first.
+     *
+     * @param terms the query terms, after the term pipeline
+     * @param model the model, cloned and prepared for each term
+     * @param k     the number of documents
+     * @return the number of documents written
+     */
+    public int match(String[] terms, WeightingModel model, int k, int[] docIds, double[] scores) throws IOException {
+        long start = EPsMetrics.ENABLED ? System.nanoTime() : 0L;
+        long scored = scoredPostings;
+        TopK top = new TopK(k);
+        match(prepare(terms, model), 0, Integer.MAX_VALUE, top);
+        if (EPsMetrics.ENABLED)
+            EPsMetrics.recordQuery(scoredPostings - scored, System.nanoTime() - start);
+        return top.drain(docIds, scores);
+    }
+
+    /**
+     * Prepares a clone of the model for each query term found in the lexicon.
+     */
+    PreparedQuery prepare(String[] terms, WeightingModel model) {
+        List<LexiconEntry> entries = new ArrayList<>();
+        List<WeightingModel> models = new ArrayList<>();
+        // the first clone takes the statistics on its prepare(), and the clones of it share them, hence the factors
+        WeightingModel first = null;
+        for (String term : terms) {
+            LexiconEntry le = index.getLexicon().getLexiconEntry(term);
+            if (le == null)
+                continue;
+            WeightingModel m = prepare(first != null ? first : model, le);
+            if (first == null)
+                first = m;
+            entries.add(le);
+            models.add(m);
+        }
+        return new PreparedQuery(entries.toArray(new LexiconEntry[entries.size()]), models.toArray(new WeightingModel[models.size()]));
+    }
+
+    /**
+     * Adds the documents with an id in [from, to) to top, reading the postings and the document statistics of
+     * the index of this matcher. The prepared models are only read, so a query prepared once may be matched
+     * concurrently by matchers over other readers of the same index.
+     */
+    void match(PreparedQuery query, int from, int to, TopK top) throws IOException {
+        Cursor[] cursors = new Cursor[query.entries.length];
+        for (int t = 0; t < cursors.length; t++)
+            cursors[t] = new Cursor(query.entries[t], query.models[t], from, to);
+        FactoredWeightingModel factored = cursors.length > 0 && query.models[0] instanceof FactoredWeightingModel ?
+                (FactoredWeightingModel) query.models[0] : null;
+
+        while (true) {
+            Cursor first = null;
+            for (Cursor c : cursors)
+                if (first == null || c.docId < first.docId)
+                    first = c;
+            if (first == null || first.docId == Integer.MAX_VALUE)
+                break;
+            int docId = first.docId;
+
+            double score = 0d;
+            if (factored != null) {
+                // the exact length from the postings, as score(Posting) reads it, the document statistics may be
+                // quantized
+                double l_d = first.ip.getDocumentLength();
+                double factor = factored.getDocumentFactor(docId, l_d, ds.getNumberOfUniqueTerms(docId));
+                for (Cursor c : cursors) {
+                    if (c.docId == docId) {
+                        score += ((FactoredWeightingModel) c.model).score(c.ip.getFrequency(), l_d, factor);
+                        c.next();
+                        scoredPostings++;
+                    }
+                }
+            } else {
+                for (Cursor c : cursors) {
+                    if (c.docId == docId) {
+                        score += c.model.score(c.ip);
+                        c.next();
+                        scoredPostings++;
+                    }
+                }
+            }
+            top.add(docId, score);
+            scoredDocuments++;
+        }
+
+        for (Cursor c : cursors)
+            c.ip.close();
+    }
+
+    private WeightingModel prepare(WeightingModel model, LexiconEntry le) {
+        WeightingModel m = model.clone();
+        if (m instanceof IndexConfigurable)
+            ((IndexConfigurable) m).setIndex(index);
+        m.setRequest(rq);
+        m.setCollectionStatistics(index.getCollectionStatistics());
+        m.setEntryStatistics(le);
+        m.setKeyFrequency(1d);
+        m.prepare();
+        return m;
+    }
+
+    public long getNumberOfScoredPostings() {
+        return scoredPostings;
+    }
+
+    public long getNumberOfScoredDocuments() {
+        return scoredDocuments;
+    }
+
+    /**
+     * The query terms found in the lexicon, and the model prepared for each of them.
+     */
+    static class PreparedQuery {
+
+        final LexiconEntry[] entries;
+        final WeightingModel[] models;
+
+        PreparedQuery(LexiconEntry[] entries, WeightingModel[] models) {
+            this.entries = entries;
+            this.models = models;
+        }
+    }
+
+    /**
+     * The position in the postings of a query term, within a range of document ids. The document id past the
+     * last posting of the range is Integer.MAX_VALUE.
+     */
+    private class Cursor {
+
+        final WeightingModel model;
+        final IterablePosting ip;
+        final int to;
+
+        int docId;
+
+        Cursor(LexiconEntry le, WeightingModel model, int from, int to) throws IOException {
+            this.model = model;
+            this.ip = index.getInvertedIndex().getPostings(le);
+            this.to = to;
+            // next(target) always moves forward, so it also reads the first posting
+            set(from > 0 ? ip.next(from) : ip.next());
+        }
+
+        void next() throws IOException {
+            set(ip.next());
+        }
+
+        private void set(int id) {
+            docId = id == IterablePosting.EOL || id >= to ? Integer.MAX_VALUE : id;
+        }
+    }
+}
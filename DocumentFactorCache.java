@@ -0,0 +1,217 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.Index;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.InterruptedIOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.stream.IntStream;
+
+/**
+ * Caches, for every document of an index, the part of a score that depends only on the document and on the
+ * configuration of the model, such as KD in TFs_IDF_EPs or lambda in LMDs_EPs.
+ * <p>
+ * The arrays are built in parallel on first use and evicted in least recently used order when their total size
+ * would exceed the budget. An array is built by the first thread that asks for it, without holding a lock shared
+ * with other arrays, while the threads asking for the same array wait for it. The arrays being built count
+ * against the budget too, and cannot be evicted, so an array that does not fit beside them is not cached, and
+ * the model computes its factors per document instead. The factors are stored as floats, which changes the
+ * scores by a relative error of at most 2^-24 of the factor.
+ * <p>
+ * The cache is enabled with the property eps.kd.cache=true, and its budget in bytes is set by eps.kd.cache.budget,
+ * by default a quarter of the maximum heap.
+ *
+ * @author Aldo Lipani
+ */
+public class DocumentFactorCache {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("eps.kd.cache", "false"));
+
+    private static final long BUDGET = Long.parseLong(System.getProperty("eps.kd.cache.budget",
+            String.valueOf(Runtime.getRuntime().maxMemory() / 4)));
+
+    /**
+     * The factors built or being built, by key.
+     */
+    private static final ConcurrentHashMap<Key, FutureTask<float[]>> factors = new ConcurrentHashMap<>();
+
+    /**
+     * The factors built, in least recently used order, guarded by the class.
+     */
+    private static final LinkedHashMap<Key, float[]> built = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * The bytes of the factors built or being built, and of those being built, guarded by the class.
+     */
+    private static long size = 0;
+    private static long building = 0;
+
+    /**
+     * The document-dependent factor of a model, given the length and the number of unique terms of a document.
+     */
+    interface DocumentFactor {
+        double get(double l_d, double nT_d);
+    }
+
+    /**
+     * Returns the factors of all the documents of the index for the given configuration, building them if absent.
+     *
+     * @param index         the index
+     * @param configuration the model and every parameter the factor depends on
+     * @param ds            the document statistics of the index
+     * @param factor        the factor of the model
+     * @return the factors indexed by document id, or null if they do not fit in the budget beside the factors
+     * being built
+     */
+    static float[] get(Index index, String configuration, DocumentStatistics ds, DocumentFactor factor) throws IOException {
+        long bytes = 4L * ds.getNumberOfDocuments();
+        if (bytes > BUDGET)
+            return null;
+        Key key = new Key(IndexRegistry.get(index), configuration);
+        FutureTask<float[]> task = factors.get(key);
+        if (EPsMetrics.ENABLED)
+            (task != null ? EPsMetrics.CACHE_HITS : EPsMetrics.CACHE_MISSES).increment();
+        if (task == null) {
+            if (!reserve(bytes))
+                return null;
+            FutureTask<float[]> created = new FutureTask<>(() -> build(ds, factor));
+            task = factors.putIfAbsent(key, created);
+            if (task != null) {
+                release(bytes);
+            } else {
+                task = created;
+                long start = System.nanoTime();
+                task.run();
+                if (EPsMetrics.ENABLED && EPsMetrics.CACHE_BUILDS.sample())
+                    EPsMetrics.CACHE_BUILDS.record(System.nanoTime() - start);
+                admit(key, task, bytes);
+            }
+        } else {
+            touch(key);
+        }
+        try {
+            return task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            factors.remove(key, task);
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Counts the given bytes as being built, evicting the least recently used factors until they fit in the
+     * budget, unless they do not fit beside the factors being built.
+     *
+     * @return true if the bytes are counted
+     */
+    private static synchronized boolean reserve(long bytes) {
+        if (building + bytes > BUDGET)
+            return false;
+        Iterator<Map.Entry<Key, float[]>> it = built.entrySet().iterator();
+        while (size + bytes > BUDGET && it.hasNext()) {
+            Map.Entry<Key, float[]> e = it.next();
+            factors.remove(e.getKey());
+            size -= 4L * e.getValue().length;
+            it.remove();
+        }
+        size += bytes;
+        building += bytes;
+        return true;
+    }
+
+    private static synchronized void release(long bytes) {
+        size -= bytes;
+        building -= bytes;
+    }
+
+    /**
+     * Adds the factors just built to the least recently used order, unless they failed or their index was
+     * evicted meanwhile, in which case their bytes are released.
+     */
+    private static synchronized void admit(Key key, FutureTask<float[]> task, long bytes) {
+        float[] res = null;
+        try {
+            res = task.get();
+        } catch (InterruptedException | ExecutionException e) {
+            // the caller handles the failure
+        }
+        building -= bytes;
+        if (res != null && factors.get(key) == task)
+            built.put(key, res);
+        else
+            size -= bytes;
+    }
+
+    private static synchronized void touch(Key key) {
+        built.get(key);
+    }
+
+    /**
+     * Evicts the factors of the index of the registry entry.
+     */
+    static synchronized void evict(IndexRegistry.Entry entry) {
+        factors.keySet().removeIf(key -> key.entry == entry);
+        Iterator<Map.Entry<Key, float[]>> it = built.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Key, float[]> e = it.next();
+            if (e.getKey().entry == entry) {
+                size -= 4L * e.getValue().length;
+                it.remove();
+            }
+        }
+    }
+
+    private static float[] build(DocumentStatistics ds, DocumentFactor factor) throws IOException {
+        float[] res = new float[ds.getNumberOfDocuments()];
+        try {
+            IntStream.range(0, res.length).parallel().forEach(docId -> {
+                try {
+                    res[docId] = (float) factor.get(ds.getDocumentLength(docId), ds.getNumberOfUniqueTerms(docId));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        return res;
+    }
+
+    /**
+     * Identifies the factors of a configuration of a model on an index, by the registry entry of the index,
+     * which does not keep the index reachable.
+     */
+    private static final class Key {
+
+        final IndexRegistry.Entry entry;
+        final String configuration;
+
+        Key(IndexRegistry.Entry entry, String configuration) {
+            this.entry = entry;
+            this.configuration = configuration;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key))
+                return false;
+            Key other = (Key) o;
+            return entry == other.entry && configuration.equals(other.configuration);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * System.identityHashCode(entry) + configuration.hashCode();
+        }
+    }
+}
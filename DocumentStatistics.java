@@ -0,0 +1,55 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Per-document statistics used by the verboseness normalizations: the document length l_d,
+ * the number of unique terms nT_d and the verboseness l_d/nT_d.
+ *
+ * @author Aldo Lipani
+ */
+public interface DocumentStatistics {
+
+    int getNumberOfDocuments();
+
+    double getDocumentLength(int docId) throws IOException;
+
+    double getNumberOfUniqueTerms(int docId) throws IOException;
+
+    double getVerboseness(int docId) throws IOException;
+
+    /**
+     * Returns the memory-mapped sidecar of the index if one has been built with
+     * {@link DocumentStatisticsBuilder}, the quantized one first when eps.docstats.quantized is true,
+     * otherwise a view over its DocumentIndex. A sidecar built from an index with other numbers of documents
+     * or tokens is stale, and is ignored with a warning.
+     *
+     * @param index the index
+     * @return the document statistics of the index
+     */
+    static DocumentStatistics forIndex(Index index) throws IOException {
+        if (index instanceof IndexOnDisk) {
+            if (QuantizedDocumentStatistics.ENABLED) {
+                File file = QuantizedDocumentStatistics.getFile((IndexOnDisk) index);
+                if (file.exists()) {
+                    QuantizedDocumentStatistics ds = new QuantizedDocumentStatistics(file);
+                    if (ds.matches(index))
+                        return ds;
+                    System.err.println("Ignoring stale quantized document statistics " + file + ", rebuild them with DocumentStatisticsBuilder");
+                }
+            }
+            File file = MappedDocumentStatistics.getFile((IndexOnDisk) index);
+            if (file.exists()) {
+                MappedDocumentStatistics ds = new MappedDocumentStatistics(file);
+                if (ds.matches(index))
+                    return ds;
+                System.err.println("Ignoring stale document statistics " + file + ", rebuild them with DocumentStatisticsBuilder");
+            }
+        }
+        return new IndexDocumentStatistics(index.getDocumentIndex());
+    }
+}
@@ -0,0 +1,194 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.DocumentIndex;
+import org.terrier.structures.DocumentIndexEntry;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+/**
+ * Writes the document statistics sidecar of an index, read by {@link MappedDocumentStatistics}, or with
+ * -quantize the quantized one, read by {@link QuantizedDocumentStatistics}, with 8 or 16-bit codes.
+ * <p>
+ * Usage: DocumentStatisticsBuilder [-quantize bits] [path prefix]
+ *
+ * @author Aldo Lipani
+ */
+public class DocumentStatisticsBuilder {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public static void main(String[] args) throws IOException {
+        int bits = 0;
+        if (args.length > 0 && args[0].equals("-quantize")) {
+            if (args.length < 2) {
+                System.err.println("Usage: DocumentStatisticsBuilder [-quantize bits] [path prefix]");
+                System.exit(1);
+            }
+            bits = Integer.parseInt(args[1]);
+            args = Arrays.copyOfRange(args, 2, args.length);
+        }
+        IndexOnDisk index = args.length == 2 ? Index.createIndex(args[0], args[1]) : Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        if (bits > 0) {
+            File file = QuantizedDocumentStatistics.getFile(index);
+            buildQuantized(index, file, bits);
+            System.err.println("Quantized document statistics written to " + file + ", relative error " +
+                    new QuantizedDocumentStatistics(file).getRelativeError());
+        } else {
+            File file = MappedDocumentStatistics.getFile(index);
+            build(index, file);
+            System.err.println("Document statistics written to " + file);
+        }
+        index.close();
+    }
+
+    public static void build(Index index, File file) throws IOException {
+        DocumentIndex doi = index.getDocumentIndex();
+        int nD = doi.getNumberOfDocuments();
+        Iterator<DocumentIndexEntry> entries = getDocumentEntries(index);
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(MappedDocumentStatistics.getColumnOffset(3, nD));
+
+            ByteBuffer header = ByteBuffer.allocate(MappedDocumentStatistics.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(MappedDocumentStatistics.MAGIC);
+            header.putInt(MappedDocumentStatistics.VERSION);
+            header.putInt(nD);
+            header.putInt(0);
+            header.putLong(index.getCollectionStatistics().getNumberOfTokens());
+            header.flip();
+            channel.write(header, 0);
+
+            ByteBuffer[] columns = new ByteBuffer[3];
+            long[] positions = new long[3];
+            for (int c = 0; c < 3; c++) {
+                columns[c] = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                positions[c] = MappedDocumentStatistics.getColumnOffset(c, nD);
+            }
+
+            for (int i = 0; i < nD; i++) {
+                DocumentIndexEntry die = entries != null ? entries.next() : doi.getDocumentEntry(i);
+                int l_d = die.getDocumentLength();
+                int nT_d = die.getNumberOfEntries();
+                columns[0].putInt(l_d);
+                columns[1].putInt(nT_d);
+                columns[2].putFloat(nT_d > 0 ? (float) l_d / nT_d : 0f);
+                if (!columns[0].hasRemaining()) {
+                    for (int c = 0; c < 3; c++)
+                        positions[c] += write(channel, columns[c], positions[c]);
+                }
+            }
+            for (int c = 0; c < 3; c++)
+                positions[c] += write(channel, columns[c], positions[c]);
+        }
+    }
+
+    /**
+     * Writes the quantized sidecar in two passes over the documents, the first finding the ranges of l_d and
+     * l_d/nT_d over the non-empty documents, the second writing the codes.
+     *
+     * @param bits 8 or 16
+     * @throws IllegalArgumentException if bits is neither 8 nor 16
+     */
+    public static void buildQuantized(Index index, File file, int bits) throws IOException {
+        DocumentIndex doi = index.getDocumentIndex();
+        int nD = doi.getNumberOfDocuments();
+        double minL = Double.POSITIVE_INFINITY, maxL = 0d, minV = Double.POSITIVE_INFINITY, maxV = 0d;
+        Iterator<DocumentIndexEntry> entries = getDocumentEntries(index);
+        for (int i = 0; i < nD; i++) {
+            DocumentIndexEntry die = entries != null ? entries.next() : doi.getDocumentEntry(i);
+            int l_d = die.getDocumentLength();
+            int nT_d = die.getNumberOfEntries();
+            if (l_d > 0 && nT_d > 0) {
+                double v_d = (double) l_d / nT_d;
+                minL = Math.min(minL, l_d);
+                maxL = Math.max(maxL, l_d);
+                minV = Math.min(minV, v_d);
+                maxV = Math.max(maxV, v_d);
+            }
+        }
+        if (maxL == 0d)
+            minL = minV = 0d;
+        QuantizedDocumentStatistics.Codebook length = new QuantizedDocumentStatistics.Codebook(minL, maxL, bits);
+        QuantizedDocumentStatistics.Codebook verboseness = new QuantizedDocumentStatistics.Codebook(minV, maxV, bits);
+
+        entries = getDocumentEntries(index);
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(QuantizedDocumentStatistics.getColumnOffset(2, nD, bits));
+
+            ByteBuffer header = ByteBuffer.allocate(QuantizedDocumentStatistics.HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(QuantizedDocumentStatistics.MAGIC);
+            header.putInt(QuantizedDocumentStatistics.VERSION);
+            header.putInt(nD);
+            header.putInt(bits);
+            header.putDouble(minL);
+            header.putDouble(maxL);
+            header.putDouble(minV);
+            header.putDouble(maxV);
+            header.putLong(index.getCollectionStatistics().getNumberOfTokens());
+            header.flip();
+            channel.write(header, 0);
+
+            ByteBuffer[] columns = new ByteBuffer[2];
+            long[] positions = new long[2];
+            for (int c = 0; c < 2; c++) {
+                columns[c] = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+                positions[c] = QuantizedDocumentStatistics.getColumnOffset(c, nD, bits);
+            }
+
+            for (int i = 0; i < nD; i++) {
+                DocumentIndexEntry die = entries != null ? entries.next() : doi.getDocumentEntry(i);
+                int l_d = die.getDocumentLength();
+                int nT_d = die.getNumberOfEntries();
+                int lengthCode = nT_d > 0 ? length.encode(l_d) : 0;
+                int verbosenessCode = nT_d > 0 ? verboseness.encode((double) l_d / nT_d) : 0;
+                if (bits == 8) {
+                    columns[0].put((byte) lengthCode);
+                    columns[1].put((byte) verbosenessCode);
+                } else {
+                    columns[0].putShort((short) lengthCode);
+                    columns[1].putShort((short) verbosenessCode);
+                }
+                if (!columns[0].hasRemaining()) {
+                    for (int c = 0; c < 2; c++)
+                        positions[c] += write(channel, columns[c], positions[c]);
+                }
+            }
+            for (int c = 0; c < 2; c++)
+                positions[c] += write(channel, columns[c], positions[c]);
+        }
+    }
+
+    /**
+     * The sequential stream of the document index avoids a random read per document, when the index has one.
+     */
+    @SuppressWarnings("unchecked")
+    private static Iterator<DocumentIndexEntry> getDocumentEntries(Index index) {
+        if (index.hasIndexStructureInputStream("document"))
+            return (Iterator<DocumentIndexEntry>) index.getIndexStructureInputStream("document");
+        return null;
+    }
+
+    private static int write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int n = buffer.remaining();
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        buffer.clear();
+        return n;
+    }
+}
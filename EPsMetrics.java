@@ -0,0 +1,285 @@
+package at.ac.tuwien.ifs;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and latency histograms of the models and of the structures they read: the postings scored and the
+ * score latency per configuration (getInfo()), the queries and their postings, the lookups of the document
+ * index, the scans of the collection statistics, and the hits of the document factor and result caches.
+ * <p>
+ * The counters are striped (LongAdder) and the histograms log-linear, with 32 buckets per power of two, so that
+ * threads recording concurrently do not contend. The latencies of the postings and of the document lookups,
+ * which are too short to be timed one by one, are timed on one in eps.metrics.sample of them, 64 by default.
+ * <p>
+ * The metrics are enabled with the property eps.metrics=true. As the flag is a static final constant, the
+ * instrumentation of the scoring path is removed by the JIT when it is false. When enabled, they are exposed
+ * as the MBean at.ac.tuwien.ifs:type=EPsMetrics, and written to the standard error every eps.metrics.interval
+ * seconds if it is set.
+ *
+ * @author Aldo Lipani
+ */
+public class EPsMetrics implements EPsMetricsMBean {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("eps.metrics", "false"));
+
+    private static final long INTERVAL = Long.parseLong(System.getProperty("eps.metrics.interval", "0"));
+    private static final int SAMPLE = Integer.highestOneBit(Math.max(1, Integer.parseInt(System.getProperty("eps.metrics.sample", "64"))));
+
+    static final Timer QUERIES = new Timer(1);
+    static final Histogram QUERY_POSTINGS = new Histogram();
+    static final Timer DOCUMENT_LOOKUPS = new Timer(SAMPLE);
+    static final Timer STATISTICS_SCANS = new Timer(1);
+    static final Timer CACHE_BUILDS = new Timer(1);
+    static final LongAdder CACHE_HITS = new LongAdder();
+    static final LongAdder CACHE_MISSES = new LongAdder();
+    static final LongAdder RESULT_CACHE_HITS = new LongAdder();
+    static final LongAdder RESULT_CACHE_MISSES = new LongAdder();
+
+    private static final Map<String, Scoring> configurations = new ConcurrentHashMap<>();
+
+    static {
+        if (ENABLED) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new EPsMetrics(), new ObjectName("at.ac.tuwien.ifs:type=EPsMetrics"));
+            } catch (JMException e) {
+                e.printStackTrace();
+            }
+            if (INTERVAL > 0) {
+                ScheduledExecutorService dump = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread t = new Thread(r, "EPsMetrics");
+                    t.setDaemon(true);
+                    return t;
+                });
+                dump.scheduleAtFixedRate(() -> System.err.print(report()), INTERVAL, INTERVAL, TimeUnit.SECONDS);
+            }
+        }
+    }
+
+    /**
+     * Returns the metrics of the scoring of a configuration.
+     */
+    static Scoring getScoring(String info) {
+        return configurations.computeIfAbsent(info, i -> new Scoring());
+    }
+
+    /**
+     * Records a query and the number of postings it read.
+     */
+    static void recordQuery(long postings, long nanos) {
+        QUERIES.count.increment();
+        QUERIES.latency.record(nanos);
+        QUERY_POSTINGS.record(postings);
+    }
+
+    /**
+     * Returns the report of all the metrics, the latencies in nanoseconds.
+     */
+    public static String report() {
+        StringBuilder sb = new StringBuilder();
+        sb.append("queries: ").append(QUERIES.latency).append(", postings per query: ").append(QUERY_POSTINGS).append('\n');
+        sb.append("document lookups: ").append(DOCUMENT_LOOKUPS).append('\n');
+        sb.append("statistics scans: ").append(STATISTICS_SCANS).append('\n');
+        sb.append("document factor cache: hits=").append(CACHE_HITS.sum()).append(" misses=").append(CACHE_MISSES.sum())
+                .append(" builds: ").append(CACHE_BUILDS).append('\n');
+        sb.append("result cache: hits=").append(RESULT_CACHE_HITS.sum()).append(" misses=").append(RESULT_CACHE_MISSES.sum()).append('\n');
+        for (Map.Entry<String, Scoring> e : new TreeMap<>(configurations).entrySet())
+            sb.append(e.getKey()).append(": terms=").append(e.getValue().terms.sum()).append(" postings: ").append(e.getValue()).append('\n');
+        return sb.toString();
+    }
+
+    public long getQueries() {
+        return QUERIES.count.sum();
+    }
+
+    public double getQueryLatencyP50() {
+        return QUERIES.latency.getValueAtPercentile(50) / 1e6;
+    }
+
+    public double getQueryLatencyP99() {
+        return QUERIES.latency.getValueAtPercentile(99) / 1e6;
+    }
+
+    public double getPostingsPerQuery() {
+        return QUERY_POSTINGS.getMean();
+    }
+
+    public long getPostingsScored() {
+        long res = 0;
+        for (Scoring s : configurations.values())
+            res += s.count.sum();
+        return res;
+    }
+
+    public long getDocumentLookups() {
+        return DOCUMENT_LOOKUPS.count.sum();
+    }
+
+    public double getDocumentLookupLatencyP99() {
+        return DOCUMENT_LOOKUPS.latency.getValueAtPercentile(99) / 1e3;
+    }
+
+    public long getStatisticsScans() {
+        return STATISTICS_SCANS.count.sum();
+    }
+
+    public double getStatisticsScanMillis() {
+        return STATISTICS_SCANS.latency.getSum() / 1e6;
+    }
+
+    public double getCacheHitRate() {
+        long hits = CACHE_HITS.sum();
+        long total = hits + CACHE_MISSES.sum();
+        return total > 0 ? (double) hits / total : 0d;
+    }
+
+    public double getResultCacheHitRate() {
+        long hits = RESULT_CACHE_HITS.sum();
+        long total = hits + RESULT_CACHE_MISSES.sum();
+        return total > 0 ? (double) hits / total : 0d;
+    }
+
+    public String[] getConfigurations() {
+        return configurations.keySet().toArray(new String[0]);
+    }
+
+    public String dump() {
+        return report();
+    }
+
+    /**
+     * A count of events and the histogram of the latency, in nanoseconds, of one in sample of them.
+     */
+    static class Timer {
+
+        final LongAdder count = new LongAdder();
+        final Histogram latency = new Histogram();
+        private final int mask;
+
+        /**
+         * Racy by design: it only decides which events are timed.
+         */
+        private int n;
+
+        Timer(int sample) {
+            this.mask = sample - 1;
+        }
+
+        /**
+         * Counts an event and returns whether it is to be timed.
+         */
+        boolean sample() {
+            count.increment();
+            return (n++ & mask) == 0;
+        }
+
+        void record(long nanos) {
+            latency.record(nanos);
+        }
+
+        /**
+         * Counts n events timed together, recording their mean latency if they are to be timed.
+         */
+        void record(long nanos, int n) {
+            count.add(n);
+            if (n > 0 && (this.n++ & mask) == 0)
+                latency.record(nanos / n, n);
+        }
+
+        public String toString() {
+            return "count=" + count.sum() + " " + latency;
+        }
+    }
+
+    /**
+     * The metrics of the scoring of a configuration: the terms prepared and the postings scored.
+     */
+    static class Scoring extends Timer {
+
+        final LongAdder terms = new LongAdder();
+
+        Scoring() {
+            super(SAMPLE);
+        }
+    }
+
+    /**
+     * A histogram of non-negative values, exact below 32 and with a relative error of at most 1/32 above.
+     */
+    public static class Histogram {
+
+        private static final int SUB_BITS = 5;
+        private static final int SUB = 1 << SUB_BITS;
+
+        private final AtomicLongArray counts = new AtomicLongArray((64 - SUB_BITS) * SUB);
+        private final LongAdder total = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        public void record(long value) {
+            record(value, 1);
+        }
+
+        public void record(long value, long n) {
+            value = Math.max(0, value);
+            counts.addAndGet(getBucket(value), n);
+            total.add(n);
+            sum.add(value * n);
+        }
+
+        private static int getBucket(long value) {
+            int msb = 63 - Long.numberOfLeadingZeros(value);
+            if (msb < SUB_BITS)
+                return (int) value;
+            return ((msb - SUB_BITS + 1) << SUB_BITS) + (int) (value >>> (msb - SUB_BITS)) - SUB;
+        }
+
+        private static long getLowerBound(int bucket) {
+            if (bucket < SUB)
+                return bucket;
+            return (long) (SUB + (bucket & (SUB - 1))) << ((bucket >>> SUB_BITS) - 1);
+        }
+
+        public long getCount() {
+            return total.sum();
+        }
+
+        public long getSum() {
+            return sum.sum();
+        }
+
+        public double getMean() {
+            long n = total.sum();
+            return n > 0 ? (double) sum.sum() / n : 0d;
+        }
+
+        /**
+         * Returns the lower bound of the bucket of the value at the percentile, or 0 if the histogram is empty.
+         */
+        public long getValueAtPercentile(double percentile) {
+            long n = total.sum();
+            long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+            long seen = 0;
+            for (int i = 0; i < counts.length(); i++) {
+                seen += counts.get(i);
+                if (seen >= rank)
+                    return getLowerBound(i);
+            }
+            return 0;
+        }
+
+        public String toString() {
+            return "n=" + getCount() + " mean=" + String.format("%.1f", getMean()) +
+                    " p50=" + getValueAtPercentile(50) + " p99=" + getValueAtPercentile(99) +
+                    " p999=" + getValueAtPercentile(99.9);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package at.ac.tuwien.ifs;
+
+/**
+ * The JMX view of {@link EPsMetrics}. The latencies are in milliseconds, those of the document lookups in
+ * microseconds.
+ *
+ * @author Aldo Lipani
+ */
+public interface EPsMetricsMBean {
+
+    long getQueries();
+
+    double getQueryLatencyP50();
+
+    double getQueryLatencyP99();
+
+    double getPostingsPerQuery();
+
+    long getPostingsScored();
+
+    long getDocumentLookups();
+
+    double getDocumentLookupLatencyP99();
+
+    long getStatisticsScans();
+
+    double getStatisticsScanMillis();
+
+    double getCacheHitRate();
+
+    double getResultCacheHitRate();
+
+    String[] getConfigurations();
+
+    /**
+     * Returns the report of all the metrics, with the histograms of every configuration.
+     */
+    String dump();
+}
@@ -0,0 +1,267 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.DocumentIndexEntry;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.IndexUtil;
+import org.terrier.structures.Lexicon;
+import org.terrier.structures.LexiconEntry;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+
+/**
+ * The collection statistics used by the EPs models: the number of non-zero length documents nZnD,
+ * the average verboseness avgV and the average term burstiness avgB.
+ * <p>
+ * The three are computed together in a single pass over the document statistics and the lexicon,
+ * and persisted in the index properties so that later loads of the same index skip the pass.
+ * <p>
+ * Usage: EPsStatistics [path prefix]
+ *
+ * @author Aldo Lipani
+ */
+public class EPsStatistics {
+
+    static final String PROPERTY_PREFIX = "eps.";
+
+    /**
+     * Number of documents below which a range is scanned sequentially.
+     */
+    private static final int THRESHOLD = 1 << 16;
+
+    public final int nZnD;
+    public final double avgV;
+    public final double avgB;
+
+    public EPsStatistics(int nZnD, double avgV, double avgB) {
+        this.nZnD = nZnD;
+        this.avgV = avgV;
+        this.avgB = avgB;
+    }
+
+    public static void main(String[] args) throws IOException {
+        IndexOnDisk index = args.length == 2 ? Index.createIndex(args[0], args[1]) : Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        EPsStatistics s = compute(index);
+        s.store(index);
+        index.close();
+        System.err.println(s);
+    }
+
+    /**
+     * Returns the statistics of the index, loading them from its properties or computing them if absent.
+     * When sampling is enabled, absent statistics are estimated by a {@link StatisticsSampler} instead, and
+     * when {@link IncrementalStatistics} are registered for the index, their latest snapshot is returned.
+     * The {@link GlobalStatistics} of a corpus the index is a shard of take precedence over both.
+     *
+     * @param index the index
+     * @return the statistics of the index
+     */
+    public static EPsStatistics get(Index index) throws IOException {
+        GlobalStatistics global = GlobalStatistics.forIndex(index);
+        if (global != null)
+            return global;
+        IncrementalStatistics incremental = IncrementalStatistics.forIndex(index);
+        if (incremental != null)
+            return incremental.getSnapshot();
+        return IndexRegistry.getStatistics(index);
+    }
+
+    /**
+     * Loads the statistics of the index from its properties, or computes and stores them unless sampling is
+     * enabled. Called once per index by the {@link IndexRegistry}, which keeps them, or samples them when null.
+     */
+    static EPsStatistics init(Index index) throws IOException {
+        EPsStatistics s = load(index);
+        if (s == null && StatisticsSampler.ENABLED)
+            return null;
+        if (s == null) {
+            s = compute(index);
+            try {
+                s.store(index);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        return s;
+    }
+
+    static EPsStatistics load(Index index) {
+        String nD = index.getIndexProperty(PROPERTY_PREFIX + "nD", null);
+        if (nD == null || Integer.parseInt(nD) != index.getCollectionStatistics().getNumberOfDocuments())
+            return null;
+        return new EPsStatistics(
+                Integer.parseInt(index.getIndexProperty(PROPERTY_PREFIX + "nZnD", "-1")),
+                Double.parseDouble(index.getIndexProperty(PROPERTY_PREFIX + "avgV", "-1")),
+                Double.parseDouble(index.getIndexProperty(PROPERTY_PREFIX + "avgB", "-1")));
+    }
+
+    void store(Index index) throws IOException {
+        index.setIndexProperty(PROPERTY_PREFIX + "nD", String.valueOf(index.getCollectionStatistics().getNumberOfDocuments()));
+        index.setIndexProperty(PROPERTY_PREFIX + "nZnD", String.valueOf(nZnD));
+        index.setIndexProperty(PROPERTY_PREFIX + "avgV", String.valueOf(avgV));
+        index.setIndexProperty(PROPERTY_PREFIX + "avgB", String.valueOf(avgB));
+        index.flush();
+    }
+
+    /**
+     * Computes the statistics of the index. The lexicon is streamed sequentially on a thread of its own, since
+     * its random access is synchronized, while the documents are scanned. The documents are split in ranges
+     * scanned in parallel when the index has a memory-mapped sidecar, otherwise they are streamed sequentially
+     * from the document index, whose random access is not thread-safe.
+     *
+     * @param index the index
+     * @return the statistics of the index
+     */
+    public static EPsStatistics compute(Index index) throws IOException {
+        long start = System.nanoTime();
+        Lexicon<String> lex = index.getLexicon();
+        ForkJoinTask<double[]> terms = ForkJoinPool.commonPool().submit(() -> {
+            try {
+                return scanTerms(index);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+
+        double[] documents;
+        DocumentStatistics ds = DocumentStatistics.forIndex(index);
+        if (ds instanceof MappedDocumentStatistics) {
+            try {
+                documents = ForkJoinPool.commonPool().invoke(new DocumentScan(ds, 0, ds.getNumberOfDocuments()));
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        } else {
+            documents = scanDocuments(index);
+        }
+
+        int nZnD = (int) documents[0];
+        double avgV = documents[1] / nZnD;
+        double avgB;
+        try {
+            avgB = terms.get()[0] / lex.numberOfEntries();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException)
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            throw new IOException(e.getCause());
+        }
+        if (EPsMetrics.ENABLED && EPsMetrics.STATISTICS_SCANS.sample())
+            EPsMetrics.STATISTICS_SCANS.record(System.nanoTime() - start);
+        return new EPsStatistics(nZnD, avgV, avgB);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static double[] scanDocuments(Index index) throws IOException {
+        double[] res = new double[2];
+        if (index.hasIndexStructureInputStream("document")) {
+            Iterator<DocumentIndexEntry> it = (Iterator<DocumentIndexEntry>) index.getIndexStructureInputStream("document");
+            try {
+                while (it.hasNext()) {
+                    DocumentIndexEntry die = it.next();
+                    add(res, die.getDocumentLength(), die.getNumberOfEntries());
+                }
+            } finally {
+                IndexUtil.close(it);
+            }
+        } else {
+            DocumentStatistics ds = DocumentStatistics.forIndex(index);
+            int nD = ds.getNumberOfDocuments();
+            for (int i = 0; i < nD; i++)
+                add(res, ds.getDocumentLength(i), ds.getNumberOfUniqueTerms(i));
+        }
+        return res;
+    }
+
+    /**
+     * Sums the burstiness l_t/nD_t of the terms, from the sequential stream of the lexicon when the index has one.
+     */
+    @SuppressWarnings("unchecked")
+    private static double[] scanTerms(Index index) throws IOException {
+        double[] res = new double[1];
+        if (index.hasIndexStructureInputStream("lexicon")) {
+            Iterator<Map.Entry<String, LexiconEntry>> it = (Iterator<Map.Entry<String, LexiconEntry>>) index.getIndexStructureInputStream("lexicon");
+            try {
+                while (it.hasNext()) {
+                    LexiconEntry tie = it.next().getValue();
+                    res[0] += (double) tie.getFrequency() / tie.getDocumentFrequency();
+                }
+            } finally {
+                IndexUtil.close(it);
+            }
+        } else {
+            Lexicon<String> lex = index.getLexicon();
+            int nT = lex.numberOfEntries();
+            for (int i = 0; i < nT; i++) {
+                LexiconEntry tie = lex.getIthLexiconEntry(i).getValue();
+                res[0] += (double) tie.getFrequency() / tie.getDocumentFrequency();
+            }
+        }
+        return res;
+    }
+
+    private static void add(double[] res, double l_d, double nT_d) {
+        if (l_d > 0) {
+            res[0]++;
+            res[1] += l_d / nT_d;
+        }
+    }
+
+    public String toString() {
+        return "nZnD=" + nZnD + " avgV=" + avgV + " avgB=" + avgB;
+    }
+
+    /**
+     * Sums the number of non-zero length documents and their verboseness over a range of document ids.
+     */
+    private static class DocumentScan extends RecursiveTask<double[]> {
+
+        private static final long serialVersionUID = 1L;
+
+        private final DocumentStatistics ds;
+        private final int from;
+        private final int to;
+
+        DocumentScan(DocumentStatistics ds, int from, int to) {
+            this.ds = ds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected double[] compute() {
+            if (to - from > THRESHOLD) {
+                int mid = (from + to) >>> 1;
+                DocumentScan left = new DocumentScan(ds, from, mid);
+                left.fork();
+                double[] res = new DocumentScan(ds, mid, to).compute();
+                double[] other = left.join();
+                res[0] += other[0];
+                res[1] += other[1];
+                return res;
+            }
+            double[] res = new double[2];
+            try {
+                for (int i = from; i < to; i++)
+                    add(res, ds.getDocumentLength(i), ds.getNumberOfUniqueTerms(i));
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            return res;
+        }
+    }
+}
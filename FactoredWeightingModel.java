@@ -0,0 +1,29 @@
+package at.ac.tuwien.ifs;
+
+/**
+ * A weighting model whose score of a posting is split into a factor that depends only on the document, the
+ * same for all the query terms prepared with the same collection statistics, and a part that depends on the
+ * term, so that a document-at-a-time matching computes the factor once per document.
+ *
+ * @author Aldo Lipani
+ */
+public interface FactoredWeightingModel {
+
+    /**
+     * Returns the part of the score that depends only on the document.
+     *
+     * @param docId the document id
+     * @param l_d   the length of the document
+     * @param nT_d  the number of unique terms of the document
+     */
+    double getDocumentFactor(int docId, double l_d, double nT_d);
+
+    /**
+     * Returns the score of a posting of the prepared query term, the same as that of score(Posting).
+     *
+     * @param tfd            the frequency of the term in the document
+     * @param l_d            the length of the document
+     * @param documentFactor the factor of the document, given by any instance prepared with the same statistics
+     */
+    double score(double tfd, double l_d, double documentFactor);
+}
@@ -0,0 +1,349 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModelLibrary;
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.EntryStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.MetaIndex;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Extracts learning to rank features: the scores of every configuration of the search space of
+ * {@link ParameterSweep} for the documents of a run. The postings of a query are read once, only those of the
+ * documents of the run kept, and the whole vector of a document computed from shared values: its pivoted
+ * length and verboseness, once per document, the normalization K, once per document and per combination,
+ * pivotization, b and a, which all the quantifications and k1 of TFs_IDF_EPs and LMDs_EPs share, and the IDF,
+ * ILF and pivoted term length and burstiness, once per query term. The features are those of score(Posting) of
+ * the models, summed over the query terms in the same order.
+ * <p>
+ * Usage: FeatureExtractor queries run output [qrels]
+ * <p>
+ * The documents of every query of the run, in the TREC format, are written to output in the SVMlight format,
+ * labelled by the qrels, 0 without, compressed if the name of output ends with .gz. The features scoring zero
+ * are left out. The getInfo() of the configuration of every feature is written, in order, to output.features.
+ *
+ * @author Aldo Lipani
+ */
+public class FeatureExtractor {
+
+    private final Index index;
+    private final DocumentStatistics ds;
+    private final MetaIndex meta;
+    private final EPsStatistics statistics;
+    private final CollectionStatistics cs;
+
+    /**
+     * The configurations of TFs_IDF_EPs and LMDs_EPs grouped by the K they share, and those of LM_TFs_IDF_EPs
+     */
+    private final List<DocumentGroup> documentGroups = new ArrayList<>();
+    private final List<TermGroup> termGroups = new ArrayList<>();
+    private final List<String> features = new ArrayList<>();
+
+    /**
+     * Pivots of the collection, as computed by the prepare() of the models
+     */
+    private final double nD;
+    private final double lengthPivot;
+    private final double[] verbosenessPivots = new double[NormalizationPivotization.values().length];
+
+    /**
+     * Per query term: the IDF of TFs_IDF_EPs and the ILF of LMDs_EPs, set by getFrequencies
+     */
+    private double[] IDF;
+    private double[] ILF;
+
+    public FeatureExtractor(Index index) throws IOException {
+        this.index = index;
+        this.ds = DocumentStatistics.forIndex(index);
+        this.meta = index.getMetaIndex();
+        this.statistics = EPsStatistics.get(index);
+        this.cs = statistics instanceof GlobalStatistics ?
+                ((GlobalStatistics) statistics).getCollectionStatistics() : index.getCollectionStatistics();
+
+        nD = statistics.nZnD;
+        double l_c = (double) cs.getNumberOfTokens() * nD;
+        lengthPivot = l_c / nD;
+        verbosenessPivots[NormalizationPivotization.NON_ELITE.ordinal()] = l_c / cs.getNumberOfUniqueTerms();
+        verbosenessPivots[NormalizationPivotization.ELITE.ordinal()] = statistics.avgV;
+
+        String[] models = System.getProperty("sweep.models", "TFs_IDF_EPs,LMDs_EPs,LM_TFs_IDF_EPs").split(",");
+        Map<String, DocumentGroup> groups = new LinkedHashMap<>();
+        for (String model : models) {
+            Map<String, String[]> space = ParameterSweep.getSpace(model);
+            String[] q = space.containsKey("q") ? space.get("q") : new String[]{null};
+            String[] k1 = space.containsKey("k1") ? space.get("k1") : new String[]{null};
+            for (String nc : space.get("nc"))
+                for (String np : space.get("np"))
+                    for (String b : space.get("b"))
+                        for (String a : space.get("a")) {
+                            if (model.equals("LM_TFs_IDF_EPs")) {
+                                LM_TFs_IDF_EPs m = new LM_TFs_IDF_EPs(nc, np, Double.parseDouble(b), Double.parseDouble(a));
+                                termGroups.add(new TermGroup(nc, np, Double.parseDouble(b), Double.parseDouble(a), features.size()));
+                                features.add(m.getInfo());
+                                continue;
+                            }
+                            DocumentGroup g = groups.computeIfAbsent(nc + "/" + np + "/" + b + "/" + a,
+                                    key -> new DocumentGroup(nc, np, Double.parseDouble(b), Double.parseDouble(a)));
+                            if (model.equals("LMDs_EPs")) {
+                                g.lmds = features.size();
+                                features.add(new LMDs_EPs(nc, np, g.b, g.a).getInfo());
+                                continue;
+                            }
+                            for (String tfq : q)
+                                for (String k : k1) {
+                                    g.add(TfQuantification.of("tf.quantification", tfq), Double.parseDouble(k), features.size());
+                                    features.add(new TFs_IDF_EPs(tfq, nc, np, g.b, g.a, Double.parseDouble(k)).getInfo());
+                                }
+                        }
+        }
+        documentGroups.addAll(groups.values());
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3) {
+            System.err.println("Usage: FeatureExtractor queries run output [qrels]");
+            System.exit(1);
+        }
+        IndexOnDisk index = Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        FeatureExtractor extractor = new FeatureExtractor(index);
+        Map<String, String[]> queries = Queries.read(args[0]);
+        Map<String, List<String>> run = readRun(args[1]);
+        Qrels qrels = args.length > 3 ? new Qrels(args[3]) : null;
+
+        try (PrintWriter names = new PrintWriter(args[2] + ".features")) {
+            for (String feature : extractor.getFeatures())
+                names.println(feature);
+        }
+        long start = System.nanoTime();
+        long pairs = 0;
+        OutputStream os = new FileOutputStream(args[2]);
+        if (args[2].endsWith(".gz"))
+            os = new GZIPOutputStream(os, 1 << 16);
+        try (Writer out = new BufferedWriter(new OutputStreamWriter(os), 1 << 16)) {
+            for (Map.Entry<String, List<String>> q : run.entrySet()) {
+                String[] terms = queries.get(q.getKey());
+                if (terms == null)
+                    continue;
+                Map<Integer, Integer> relevance = qrels != null ?
+                        qrels.getRelevance(q.getKey(), index.getMetaIndex()) : Collections.emptyMap();
+                pairs += extractor.extract(q.getKey(), terms, q.getValue(), relevance, out);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(pairs + " pairs of " + extractor.getFeatures().size() + " features in " + seconds + " s");
+        index.close();
+    }
+
+    /**
+     * Reads the documents of every query of a run in the TREC format, in the order of the run.
+     */
+    static Map<String, List<String>> readRun(String file) throws IOException {
+        Map<String, List<String>> res = new LinkedHashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 3)
+                    continue;
+                res.computeIfAbsent(tokens[0], k -> new ArrayList<>()).add(tokens[2]);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns the getInfo() of the configuration of every feature, in order.
+     */
+    public List<String> getFeatures() {
+        return features;
+    }
+
+    /**
+     * Writes the features of the documents of a query in the SVMlight format, in the order of docnos.
+     *
+     * @param terms     the query terms, after the term pipeline
+     * @param docnos    the documents, those missing from the index ignored
+     * @param relevance the labels of the documents by document id
+     * @return the number of documents written
+     */
+    public int extract(String qid, String[] terms, List<String> docnos, Map<Integer, Integer> relevance, Writer out) throws IOException {
+        List<String> found = new ArrayList<>();
+        int[] order = new int[docnos.size()];
+        for (String docno : docnos) {
+            int docId = meta.getDocument("docno", docno);
+            if (docId >= 0) {
+                order[found.size()] = docId;
+                found.add(docno);
+            }
+        }
+        int n = found.size();
+        int[] candidates = Arrays.stream(order, 0, n).sorted().distinct().toArray();
+        int[][] tfs = getFrequencies(terms, candidates);
+        int T = tfs.length;
+
+        double[] featureVector = new double[features.size()];
+        double[] pivdv = new double[verbosenessPivots.length];
+        for (int i = 0; i < n; i++) {
+            int docId = order[i];
+            int c = Arrays.binarySearch(candidates, docId);
+            double l_d = ds.getDocumentLength(docId);
+            double nT_d = ds.getNumberOfUniqueTerms(docId);
+            double pivdl = l_d / lengthPivot;
+            for (int p = 0; p < pivdv.length; p++)
+                pivdv[p] = (l_d / nT_d) / verbosenessPivots[p];
+
+            Arrays.fill(featureVector, 0d);
+            for (DocumentGroup g : documentGroups) {
+                double K = g.combination.getK(pivdl, pivdv[g.pivotization.ordinal()], g.b, g.a);
+                double lambda = K / (K + 1d);
+                for (int t = 0; t < T; t++) {
+                    double tfd = tfs[t][c];
+                    if (tfd == 0)
+                        continue;
+                    for (int j = 0; j < g.size; j++)
+                        featureVector[g.features[j]] += g.quantifications[j].getTFD(tfd, g.k1[j] * K) * IDF[t];
+                    if (g.lmds >= 0)
+                        featureVector[g.lmds] += WeightingModelLibrary.log(1d - lambda + lambda * (tfd / l_d) * ILF[t]);
+                }
+            }
+            for (TermGroup g : termGroups)
+                for (int t = 0; t < T; t++)
+                    if (tfs[t][c] != 0)
+                        featureVector[g.feature] += tfs[t][c] * g.IDF[t];
+            write(qid, found.get(i), relevance.getOrDefault(docId, 0), featureVector, out);
+        }
+        return n;
+    }
+
+    /**
+     * Reads the postings of the query terms once, keeping the frequencies in the candidates, and computes the
+     * constants of the terms.
+     *
+     * @return per term found in the lexicon, the frequency of the term in each candidate, 0 if absent
+     */
+    private int[][] getFrequencies(String[] terms, int[] candidates) throws IOException {
+        List<int[]> res = new ArrayList<>();
+        List<EntryStatistics> entries = new ArrayList<>();
+        for (String term : terms) {
+            LexiconEntry le = index.getLexicon().getLexiconEntry(term);
+            if (le == null)
+                continue;
+            res.add(QueryPostings.loadFrequencies(index, le, candidates));
+            entries.add(statistics instanceof GlobalStatistics ? ((GlobalStatistics) statistics).getEntryStatistics(le) : le);
+        }
+
+        int T = res.size();
+        IDF = new double[T];
+        ILF = new double[T];
+        double l_c = (double) cs.getNumberOfTokens() * nD;
+        double l_cq = cs.getAverageDocumentLength() * nD;
+        for (TermGroup g : termGroups)
+            g.IDF = new double[T];
+        for (int t = 0; t < T; t++) {
+            double df = entries.get(t).getDocumentFrequency();
+            double l_t = entries.get(t).getFrequency();
+            IDF[t] = WeightingModelLibrary.log(nD / df);
+            ILF[t] = l_c / l_t;
+            for (TermGroup g : termGroups) {
+                double pivtb = g.pivotization == NormalizationPivotization.ELITE ?
+                        (l_t / df) / statistics.avgB : (l_t / df) / (l_cq / nD);
+                double pivtl = l_t / (l_cq / nD);
+                double KT = g.combination.getK(pivtl, pivtb, g.b, g.a);
+                double lambdaq = KT / (KT + 1);
+                g.IDF[t] = WeightingModelLibrary.log(1d - lambdaq + lambdaq * nD / df);
+            }
+        }
+        return res.toArray(new int[T][]);
+    }
+
+    private static void write(String qid, String docno, int label, double[] featureVector, Writer out) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        sb.append(label).append(" qid:").append(qid);
+        for (int f = 0; f < featureVector.length; f++)
+            if (featureVector[f] != 0d)
+                sb.append(' ').append(f + 1).append(':').append(featureVector[f]);
+        sb.append(" # ").append(docno).append('\n');
+        out.write(sb.toString());
+    }
+
+    /**
+     * The configurations of TFs_IDF_EPs, and that of LMDs_EPs if any, sharing a combination, pivotization, b
+     * and a, hence the normalization K of a document.
+     */
+    private static class DocumentGroup {
+
+        final NormalizationCombination combination;
+        final NormalizationPivotization pivotization;
+        final double b;
+        final double a;
+
+        TfQuantification[] quantifications = new TfQuantification[0];
+        double[] k1 = new double[0];
+        int[] features = new int[0];
+        int size;
+        int lmds = -1;
+
+        DocumentGroup(String nc, String np, double b, double a) {
+            this.combination = NormalizationCombination.of("tf.normalization.combination", nc);
+            this.pivotization = NormalizationPivotization.of("tf.normalization.pivotization", np);
+            this.b = b;
+            this.a = a;
+        }
+
+        void add(TfQuantification quantification, double k1, int feature) {
+            quantifications = Arrays.copyOf(quantifications, size + 1);
+            this.k1 = Arrays.copyOf(this.k1, size + 1);
+            features = Arrays.copyOf(features, size + 1);
+            quantifications[size] = quantification;
+            this.k1[size] = k1;
+            features[size++] = feature;
+        }
+    }
+
+    /**
+     * A configuration of LM_TFs_IDF_EPs, whose score depends on the document through the tf only.
+     */
+    private static class TermGroup {
+
+        final NormalizationCombination combination;
+        final NormalizationPivotization pivotization;
+        final double b;
+        final double a;
+        final int feature;
+
+        /**
+         * The IDF of every query term, set by getFrequencies
+         */
+        double[] IDF;
+
+        TermGroup(String nc, String np, double b, double a, int feature) {
+            this.combination = NormalizationCombination.of("lambdaq.normalization.combination", nc);
+            this.pivotization = NormalizationPivotization.of("lambdaq.normalization.pivotization", np);
+            this.b = b;
+            this.a = a;
+            this.feature = feature;
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.BasicTermStatsLexiconEntry;
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.EntryStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.Lexicon;
+import org.terrier.structures.LexiconEntry;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The statistics of a whole corpus, merged from the {@link ShardStatistics} of its shards, bound to the index of
+ * one shard. Once registered for the index, {@link EPsStatistics#get} returns them, and the models score with
+ * their collection statistics and the frequencies of the terms in the corpus instead of those of the shard.
+ * <p>
+ * They are registered in process with {@link #register}, or loaded on first use from the file of the property
+ * eps.global.statistics, written by ShardStatistics -merge.
+ *
+ * @author Aldo Lipani
+ */
+public class GlobalStatistics extends EPsStatistics {
+
+    private static final String FILE = System.getProperty("eps.global.statistics");
+
+    private static final Map<Index, GlobalStatistics> registered = new IdentityHashMap<>();
+
+    private final CollectionStatistics cs;
+
+    /**
+     * The frequencies and document frequencies in the corpus of the terms of the shard, by term id, or -1 for
+     * the terms missing from the global statistics
+     */
+    private final int[] termFrequencies;
+    private final int[] documentFrequencies;
+
+    private GlobalStatistics(EPsStatistics s, CollectionStatistics cs, int[] termFrequencies, int[] documentFrequencies) {
+        super(s.nZnD, s.avgV, s.avgB);
+        this.cs = cs;
+        this.termFrequencies = termFrequencies;
+        this.documentFrequencies = documentFrequencies;
+    }
+
+    /**
+     * Binds the global sums to the index of a shard and registers them for the index.
+     *
+     * @param index  the index of the shard
+     * @param global the sums of all the shards
+     * @return the statistics of the shard
+     */
+    public static synchronized GlobalStatistics register(Index index, ShardStatistics global) {
+        CollectionStatistics cs = new CollectionStatistics(global.nD, global.terms.length,
+                global.numberOfTokens, global.numberOfPointers, new long[0]);
+        Lexicon<String> lex = index.getLexicon();
+        int nT = lex.numberOfEntries();
+        int[] termFrequencies = new int[nT];
+        int[] documentFrequencies = new int[nT];
+        for (int i = 0; i < nT; i++) {
+            Map.Entry<String, LexiconEntry> e = lex.getIthLexiconEntry(i);
+            int termId = e.getValue().getTermId();
+            int t = Arrays.binarySearch(global.terms, e.getKey());
+            termFrequencies[termId] = t >= 0 ? global.termFrequencies[t] : -1;
+            documentFrequencies[termId] = t >= 0 ? global.documentFrequencies[t] : -1;
+        }
+        GlobalStatistics s = new GlobalStatistics(global.getStatistics(), cs, termFrequencies, documentFrequencies);
+        registered.put(index, s);
+        return s;
+    }
+
+    public static synchronized void unregister(Index index) {
+        registered.remove(index);
+    }
+
+    /**
+     * Returns the global statistics registered for the index, loading them from the file of the property
+     * eps.global.statistics if set, or null if there are none.
+     */
+    static synchronized GlobalStatistics forIndex(Index index) throws IOException {
+        GlobalStatistics s = registered.get(index);
+        if (s == null && FILE != null)
+            s = register(index, ShardStatistics.read(new File(FILE)));
+        return s;
+    }
+
+    /**
+     * Returns the collection statistics of the corpus.
+     */
+    public CollectionStatistics getCollectionStatistics() {
+        return cs;
+    }
+
+    /**
+     * Returns the statistics in the corpus of a term of the shard, or those of the shard if the term is missing
+     * from the global statistics.
+     */
+    public EntryStatistics getEntryStatistics(EntryStatistics local) {
+        int termId = local.getTermId();
+        if (termId < 0 || termId >= termFrequencies.length || termFrequencies[termId] < 0)
+            return local;
+        return new BasicTermStatsLexiconEntry(termFrequencies[termId], documentFrequencies[termId], termId);
+    }
+
+    public String toString() {
+        return super.toString() + " nD=" + cs.getNumberOfDocuments() + " tokens=" + cs.getNumberOfTokens();
+    }
+}
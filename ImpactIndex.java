@@ -0,0 +1,202 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The impact-ordered postings of an index for one configuration of a model, read from a memory-mapped file
+ * written by {@link ImpactIndexBuilder}. The score of every posting is quantised to an integer impact, negative
+ * for a negative score, and the postings of a term are grouped in segments of equal impact, highest first, each
+ * holding the ids of its documents in ascending order, as variable-byte encoded gaps. The score of a document is
+ * approximated by the sum of the impacts of its postings times the scale.
+ * <p>
+ * After a fixed header, with the numbers of documents and of tokens of the index it was built from, which tell
+ * a stale file apart, and the getInfo() of the configuration, the file holds the offset of the postings of
+ * every term id, then the postings: the number of segments of the term, then per segment its impact, number
+ * of documents and number of bytes, followed by the bytes.
+ *
+ * @author Aldo Lipani
+ */
+public class ImpactIndex {
+
+    static final String SUFFIX = ".impacts";
+
+    static final int MAGIC = 0x45504951;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 48;
+    static final int SEGMENT_HEADER_SIZE = 12;
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final int levels;
+    private final int nT;
+    private final int nD;
+    private final long numberOfTokens;
+    private final double scale;
+    private final String info;
+    private final long termsOffset;
+
+    private final MappedByteBuffer[] segments;
+
+    public ImpactIndex(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, 1L << SEGMENT_SHIFT));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        if (segments.length == 0 || segments[0].getInt(0) != MAGIC || segments[0].getInt(4) != VERSION)
+            throw new IOException("Not an impact file of version " + VERSION + ": " + file);
+        levels = segments[0].getInt(8);
+        nT = segments[0].getInt(12);
+        scale = segments[0].getDouble(16);
+        nD = segments[0].getInt(28);
+        numberOfTokens = segments[0].getLong(32);
+        long size = 0L;
+        for (MappedByteBuffer segment : segments)
+            size += segment.capacity();
+        int infoLength = segments[0].getInt(24);
+        if (size < getTermsOffset(infoLength) + 8L * nT)
+            throw new IOException("Truncated impact file: " + file);
+        byte[] bytes = new byte[infoLength];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = segments[0].get(HEADER_SIZE + i);
+        info = new String(bytes, StandardCharsets.UTF_8);
+        termsOffset = getTermsOffset(bytes.length);
+    }
+
+    /**
+     * Returns the impacts of the index, or null if it has none. Impacts built from an index with other numbers
+     * of documents, tokens or terms are stale, and are ignored with a warning.
+     */
+    public static ImpactIndex forIndex(Index index) throws IOException {
+        if (index instanceof IndexOnDisk) {
+            File file = getFile((IndexOnDisk) index);
+            if (file.exists()) {
+                ImpactIndex impacts = new ImpactIndex(file);
+                if (impacts.matches(index))
+                    return impacts;
+                System.err.println("Ignoring stale impacts " + file + ", rebuild them with ImpactIndexBuilder");
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns true if the file was built from an index with the same numbers of documents, tokens and terms as
+     * this one.
+     */
+    boolean matches(Index index) {
+        CollectionStatistics cs = index.getCollectionStatistics();
+        return nD == cs.getNumberOfDocuments() && numberOfTokens == cs.getNumberOfTokens()
+                && nT == cs.getNumberOfUniqueTerms();
+    }
+
+    static File getFile(IndexOnDisk index) {
+        return new File(index.getPath(), index.getPrefix() + SUFFIX);
+    }
+
+    static long getTermsOffset(int infoLength) {
+        return HEADER_SIZE + ((infoLength + 7) & ~7);
+    }
+
+    /**
+     * Returns the getInfo() of the configuration whose scores are quantised.
+     */
+    public String getInfo() {
+        return info;
+    }
+
+    /**
+     * Returns the highest impact, the lowest being its opposite.
+     */
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * Returns the score of an impact of 1.
+     */
+    public double getScale() {
+        return scale;
+    }
+
+    public int getNumberOfSegments(int termId) {
+        return getInt(getLong(termsOffset + 8L * termId));
+    }
+
+    /**
+     * Returns the position of the first segment of the term.
+     */
+    public long getFirstSegment(int termId) {
+        return getLong(termsOffset + 8L * termId) + 4;
+    }
+
+    public long getNextSegment(long segment) {
+        return segment + SEGMENT_HEADER_SIZE + getInt(segment + 8);
+    }
+
+    public int getImpact(long segment) {
+        return getInt(segment);
+    }
+
+    public int getNumberOfPostings(long segment) {
+        return getInt(segment + 4);
+    }
+
+    /**
+     * Decodes the first n document ids of the segment into docIds.
+     */
+    public void getDocIds(long segment, int[] docIds, int n) {
+        long position = segment + SEGMENT_HEADER_SIZE;
+        int docId = -1;
+        for (int i = 0; i < n; i++) {
+            int gap = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = getByte(position++);
+                gap |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            docId += gap;
+            docIds[i] = docId;
+        }
+    }
+
+    private byte getByte(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].get((int) (position & SEGMENT_MASK));
+    }
+
+    /**
+     * Reads an int, which may cross two mapped segments, the postings being byte-aligned.
+     */
+    private int getInt(long position) {
+        int s = (int) (position >>> SEGMENT_SHIFT);
+        int p = (int) (position & SEGMENT_MASK);
+        if (p + 4 <= segments[s].limit())
+            return segments[s].getInt(p);
+        int res = 0;
+        for (int i = 0; i < 4; i++)
+            res |= (getByte(position + i) & 0xFF) << (8 * i);
+        return res;
+    }
+
+    private long getLong(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].getLong((int) (position & SEGMENT_MASK));
+    }
+}
@@ -0,0 +1,223 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.querying.Request;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexConfigurable;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.Lexicon;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.postings.IterablePosting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * Writes the impact-ordered postings of an index for the configuration of the model of the property
+ * trec.model, read by {@link ImpactIndex}. The scores are quantised uniformly in eps.impacts.levels
+ * impacts, 255 by default, the highest absolute score of the index taking the highest impact. The negative
+ * scores, of LMDs_EPs when a term is less frequent in a document than in the collection, or of TFs_IDF_EPs
+ * with a negative IDF, take negative impacts, so that the score of every posting is within half an impact of
+ * its impact. The postings of impact 0 are left out.
+ * <p>
+ * Usage: ImpactIndexBuilder [path prefix]
+ *
+ * @author Aldo Lipani
+ */
+public class ImpactIndexBuilder {
+
+    private static final int LEVELS = Integer.parseInt(System.getProperty("eps.impacts.levels", "255"));
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    public static void main(String[] args) throws Exception {
+        IndexOnDisk index = args.length == 2 ? Index.createIndex(args[0], args[1]) : Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        WeightingModel model = Models.fromProperties();
+        File file = ImpactIndex.getFile(index);
+        build(index, model, file, LEVELS);
+        index.close();
+        System.err.println("Impacts of " + model.getInfo() + " written to " + file);
+    }
+
+    public static void build(Index index, WeightingModel model, File file, int levels) throws IOException {
+        Lexicon<String> lex = index.getLexicon();
+        int nT = lex.numberOfEntries();
+        Request rq = new Request();
+        rq.setIndex(index);
+        if (model instanceof IndexConfigurable)
+            ((IndexConfigurable) model).setIndex(index);
+        model.setRequest(rq);
+        model.setCollectionStatistics(index.getCollectionStatistics());
+        model.setKeyFrequency(1d);
+
+        double max = 0d;
+        int maxDf = 0;
+        for (int i = 0; i < nT; i++) {
+            LexiconEntry le = lex.getIthLexiconEntry(i).getValue();
+            model.setEntryStatistics(le);
+            model.prepare();
+            IterablePosting ip = index.getInvertedIndex().getPostings(le);
+            while (ip.next() != IterablePosting.EOL)
+                max = Math.max(max, Math.abs(model.score(ip)));
+            ip.close();
+            maxDf = Math.max(maxDf, le.getDocumentFrequency());
+        }
+        double scale = max > 0 ? max / levels : 1d;
+
+        byte[] info = model.getInfo().getBytes(StandardCharsets.UTF_8);
+        long termsOffset = ImpactIndex.getTermsOffset(info.length);
+        long[] offsets = new long[nT];
+        int[] docIds = new int[maxDf];
+        int[] impacts = new int[maxDf];
+        int[] sortedDocIds = new int[maxDf];
+        int[] sortedImpacts = new int[maxDf];
+        int[] counts = new int[2 * levels + 1];
+        byte[] bytes = new byte[5 * maxDf];
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            ByteBuffer header = ByteBuffer.allocate((int) termsOffset).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(ImpactIndex.MAGIC);
+            header.putInt(ImpactIndex.VERSION);
+            header.putInt(levels);
+            header.putInt(nT);
+            header.putDouble(scale);
+            header.putInt(info.length);
+            header.putInt(index.getCollectionStatistics().getNumberOfDocuments());
+            header.putLong(index.getCollectionStatistics().getNumberOfTokens());
+            header.putLong(0L);
+            header.put(info);
+            header.position(header.capacity());
+            write(channel, header, 0);
+
+            Output out = new Output(channel, termsOffset + 8L * nT);
+            for (int i = 0; i < nT; i++) {
+                LexiconEntry le = lex.getIthLexiconEntry(i).getValue();
+                model.setEntryStatistics(le);
+                model.prepare();
+                IterablePosting ip = index.getInvertedIndex().getPostings(le);
+                int n = 0;
+                while (ip.next() != IterablePosting.EOL) {
+                    int impact = (int) Math.max(-levels, Math.min(levels, Math.round(model.score(ip) / scale)));
+                    if (impact != 0) {
+                        docIds[n] = ip.getId();
+                        impacts[n++] = impact;
+                    }
+                }
+                ip.close();
+
+                // counting sort by decreasing impact, stable so that the documents of a segment stay in order
+                Arrays.fill(counts, 0);
+                for (int j = 0; j < n; j++)
+                    counts[levels - impacts[j]]++;
+                int numberOfSegments = 0;
+                for (int l = 0, sum = 0; l < counts.length; l++) {
+                    if (counts[l] > 0)
+                        numberOfSegments++;
+                    int c = counts[l];
+                    counts[l] = sum;
+                    sum += c;
+                }
+                for (int j = 0; j < n; j++) {
+                    int k = counts[levels - impacts[j]]++;
+                    sortedDocIds[k] = docIds[j];
+                    sortedImpacts[k] = impacts[j];
+                }
+
+                offsets[le.getTermId()] = out.position;
+                out.putInt(numberOfSegments);
+                for (int from = 0, to; from < n; from = to) {
+                    int length = 0;
+                    int previous = -1;
+                    for (to = from; to < n && sortedImpacts[to] == sortedImpacts[from]; to++) {
+                        int gap = sortedDocIds[to] - previous;
+                        previous = sortedDocIds[to];
+                        while ((gap & ~0x7F) != 0) {
+                            bytes[length++] = (byte) ((gap & 0x7F) | 0x80);
+                            gap >>>= 7;
+                        }
+                        bytes[length++] = (byte) gap;
+                    }
+                    out.putInt(sortedImpacts[from]);
+                    out.putInt(to - from);
+                    out.putInt(length);
+                    out.put(bytes, length);
+                }
+            }
+            out.flush();
+
+            Output table = new Output(channel, termsOffset);
+            for (int i = 0; i < nT; i++)
+                table.putLong(offsets[i]);
+            table.flush();
+        }
+    }
+
+    private static int write(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        buffer.flip();
+        int n = buffer.remaining();
+        while (buffer.hasRemaining())
+            position += channel.write(buffer, position);
+        buffer.clear();
+        return n;
+    }
+
+    /**
+     * A buffered sequential writer at a position of the file.
+     */
+    private static class Output {
+
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+
+        /**
+         * The position in the file of the next byte
+         */
+        long position;
+
+        Output(FileChannel channel, long position) {
+            this.channel = channel;
+            this.position = position;
+        }
+
+        void putInt(int value) throws IOException {
+            if (buffer.remaining() < 4)
+                flush();
+            buffer.putInt(value);
+            position += 4;
+        }
+
+        void putLong(long value) throws IOException {
+            if (buffer.remaining() < 8)
+                flush();
+            buffer.putLong(value);
+            position += 8;
+        }
+
+        void put(byte[] bytes, int length) throws IOException {
+            for (int i = 0; i < length; ) {
+                if (!buffer.hasRemaining())
+                    flush();
+                int n = Math.min(length - i, buffer.remaining());
+                buffer.put(bytes, i, n);
+                i += n;
+                position += n;
+            }
+        }
+
+        void flush() throws IOException {
+            write(channel, buffer, position - buffer.position());
+        }
+    }
+}
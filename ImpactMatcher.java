@@ -0,0 +1,180 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.MetaIndex;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Map;
+
+/**
+ * Score-at-a-time retrieval over an {@link ImpactIndex}: the segments of all the query terms are processed by
+ * decreasing impact, adding their impact to the accumulators of their documents, so that the best documents
+ * are found first, and the negative impacts last. The processing stops after eps.impacts.postings postings or
+ * eps.impacts.time milliseconds, if set, which bounds the latency of a query at the cost of the tail of its
+ * ranking. The budgets are checked between segments, the postings budget ending within a segment.
+ * <p>
+ * The impacts replace the scores of the model of the property trec.model, so the command refuses impacts built
+ * for another configuration, or from another build of the index.
+ * <p>
+ * Usage: ImpactMatcher queries [k]
+ *
+ * @author Aldo Lipani
+ */
+public class ImpactMatcher {
+
+    private static final long POSTINGS = Long.parseLong(System.getProperty("eps.impacts.postings", String.valueOf(Long.MAX_VALUE)));
+    private static final long TIME = Long.parseLong(System.getProperty("eps.impacts.time", "0"));
+
+    private final Index index;
+    private final ImpactIndex impacts;
+
+    /**
+     * The accumulators of the documents, and the documents with a posting processed, whose accumulators may be
+     * zero once their negative impacts are added
+     */
+    private final int[] accumulators;
+    private final BitSet isTouched;
+    private int[] touched = new int[1024];
+
+    private long[] segments = new long[64];
+    private long[] order = new long[64];
+    private int[] docIds = new int[1024];
+
+    private long processedPostings;
+    private int interruptedQueries;
+
+    /**
+     * @throws IllegalArgumentException if the impacts were built from another index
+     */
+    public ImpactMatcher(Index index, ImpactIndex impacts) {
+        if (!impacts.matches(index))
+            throw new IllegalArgumentException("The impacts are stale for " + index);
+        this.index = index;
+        this.impacts = impacts;
+        this.accumulators = new int[index.getCollectionStatistics().getNumberOfDocuments()];
+        this.isTouched = new BitSet(accumulators.length);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ImpactMatcher queries [k]");
+            System.exit(1);
+        }
+        IndexOnDisk index = Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        ImpactIndex impacts = ImpactIndex.forIndex(index);
+        if (impacts == null) {
+            System.err.println("The index has no impacts, run ImpactIndexBuilder first");
+            System.exit(1);
+        }
+        String info = Models.fromProperties().getInfo();
+        if (!impacts.getInfo().equals(info)) {
+            System.err.println("The impacts are of " + impacts.getInfo() + ", not of " + info + ", run ImpactIndexBuilder with it");
+            System.exit(1);
+        }
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        MetaIndex meta = index.getMetaIndex();
+
+        ImpactMatcher matcher = new ImpactMatcher(index, impacts);
+        int[] docIds = new int[k];
+        double[] scores = new double[k];
+        for (Map.Entry<String, String[]> q : Queries.read(args[0]).entrySet()) {
+            int n = matcher.match(q.getValue(), k, POSTINGS, TIME * 1000000L, docIds, scores);
+            for (int i = 0; i < n; i++)
+                System.out.println(q.getKey() + " Q0 " + meta.getItem("docno", docIds[i]) + " " + i + " " + scores[i] + " " + impacts.getInfo());
+        }
+        System.err.println("Processed " + matcher.processedPostings + " postings, " + matcher.interruptedQueries + " queries interrupted");
+        index.close();
+    }
+
+    /**
+     * Writes the k best documents for the query terms into docIds and scores, best first.
+     *
+     * @param terms    the query terms, after the term pipeline
+     * @param k        the number of documents
+     * @param postings the maximum number of postings processed
+     * @param time     the maximum time, in nanoseconds, or 0 for none
+     * @return the number of documents written
+     */
+    public int match(String[] terms, int k, long postings, long time, int[] docIds, double[] scores) throws IOException {
+        long start = System.nanoTime();
+        long processed = processedPostings;
+        int n = 0;
+        for (String term : terms) {
+            LexiconEntry le = index.getLexicon().getLexiconEntry(term);
+            if (le == null)
+                continue;
+            int termId = le.getTermId();
+            long segment = impacts.getFirstSegment(termId);
+            for (int s = impacts.getNumberOfSegments(termId); s > 0; s--) {
+                if (n == segments.length) {
+                    segments = Arrays.copyOf(segments, 2 * n);
+                    order = new long[2 * n];
+                }
+                segments[n++] = segment;
+                segment = impacts.getNextSegment(segment);
+            }
+        }
+        // by decreasing impact, then in the order of the terms
+        for (int s = 0; s < n; s++)
+            order[s] = (long) (impacts.getLevels() - impacts.getImpact(segments[s])) << 32 | s;
+        Arrays.sort(order, 0, n);
+
+        int numberOfTouched = 0;
+        long remaining = postings;
+        boolean interrupted = false;
+        for (int s = 0; s < n; s++) {
+            if (remaining <= 0 || (time > 0 && System.nanoTime() - start > time)) {
+                interrupted = true;
+                break;
+            }
+            long segment = segments[(int) order[s]];
+            int impact = impacts.getImpact(segment);
+            int count = (int) Math.min(remaining, impacts.getNumberOfPostings(segment));
+            if (count > this.docIds.length)
+                this.docIds = new int[Math.max(count, 2 * this.docIds.length)];
+            impacts.getDocIds(segment, this.docIds, count);
+            for (int i = 0; i < count; i++) {
+                int docId = this.docIds[i];
+                if (!isTouched.get(docId)) {
+                    isTouched.set(docId);
+                    if (numberOfTouched == touched.length)
+                        touched = Arrays.copyOf(touched, 2 * numberOfTouched);
+                    touched[numberOfTouched++] = docId;
+                }
+                accumulators[docId] += impact;
+            }
+            remaining -= count;
+            processedPostings += count;
+        }
+        if (interrupted)
+            interruptedQueries++;
+
+        TopK top = new TopK(k);
+        double scale = impacts.getScale();
+        for (int i = 0; i < numberOfTouched; i++) {
+            int docId = touched[i];
+            top.add(docId, accumulators[docId] * scale);
+            accumulators[docId] = 0;
+            isTouched.clear(docId);
+        }
+        if (EPsMetrics.ENABLED)
+            EPsMetrics.recordQuery(processedPostings - processed, System.nanoTime() - start);
+        return top.drain(docIds, scores);
+    }
+
+    public long getNumberOfProcessedPostings() {
+        return processedPostings;
+    }
+
+    public int getNumberOfInterruptedQueries() {
+        return interruptedQueries;
+    }
+}
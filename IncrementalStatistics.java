@@ -0,0 +1,200 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.Index;
+import org.terrier.structures.Lexicon;
+import org.terrier.structures.LexiconEntry;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * The collection statistics of an index that grows or shrinks, maintained from the running sums they are
+ * made of: the number of non-zero length documents, the sum of their verboseness l_d/nT_d, and the sum of the
+ * burstiness l_t/nD_t of the terms, kept with the frequencies of every term. Adding or removing a document
+ * costs a constant time per unique term of the document, whatever the size of the collection.
+ * <p>
+ * Once registered for an index, {@link EPsStatistics#get} returns its latest snapshot, an immutable
+ * {@link EPsStatistics} published after every update. A model takes a snapshot on its first prepare() and
+ * keeps it, as do the clones made of it afterwards. The matchers of this package prepare the first query term
+ * and clone the others from it, or prepare one instance for all the terms, so a query sees one snapshot.
+ * Terrier's matching clones every term from an unprepared model, and each clone takes the latest snapshot on
+ * its own prepare(), so an update between the terms of a query may give them different snapshots.
+ * <p>
+ * The sums are compensated (Neumaier), so that removals do not let the rounding errors drift with the number
+ * of updates.
+ *
+ * @author Aldo Lipani
+ */
+public class IncrementalStatistics {
+
+    private static final Map<Index, IncrementalStatistics> registered = new IdentityHashMap<>();
+
+    private final Map<String, Integer> termIds;
+    private int[] termFrequencies;
+    private int[] documentFrequencies;
+    private int nT;
+
+    private int nZnD;
+    private final Sum sumV = new Sum();
+    private final Sum sumB = new Sum();
+
+    private volatile EPsStatistics snapshot;
+
+    /**
+     * Starts from the statistics of the index, its documents summed from {@link EPsStatistics#get} and its
+     * terms read from the lexicon.
+     */
+    public IncrementalStatistics(Index index) throws IOException {
+        EPsStatistics s = EPsStatistics.get(index);
+        nZnD = s.nZnD;
+        sumV.add(s.avgV * s.nZnD);
+
+        Lexicon<String> lex = index.getLexicon();
+        int n = lex.numberOfEntries();
+        termIds = new HashMap<>(2 * n);
+        termFrequencies = new int[Math.max(16, n)];
+        documentFrequencies = new int[termFrequencies.length];
+        for (int i = 0; i < n; i++) {
+            Map.Entry<String, LexiconEntry> e = lex.getIthLexiconEntry(i);
+            int t = getTermId(e.getKey());
+            termFrequencies[t] = e.getValue().getFrequency();
+            documentFrequencies[t] = e.getValue().getDocumentFrequency();
+            sumB.add((double) termFrequencies[t] / documentFrequencies[t]);
+        }
+        publish();
+    }
+
+    /**
+     * Returns the incremental statistics of the index, created and registered on the first call.
+     */
+    public static synchronized IncrementalStatistics register(Index index) throws IOException {
+        IncrementalStatistics s = registered.get(index);
+        if (s == null) {
+            s = new IncrementalStatistics(index);
+            registered.put(index, s);
+        }
+        return s;
+    }
+
+    public static synchronized void unregister(Index index) {
+        registered.remove(index);
+    }
+
+    /**
+     * Returns the incremental statistics registered for the index, or null if there are none.
+     */
+    static synchronized IncrementalStatistics forIndex(Index index) {
+        return registered.get(index);
+    }
+
+    /**
+     * Returns the statistics after the last update.
+     */
+    public EPsStatistics getSnapshot() {
+        return snapshot;
+    }
+
+    /**
+     * Adds a document to the statistics.
+     *
+     * @param terms the frequencies of the terms of the document
+     */
+    public synchronized void addDocument(Map<String, Integer> terms) {
+        update(terms, 1);
+    }
+
+    /**
+     * Removes a document, added before or present in the index, from the statistics.
+     *
+     * @param terms the frequencies of the terms of the document
+     * @throws IllegalArgumentException if a term is not in the statistics, or is in fewer documents or with a
+     *                                  lower frequency than the document would remove, in which case the
+     *                                  statistics are left unchanged
+     */
+    public synchronized void removeDocument(Map<String, Integer> terms) {
+        for (Map.Entry<String, Integer> e : terms.entrySet()) {
+            int tf = e.getValue();
+            if (tf <= 0)
+                continue;
+            Integer t = termIds.get(e.getKey());
+            if (t == null)
+                throw new IllegalArgumentException("Unknown term " + e.getKey());
+            if (documentFrequencies[t] < 1 || termFrequencies[t] < tf)
+                throw new IllegalArgumentException("The term " + e.getKey() + " is not in the document to remove");
+        }
+        update(terms, -1);
+    }
+
+    private void update(Map<String, Integer> terms, int sign) {
+        long l_d = 0;
+        int nT_d = 0;
+        for (Map.Entry<String, Integer> e : terms.entrySet()) {
+            int tf = e.getValue();
+            if (tf <= 0)
+                continue;
+            l_d += tf;
+            nT_d++;
+            int t = getTermId(e.getKey());
+            if (documentFrequencies[t] > 0)
+                sumB.add(-(double) termFrequencies[t] / documentFrequencies[t]);
+            termFrequencies[t] += sign * tf;
+            documentFrequencies[t] += sign;
+            if (documentFrequencies[t] > 0)
+                sumB.add((double) termFrequencies[t] / documentFrequencies[t]);
+        }
+        if (l_d > 0) {
+            nZnD += sign;
+            sumV.add(sign * (double) l_d / nT_d);
+        }
+        publish();
+    }
+
+    /**
+     * Returns the id of the term, adding it if it is new.
+     */
+    private int getTermId(String term) {
+        Integer t = termIds.get(term);
+        if (t == null) {
+            if (nT == termFrequencies.length) {
+                termFrequencies = Arrays.copyOf(termFrequencies, 2 * nT);
+                documentFrequencies = Arrays.copyOf(documentFrequencies, 2 * nT);
+            }
+            t = nT++;
+            termIds.put(term, t);
+        }
+        return t;
+    }
+
+    /**
+     * The terms whose last document was removed are still counted in avgB, as they are in the lexicon of the
+     * index, with a burstiness of 0.
+     */
+    private void publish() {
+        snapshot = new EPsStatistics(nZnD, nZnD > 0 ? sumV.get() / nZnD : 0d, nT > 0 ? sumB.get() / nT : 0d);
+    }
+
+    /**
+     * A sum with Neumaier compensation.
+     */
+    private static class Sum {
+
+        private double sum;
+        private double compensation;
+
+        void add(double value) {
+            double t = sum + value;
+            if (Math.abs(sum) >= Math.abs(value))
+                compensation += (sum - t) + value;
+            else
+                compensation += (value - t) + sum;
+            sum = t;
+        }
+
+        double get() {
+            return sum + compensation;
+        }
+    }
+}
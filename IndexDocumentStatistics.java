@@ -0,0 +1,59 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.DocumentIndex;
+import org.terrier.structures.DocumentIndexEntry;
+
+import java.io.IOException;
+
+/**
+ * Document statistics read through the DocumentIndex of the index, one lookup per call.
+ * Lookups are synchronized on the DocumentIndex, whose random access is not thread-safe.
+ *
+ * @author Aldo Lipani
+ */
+public class IndexDocumentStatistics implements DocumentStatistics {
+
+    private final DocumentIndex doi;
+
+    public IndexDocumentStatistics(DocumentIndex doi) {
+        this.doi = doi;
+    }
+
+    public int getNumberOfDocuments() {
+        return doi.getNumberOfDocuments();
+    }
+
+    public double getDocumentLength(int docId) throws IOException {
+        synchronized (doi) {
+            return doi.getDocumentLength(docId);
+        }
+    }
+
+    public double getNumberOfUniqueTerms(int docId) throws IOException {
+        return (int) getDocumentEntry(docId);
+    }
+
+    public double getVerboseness(int docId) throws IOException {
+        long entry = getDocumentEntry(docId);
+        double l_d = (int) (entry >>> 32);
+        double nT_d = (int) entry;
+        return nT_d > 0 ? l_d / nT_d : 0d;
+    }
+
+    /**
+     * Returns the length of the document in the high 32 bits and its number of unique terms in the low 32 bits.
+     * The entry returned by the DocumentIndex may be reused by the next lookup, so it is read while synchronized.
+     */
+    private long getDocumentEntry(int docId) throws IOException {
+        boolean timed = EPsMetrics.ENABLED && EPsMetrics.DOCUMENT_LOOKUPS.sample();
+        long start = timed ? System.nanoTime() : 0L;
+        long res;
+        synchronized (doi) {
+            DocumentIndexEntry die = doi.getDocumentEntry(docId);
+            res = (long) die.getDocumentLength() << 32 | die.getNumberOfEntries() & 0xFFFFFFFFL;
+        }
+        if (timed)
+            EPsMetrics.DOCUMENT_LOOKUPS.record(System.nanoTime() - start);
+        return res;
+    }
+}
@@ -0,0 +1,249 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+
+import java.io.IOException;
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The state the models keep per index: its collection statistics and its document statistics, so that one JVM
+ * serves many indices, each model instance reading the state of the index it is configured with.
+ * <p>
+ * The state of an index is created on first use, and each part of it initialized once, under a lock of its
+ * own, so that threads preparing models of the same index wait for a single computation while those of other
+ * indices do not. The registry holds the indices weakly: the state of an index that is no longer reachable is
+ * evicted, with its document factors, at the next call to the registry. An index is opened by {@link #open},
+ * shared by the callers opening the same path and prefix, or an index opened elsewhere is registered by
+ * {@link #acquire}; when {@link #release} drops its last reference, its state is evicted, with its global and
+ * incremental statistics, and the index is closed if it was opened here, after which its state is no longer
+ * created.
+ *
+ * @author Aldo Lipani
+ */
+public class IndexRegistry {
+
+    private static final Map<Key, Entry> entries = new HashMap<>();
+    private static final Map<String, Entry> opened = new HashMap<>();
+    private static final ReferenceQueue<Index> collected = new ReferenceQueue<>();
+
+    /**
+     * Returns the index of the path and prefix, opening it if it is not open, and adds a reference to it.
+     *
+     * @throws IOException if the index cannot be loaded
+     */
+    public static synchronized IndexOnDisk open(String path, String prefix) throws IOException {
+        String key = path + "/" + prefix;
+        Entry e = opened.get(key);
+        if (e == null) {
+            IndexOnDisk index = Index.createIndex(path, prefix);
+            if (index == null)
+                throw new IOException(Index.getLastIndexLoadError());
+            e = get(index);
+            e.name = key;
+            e.owned = index;
+            opened.put(key, e);
+        }
+        e.references++;
+        return (IndexOnDisk) e.owned;
+    }
+
+    /**
+     * Adds a reference to an index opened elsewhere, which the registry does not close.
+     *
+     * @throws IllegalStateException if the index was opened and closed by the registry
+     */
+    public static synchronized void acquire(Index index) {
+        get(index).references++;
+    }
+
+    /**
+     * Drops a reference to the index, evicting its state when it was the last, and closing the index if it
+     * was opened by {@link #open}.
+     *
+     * @throws IllegalStateException if the index has no reference
+     */
+    public static synchronized void release(Index index) throws IOException {
+        purge();
+        Entry e = entries.get(new Key(index, null));
+        if (e == null || e.references == 0)
+            throw new IllegalStateException("The index is not acquired: " + index);
+        if (--e.references > 0)
+            return;
+        e.evict();
+        GlobalStatistics.unregister(index);
+        IncrementalStatistics.unregister(index);
+        if (e.owned != null) {
+            // the entry stays, closed, until the index is collected, so that its state is not created again
+            opened.remove(e.name);
+            e.owned = null;
+            e.closed = true;
+            index.close();
+        } else {
+            entries.remove(e.key);
+        }
+    }
+
+    /**
+     * Returns the state of the index, created without reference if absent, in which case it lives as long as
+     * the index is reachable unless the index is acquired and released.
+     *
+     * @throws IllegalStateException if the index was opened and closed by the registry
+     */
+    static synchronized Entry get(Index index) {
+        purge();
+        Entry e = entries.get(new Key(index, null));
+        if (e == null) {
+            e = new Entry(new Key(index, collected));
+            entries.put(e.key, e);
+        }
+        if (e.closed)
+            throw new IllegalStateException("The index is closed: " + index);
+        return e;
+    }
+
+    /**
+     * Returns the collection statistics of the index, see {@link Entry#getStatistics}.
+     */
+    static EPsStatistics getStatistics(Index index) throws IOException {
+        return get(index).getStatistics(index);
+    }
+
+    /**
+     * Returns the document statistics of the index, opened once.
+     */
+    static DocumentStatistics getDocumentStatistics(Index index) throws IOException {
+        return get(index).getDocumentStatistics(index);
+    }
+
+    /**
+     * Evicts the state of the indices collected since the last call.
+     */
+    private static void purge() {
+        Reference<? extends Index> r;
+        while ((r = collected.poll()) != null) {
+            Entry e = entries.remove(r);
+            if (e != null)
+                e.evict();
+        }
+    }
+
+    /**
+     * Returns the number of indices with state.
+     */
+    public static synchronized int size() {
+        purge();
+        return entries.size();
+    }
+
+    /**
+     * The state of an index, each part initialized once on first use.
+     */
+    static class Entry {
+
+        private final Key key;
+        private String name;
+        private Index owned;
+        private int references;
+        private boolean closed;
+
+        private volatile EPsStatistics statistics;
+        private volatile StatisticsSampler sampler;
+        private volatile DocumentStatistics documentStatistics;
+
+        private final Object statisticsLock = new Object();
+        private final Object documentStatisticsLock = new Object();
+
+        Entry(Key key) {
+            this.key = key;
+        }
+
+        /**
+         * Returns the collection statistics of the index, loaded or computed by {@link EPsStatistics#init}, or,
+         * while they are sampled, the current estimate of the sampler of the index, which is kept once it no
+         * longer changes.
+         */
+        EPsStatistics getStatistics(Index index) throws IOException {
+            EPsStatistics s = statistics;
+            if (s != null)
+                return s;
+            StatisticsSampler sp = sampler;
+            if (sp == null) {
+                synchronized (statisticsLock) {
+                    s = statistics;
+                    if (s != null)
+                        return s;
+                    sp = sampler;
+                    if (sp == null) {
+                        s = EPsStatistics.init(index);
+                        if (s != null) {
+                            statistics = s;
+                            return s;
+                        }
+                        sampler = sp = StatisticsSampler.start(index);
+                    }
+                }
+            }
+            s = sp.getEstimate();
+            if (sp.isDone())
+                statistics = s;
+            return s;
+        }
+
+        DocumentStatistics getDocumentStatistics(Index index) throws IOException {
+            DocumentStatistics ds = documentStatistics;
+            if (ds == null) {
+                synchronized (documentStatisticsLock) {
+                    ds = documentStatistics;
+                    if (ds == null)
+                        documentStatistics = ds = DocumentStatistics.forIndex(index);
+                }
+            }
+            return ds;
+        }
+
+        /**
+         * Drops the state of the index, and its document factors. The entry is no longer returned by the
+         * registry, so a computation still running stores its result in an entry no one reads.
+         */
+        private void evict() {
+            statistics = null;
+            sampler = null;
+            documentStatistics = null;
+            DocumentFactorCache.evict(this);
+        }
+    }
+
+    /**
+     * Identifies an index by identity, without keeping it reachable. A key whose index is collected equals
+     * only itself.
+     */
+    private static final class Key extends WeakReference<Index> {
+
+        private final int hash;
+
+        Key(Index index, ReferenceQueue<Index> queue) {
+            super(index, queue);
+            this.hash = System.identityHashCode(index);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (o == this)
+                return true;
+            if (!(o instanceof Key))
+                return false;
+            Index index = get();
+            return index != null && index == ((Key) o).get();
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
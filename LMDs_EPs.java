@@ -2,13 +2,11 @@ package at.ac.tuwien.ifs;
 
 import org.terrier.matching.models.WeightingModel;
 import org.terrier.matching.models.WeightingModelLibrary;
-import org.terrier.structures.DocumentIndex;
-import org.terrier.structures.DocumentIndexEntry;
 import org.terrier.structures.Index;
+import org.terrier.structures.IndexConfigurable;
 import org.terrier.structures.postings.Posting;
 
 import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
 
 /**
  * This class implements the LM weighting model with verboseness and with
@@ -16,23 +14,33 @@ import java.security.InvalidAlgorithmParameterException;
  *
  * @author Aldo Lipani
  */
-public class LMDs_EPs extends WeightingModel {
+public class LMDs_EPs extends WeightingModel implements BatchWeightingModel, BoundedWeightingModel, FactoredWeightingModel, IndexConfigurable {
 
     private static final long serialVersionUID = 1L;
 
-    private static Index index;
+    /**
+     * The index of the statistics, set by setIndex() or taken from the request, and kept by the clones, whose
+     * per-index state is in the {@link IndexRegistry}
+     */
+    private transient volatile Index index;
+
+    /**
+     * The document statistics of the index, resolved by the first score(Posting) that needs them; a prepared
+     * instance may score from many threads, which then resolve the same instance
+     */
+    private transient volatile DocumentStatistics documentStatistics;
 
     /**
      * tf normalization combination
      **/
-    private String tfNormalizationCombination = "linear";
+    private final String tfNormalizationCombination;
 
     public static String[] tfNormalizationCombinations = new String[]{"linear", "product"};
 
     /**
      * tf normalization pivotization
      **/
-    private String tfNormalizationPivotization = "non_elite";
+    private final String tfNormalizationPivotization;
 
     public static String[] tfNormalizationPivotizations = new String[]{"non_elite", "elite"};
 
@@ -45,24 +53,51 @@ public class LMDs_EPs extends WeightingModel {
     /**
      * The constant bs.
      */
-    private double b = 0.50d;
-    private double a = 0.50d;
+    private final double b;
+    private final double a;
+
+    private final NormalizationCombination combination;
+    private final NormalizationPivotization pivotization;
 
-    public static double avgV = -1d;
+    /**
+     * Overrides of the collection statistics of every index, when set to non-negative values.
+     */
+    public static volatile double avgV = -1d;
+    public static volatile int nZnD = -1;
 
-    public static int nZnD = -1;
+    /**
+     * Collection statistics of the index, taken on the first prepare() and kept by this instance and the clones
+     * made of it afterwards, so that they do not change during a query whose terms are cloned from the first
+     * prepared one; the clones of an unprepared instance, one per term in Terrier's matching, take them each
+     */
+    private EPsStatistics statistics;
+
+    /**
+     * Constants of the query term, computed by prepare()
+     */
+    private double lengthPivot;
+    private double verbosenessPivot;
+    private float[] documentFactors;
+    private double ILF;
+
+    /**
+     * Metrics of the configuration, when enabled
+     */
+    private EPsMetrics.Scoring metrics;
 
     /**
      * A default constructor to make this model.
      */
     public LMDs_EPs() {
-        super();
-        this.tfNormalizationCombination = System.getProperty("tf.normalization.combination", "linear").toLowerCase();
-        this.tfNormalizationPivotization = System.getProperty("tf.normalization.pivotization", "non_elite").toLowerCase();
-        this.b = Double.parseDouble(System.getProperty("b", "0.5d"));
-        this.a = Double.parseDouble(System.getProperty("a", "0.5d"));
+        this(System.getProperty("tf.normalization.combination", "linear").toLowerCase(),
+                System.getProperty("tf.normalization.pivotization", "non_elite").toLowerCase(),
+                Double.parseDouble(System.getProperty("b", "0.5d")),
+                Double.parseDouble(System.getProperty("a", "0.5d")));
     }
 
+    /**
+     * @throws IllegalArgumentException if the combination or pivotization is invalid
+     */
     public LMDs_EPs(String tfNormalizationCombination,
                     String tfNormalizationPivotization,
                     double b,
@@ -72,6 +107,8 @@ public class LMDs_EPs extends WeightingModel {
         this.tfNormalizationPivotization = tfNormalizationPivotization;
         this.b = b;
         this.a = a;
+        this.combination = NormalizationCombination.of("tf.normalization.combination", tfNormalizationCombination);
+        this.pivotization = NormalizationPivotization.of("tf.normalization.pivotization", tfNormalizationPivotization);
     }
 
 
@@ -88,6 +125,34 @@ public class LMDs_EPs extends WeightingModel {
                 ".a_" + String.format("%.2f", a);
     }
 
+    /**
+     * Takes the current collection statistics of the index and computes the constants of the query term,
+     * so that score(Posting) is left with the document-dependent part only.
+     */
+    @Override
+    public void prepare() {
+        if (statistics == null && (nZnD < 0 || avgV < 0))
+            initStatistics();
+        if (statistics instanceof GlobalStatistics) {
+            GlobalStatistics global = (GlobalStatistics) statistics;
+            cs = global.getCollectionStatistics();
+            es = global.getEntryStatistics(es);
+        }
+        super.prepare();
+        double nD = getNumberOfNonZeroLengthDocuments();
+        double l_c = numberOfTokens * nD;
+        lengthPivot = getLengthPivot(l_c, nD);
+        verbosenessPivot = getVerbosenessPivot(l_c, numberOfUniqueTerms);
+        if (DocumentFactorCache.ENABLED)
+            documentFactors = getDocumentFactors();
+        ILF = getILF(termFrequency, l_c);
+        if (EPsMetrics.ENABLED) {
+            if (metrics == null)
+                metrics = EPsMetrics.getScoring(getInfo());
+            metrics.terms.increment();
+        }
+    }
+
     /**
      * Uses TF_IDF to compute a weight for a term in a document.
      *
@@ -97,60 +162,113 @@ public class LMDs_EPs extends WeightingModel {
      */
     @Override
     public double score(Posting p) {
-        int docId = p.getId();
+        if (EPsMetrics.ENABLED && metrics.sample()) {
+            long start = System.nanoTime();
+            double score = getScore(p);
+            metrics.record(System.nanoTime() - start);
+            return score;
+        }
+        return getScore(p);
+    }
+
+    private double getScore(Posting p) {
         double tfd = p.getFrequency();
         double l_d = p.getDocumentLength();
-        double nD = getNumberOfNonZeroLengthDocuments();
-        double l_c = numberOfTokens * nD;
-        double nT = numberOfUniqueTerms;
-        double l_t = termFrequency;
-        double nT_d = getNumberOfDocumentUniqueTerms(docId);
+        double lambda = documentFactors != null ? documentFactors[p.getId()] :
+                getDocumentFactor(l_d, getNumberOfDocumentUniqueTerms(p.getId()));
+        return WeightingModelLibrary.log(1d - lambda + lambda * getTFD(tfd, l_d) * ILF);
+    }
 
-        return score(tfd, l_d, nD, l_c, nT, l_t, nT_d);
+    /**
+     * Returns lambda, cached or computed.
+     */
+    public double getDocumentFactor(int docId, double l_d, double nT_d) {
+        return documentFactors != null ? documentFactors[docId] : getDocumentFactor(l_d, nT_d);
     }
 
+    public double score(double tfd, double l_d, double documentFactor) {
+        if (EPsMetrics.ENABLED && metrics.sample()) {
+            long start = System.nanoTime();
+            double score = WeightingModelLibrary.log(1d - documentFactor + documentFactor * getTFD(tfd, l_d) * ILF);
+            metrics.record(System.nanoTime() - start);
+            return score;
+        }
+        return WeightingModelLibrary.log(1d - documentFactor + documentFactor * getTFD(tfd, l_d) * ILF);
+    }
 
-    private int getNumberOfNonZeroLengthDocuments() {
-        int res = nZnD;
-        if (res < 0) {
-            try {
-                res = 0;
-                initIndex();
-                DocumentIndex doi = index.getDocumentIndex();
-                int nD = doi.getNumberOfDocuments();
-                int nZnD = 0;
-                for (int i = 0; i < nD; i++) {
-                    DocumentIndexEntry die = doi.getDocumentEntry(i);
-                    double l_d = die.getDocumentLength();
-                    if(l_d > 0) {
-                        nZnD++;
-                    }
-                }
-                res = nZnD;
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-            nZnD = res;
+    /**
+     * Scores a block of n postings of the query term, given as parallel arrays, into scores, without allocating.
+     * The document ids are read when the document factors are cached, the numbers of unique terms otherwise.
+     * The scores are those of score(Posting) up to rounding.
+     */
+    public void score(int[] docIds, int[] tfd, int[] l_d, double[] nT_d, int n, double[] scores) {
+        long start = EPsMetrics.ENABLED ? System.nanoTime() : 0L;
+        if (documentFactors != null) {
+            for (int i = 0; i < n; i++)
+                scores[i] = documentFactors[docIds[i]];
+        } else {
+            combination.getK(l_d, nT_d, lengthPivot, verbosenessPivot, b, a, n, scores);
+            for (int i = 0; i < n; i++)
+                scores[i] = scores[i] / (scores[i] + 1d);
+        }
+        for (int i = 0; i < n; i++) {
+            double lambda = scores[i];
+            scores[i] = WeightingModelLibrary.log(1d - lambda + lambda * ((double) tfd[i] / l_d[i]) * ILF);
         }
-        return res;
+        if (EPsMetrics.ENABLED)
+            metrics.record(System.nanoTime() - start, n);
     }
 
-    public double score(double tfd, double l_d, double nD, double l_c, double nT, double l_t, double nT_d) {
-        try {
-            double pivdv = getPivotedVerboseness(l_d, nT_d, l_c, nT);
-            double pivdl = getPivotedLength(l_d, l_c, nD);
-
-            double KD = getKD(pivdl, pivdv);
-            double lambda = KD / (KD + 1d);
-            double TFD = getTFD(tfd, l_d);
-            double ILF = getILF(l_t, l_c);
-            return WeightingModelLibrary.log(1d - lambda + lambda * TFD * ILF);
-        } catch (InvalidAlgorithmParameterException ex) {
-            ex.printStackTrace();
-            System.exit(1);
+    /**
+     * The score increases with tf/l_d, at most 1, and with lambda when the smoothed tf times ILF exceeds 1, and
+     * decreases with lambda otherwise. It is bounded by the maximum lambda, or the minimum, of the documents.
+     * The float rounding of the cached document factors is taken into account.
+     */
+    public double getUpperBound(int maxTfd, int minL_d, int maxL_d, double minV_d, double maxV_d) {
+        double x = Math.min(1d, getTFD(maxTfd, minL_d)) * ILF;
+        double minPivl = minL_d / lengthPivot, maxPivl = maxL_d / lengthPivot;
+        double minPivv = minV_d / verbosenessPivot, maxPivv = maxV_d / verbosenessPivot;
+        double lambda;
+        if (x > 1d) {
+            double KD = combination.getMaxK(minPivl, maxPivl, minPivv, maxPivv, b, a);
+            lambda = KD / (KD + 1d);
+            if (documentFactors != null)
+                lambda = Math.max(lambda, (float) lambda);
+        } else {
+            double KD = combination.getMinK(minPivl, maxPivl, minPivv, maxPivv, b, a);
+            lambda = KD / (KD + 1d);
+            if (documentFactors != null)
+                lambda = Math.min(lambda, (float) lambda);
         }
-        return 0d;
+        return WeightingModelLibrary.log(1d - lambda + lambda * x);
+    }
+
+    /**
+     * Returns lambda, the part of the score that depends only on the document.
+     */
+    private double getDocumentFactor(double l_d, double nT_d) {
+        double KD = getKD(l_d / lengthPivot, (l_d / nT_d) / verbosenessPivot);
+        return KD / (KD + 1d);
+    }
+
+
+    private int getNumberOfNonZeroLengthDocuments() {
+        if (nZnD >= 0)
+            return nZnD;
+        if (statistics == null)
+            initStatistics();
+        return statistics.nZnD;
+    }
+
+    public double score(double tfd, double l_d, double nD, double l_c, double nT, double l_t, double nT_d) {
+        double pivdv = getPivotedVerboseness(l_d, nT_d, l_c, nT);
+        double pivdl = getPivotedLength(l_d, l_c, nD);
+
+        double KD = getKD(pivdl, pivdv);
+        double lambda = KD / (KD + 1d);
+        double TFD = getTFD(tfd, l_d);
+        double ILF = getILF(l_t, l_c);
+        return WeightingModelLibrary.log(1d - lambda + lambda * TFD * ILF);
     }
 
     private double getTFD(double tfd, double l_d) {
@@ -167,10 +285,8 @@ public class LMDs_EPs extends WeightingModel {
 
     private double getNumberOfDocumentUniqueTerms(int docId) {
         try {
-            initIndex();
-            DocumentIndex doi = index.getDocumentIndex();
-            DocumentIndexEntry die = doi.getDocumentEntry(docId);
-            return die.getNumberOfEntries();
+            initDocumentStatistics();
+            return documentStatistics.getNumberOfUniqueTerms(docId);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -178,14 +294,23 @@ public class LMDs_EPs extends WeightingModel {
         return 0;
     }
 
-    private double getPivotedLength(double l_d, double l_c, double nD) throws InvalidAlgorithmParameterException {
-        double res;
-        if (tfNormalizationPivotization.equals("elite") || tfNormalizationPivotization.equals("non_elite")) {
-            res = l_d / (l_c / nD);
-        } else {
-            throw new InvalidAlgorithmParameterException("The value of the tf.normalization.pivotization is invalid: " + tfNormalizationPivotization);
+    private double getPivotedLength(double l_d, double l_c, double nD) {
+        return l_d / getLengthPivot(l_c, nD);
+    }
+
+    private double getLengthPivot(double l_c, double nD) {
+        return l_c / nD;
+    }
+
+    /**
+     * Called by the matching before prepare(), which may precede setRequest().
+     */
+    public void setIndex(Index index) {
+        if (this.index != index) {
+            this.index = index;
+            statistics = null;
+            documentStatistics = null;
         }
-        return res;
     }
 
     private void initIndex() {
@@ -193,56 +318,56 @@ public class LMDs_EPs extends WeightingModel {
             index = rq.getIndex();
     }
 
-    private double getPivotedVerboseness(double l_d, double nT_d, double l_c, double nT) throws InvalidAlgorithmParameterException {
-        double res;
-        if (tfNormalizationPivotization.equals("non_elite")) {
-            res = (l_d / nT_d) / (l_c / nT);
-        } else if (tfNormalizationPivotization.equals("elite")) {
-            res = (l_d / nT_d) / getAverageVerboseness();
-        } else {
-            throw new InvalidAlgorithmParameterException("The value of the tf.normalization.pivotization is invalid: " + tfNormalizationPivotization);
+    private void initStatistics() {
+        try {
+            initIndex();
+            statistics = EPsStatistics.get(index);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
         }
-        return res;
     }
 
-    private double getAverageVerboseness() {
-        double res = avgV;
-        if (res < 0) {
-            try {
-                res = 0d;
-                initIndex();
-                DocumentIndex doi = index.getDocumentIndex();
-                int nD = doi.getNumberOfDocuments();
-                int nZnD = 0;
-                for (int i = 0; i < nD; i++) {
-                    DocumentIndexEntry die = doi.getDocumentEntry(i);
-                    double l_d = die.getDocumentLength();
-                    if(l_d > 0) {
-                        double nT_d = die.getNumberOfEntries();
-                        res += l_d / nT_d;
-                        nZnD++;
-                    }
-                }
-                res /= nZnD;
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-            avgV = res;
+    private float[] getDocumentFactors() {
+        try {
+            initDocumentStatistics();
+            String key = name + ".nc_" + tfNormalizationCombination + ".np_" + tfNormalizationPivotization +
+                    ".b_" + b + ".a_" + a + ".pl_" + lengthPivot + ".pv_" + verbosenessPivot;
+            return DocumentFactorCache.get(index, key, documentStatistics, this::getDocumentFactor);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
         }
-        return res;
+        return null;
     }
 
-    private double getKD(double pivdl, double pivdv) throws InvalidAlgorithmParameterException {
-        double res;
-        if (tfNormalizationCombination.equals("linear")) {
-            res = 1d - b + b * (1d - a) * pivdl + b * a * pivdv;
-        } else if (tfNormalizationCombination.equals("product")) {
-            res = Math.pow(pivdl, b * (1d - a)) * Math.pow(pivdv, b * a);
-        } else {
-            throw new InvalidAlgorithmParameterException("The value of the tf.normalization.combination is invalid: " + tfNormalizationCombination);
+    private void initDocumentStatistics() throws IOException {
+        if (documentStatistics == null) {
+            initIndex();
+            documentStatistics = IndexRegistry.getDocumentStatistics(index);
         }
-        return res;
+    }
+
+    private double getPivotedVerboseness(double l_d, double nT_d, double l_c, double nT) {
+        return (l_d / nT_d) / getVerbosenessPivot(l_c, nT);
+    }
+
+    private double getVerbosenessPivot(double l_c, double nT) {
+        if (pivotization == NormalizationPivotization.ELITE)
+            return getAverageVerboseness();
+        return l_c / nT;
+    }
+
+    private double getAverageVerboseness() {
+        if (avgV >= 0)
+            return avgV;
+        if (statistics == null)
+            initStatistics();
+        return statistics.avgV;
+    }
+
+    private double getKD(double pivdl, double pivdv) {
+        return combination.getK(pivdl, pivdv, b, a);
     }
 
     public void setParameter(double _b) {
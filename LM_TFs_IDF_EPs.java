@@ -6,7 +6,6 @@ import org.terrier.structures.*;
 import org.terrier.structures.postings.Posting;
 
 import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
 
 /**
  * This class implements the LM_TF_IDF weighting model with verboseness and 4 TF Quantifications,
@@ -14,22 +13,26 @@ import java.security.InvalidAlgorithmParameterException;
  *
  * @author Aldo Lipani
  */
-public class LM_TFs_IDF_EPs extends WeightingModel {
+public class LM_TFs_IDF_EPs extends WeightingModel implements BatchWeightingModel, BoundedWeightingModel, IndexConfigurable {
 
     private static final long serialVersionUID = 1L;
 
-    private static Index index;
+    /**
+     * The index of the statistics, set by setIndex() or taken from the request, and kept by the clones, whose
+     * per-index state is in the {@link IndexRegistry}
+     */
+    private transient Index index;
 
     /**
      * tf normalization combination
      **/
-    private String lambdaqNormalizationCombination = "linear";
+    private final String lambdaqNormalizationCombination;
 
     public static String[] lambdaqNormalizationCombinations = new String[]{"linear", "product"};
     /**
      * tf normalization pivotization
      **/
-    private String lambdaqNormalizationPivotization = "non_elite";
+    private final String lambdaqNormalizationPivotization;
 
     public static String[] lambdaqNormalizationPivotizations = new String[]{"non_elite", "elite"};
 
@@ -45,23 +48,48 @@ public class LM_TFs_IDF_EPs extends WeightingModel {
     /**
      * The constant bs.
      */
-    private double b = 0.50d;
-    private double a = 0.50d;
+    private final double b;
+    private final double a;
+
+    private final NormalizationCombination combination;
+    private final NormalizationPivotization pivotization;
+
+    /**
+     * Overrides of the collection statistics of every index, when set to non-negative values.
+     */
+    public static volatile double avgB = -1d;
+    public static volatile int nZnD = -1;
+
+    /**
+     * Collection statistics of the index, taken on the first prepare() and kept by this instance and the clones
+     * made of it afterwards, so that they do not change during a query whose terms are cloned from the first
+     * prepared one; the clones of an unprepared instance, one per term in Terrier's matching, take them each
+     */
+    private EPsStatistics statistics;
 
-    public static double avgB = -1d;
-    public static int nZnD = -1;
+    /**
+     * Constant of the query term, computed by prepare()
+     */
+    private double IDF;
+
+    /**
+     * Metrics of the configuration, when enabled
+     */
+    private EPsMetrics.Scoring metrics;
 
     /**
      * A default constructor to make this model.
      */
     public LM_TFs_IDF_EPs() {
-        super();
-        this.lambdaqNormalizationCombination = System.getProperty("lambdaq.normalization.combination", "linear").toLowerCase();
-        this.lambdaqNormalizationPivotization = System.getProperty("lambdaq.normalization.pivotization", "non_elite").toLowerCase();
-        this.b = Double.parseDouble(System.getProperty("b", "0.5d"));
-        this.a = Double.parseDouble(System.getProperty("a", "0.5d"));
+        this(System.getProperty("lambdaq.normalization.combination", "linear").toLowerCase(),
+                System.getProperty("lambdaq.normalization.pivotization", "non_elite").toLowerCase(),
+                Double.parseDouble(System.getProperty("b", "0.5d")),
+                Double.parseDouble(System.getProperty("a", "0.5d")));
     }
 
+    /**
+     * @throws IllegalArgumentException if the combination or pivotization is invalid
+     */
     public LM_TFs_IDF_EPs(String lambdaqNormalizationCombination,
                           String lambdaqNormalizationPivotization,
                           double b,
@@ -71,6 +99,8 @@ public class LM_TFs_IDF_EPs extends WeightingModel {
         this.lambdaqNormalizationPivotization = lambdaqNormalizationPivotization;
         this.b = b;
         this.a = a;
+        this.combination = NormalizationCombination.of("lambdaq.normalization.combination", lambdaqNormalizationCombination);
+        this.pivotization = NormalizationPivotization.of("lambdaq.normalization.pivotization", lambdaqNormalizationPivotization);
     }
 
     /**
@@ -86,6 +116,29 @@ public class LM_TFs_IDF_EPs extends WeightingModel {
                 ".a_" + String.format("%.2f", a);
     }
 
+    /**
+     * Takes the current collection statistics of the index and computes the IDF of the query term,
+     * which is all of the score but the tf.
+     */
+    @Override
+    public void prepare() {
+        if (statistics == null && (nZnD < 0 || avgB < 0))
+            initStatistics();
+        if (statistics instanceof GlobalStatistics) {
+            GlobalStatistics global = (GlobalStatistics) statistics;
+            cs = global.getCollectionStatistics();
+            es = global.getEntryStatistics(es);
+        }
+        super.prepare();
+        double nD = getNumberOfNonZeroLengthDocuments();
+        IDF = getIDF(nD, documentFrequency, averageDocumentLength * nD, termFrequency);
+        if (EPsMetrics.ENABLED) {
+            if (metrics == null)
+                metrics = EPsMetrics.getScoring(getInfo());
+            metrics.terms.increment();
+        }
+    }
+
     /**
      * Uses TF_IDF to compute a weight for a term in a document.
      *
@@ -95,71 +148,79 @@ public class LM_TFs_IDF_EPs extends WeightingModel {
      */
     @Override
     public double score(Posting p) {
-        double tfd = p.getFrequency();
-        double nD = getNumberOfNonZeroLengthDocuments();
-        double df = documentFrequency;
-        double l_c = averageDocumentLength * nD;
-        double l_t = termFrequency;
+        if (EPsMetrics.ENABLED && metrics.sample()) {
+            long start = System.nanoTime();
+            double score = getScore(p);
+            metrics.record(System.nanoTime() - start);
+            return score;
+        }
+        return getScore(p);
+    }
 
-        return score(tfd, nD, df, l_c, l_t);
+    private double getScore(Posting p) {
+        return p.getFrequency() * IDF;
+    }
+
+    /**
+     * Scores a block of n postings of the query term, given as parallel arrays, into scores, without allocating.
+     * Only the term frequencies are read; the other arrays are accepted for symmetry with the other models.
+     */
+    public void score(int[] docIds, int[] tfd, int[] l_d, double[] nT_d, int n, double[] scores) {
+        long start = EPsMetrics.ENABLED ? System.nanoTime() : 0L;
+        for (int i = 0; i < n; i++)
+            scores[i] = tfd[i] * IDF;
+        if (EPsMetrics.ENABLED)
+            metrics.record(System.nanoTime() - start, n);
+    }
+
+    /**
+     * The score is the tf times the IDF, the documents do not bound it further.
+     */
+    public double getUpperBound(int maxTfd, int minL_d, int maxL_d, double minV_d, double maxV_d) {
+        return IDF < 0 ? IDF : maxTfd * IDF;
     }
 
     private int getNumberOfNonZeroLengthDocuments() {
-        int res = nZnD;
-        if (res < 0) {
-            try {
-                res = 0;
-                initIndex();
-                DocumentIndex doi = index.getDocumentIndex();
-                int nD = doi.getNumberOfDocuments();
-                int nZnD = 0;
-                for (int i = 0; i < nD; i++) {
-                    DocumentIndexEntry die = doi.getDocumentEntry(i);
-                    double l_d = die.getDocumentLength();
-                    if(l_d > 0) {
-                        nZnD++;
-                    }
-                }
-                res = nZnD;
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-            nZnD = res;
-        }
-        return res;
+        if (nZnD >= 0)
+            return nZnD;
+        if (statistics == null)
+            initStatistics();
+        return statistics.nZnD;
     }
 
 
     public double score(double tfd, double nD, double df, double l_c, double l_t) {
-        try {
-            double pivtb = getPivotedTermBurstiness(l_t, df, l_c, nD);
-            double pivtl = getPivotedTermLength(l_t, l_c, nD);
-
-            double KT = getKD(pivtl, pivtb);
-            double lambdaq = KT / (KT + 1);
-            double TFD = tfd;
-            double IDF = WeightingModelLibrary.log(1d - lambdaq + lambdaq * nD / df);
-            //double IDF = WeightingModelLibrary.log(1d + KT * l_c / l_t);
-            return TFD * IDF;
-        } catch (InvalidAlgorithmParameterException ex) {
-            ex.printStackTrace();
-            return 0d;
-        }
+        double TFD = tfd;
+        double IDF = getIDF(nD, df, l_c, l_t);
+        return TFD * IDF;
+    }
+
+    private double getIDF(double nD, double df, double l_c, double l_t) {
+        double pivtb = getPivotedTermBurstiness(l_t, df, l_c, nD);
+        double pivtl = getPivotedTermLength(l_t, l_c, nD);
+
+        double KT = getKD(pivtl, pivtb);
+        double lambdaq = KT / (KT + 1);
+        return WeightingModelLibrary.log(1d - lambdaq + lambdaq * nD / df);
+        //return WeightingModelLibrary.log(1d + KT * l_c / l_t);
     }
 
     public double score(double tfd, double l_d) {
         return 0d;
     }
 
-    private double getPivotedTermLength(double l_t, double l_c, double nD) throws InvalidAlgorithmParameterException {
-        double res;
-        if (lambdaqNormalizationPivotization.equals("elite") || lambdaqNormalizationPivotization.equals("non_elite")) {
-            res = l_t / (l_c / nD);
-        } else {
-            throw new InvalidAlgorithmParameterException("The value of the lambdaq.normalization.pivotization is invalid: " + lambdaqNormalizationPivotization);
+    private double getPivotedTermLength(double l_t, double l_c, double nD) {
+        return l_t / (l_c / nD);
+    }
+
+    /**
+     * Called by the matching before prepare(), which may precede setRequest().
+     */
+    public void setIndex(Index index) {
+        if (this.index != index) {
+            this.index = index;
+            statistics = null;
         }
-        return res;
     }
 
     private void initIndex() {
@@ -167,47 +228,32 @@ public class LM_TFs_IDF_EPs extends WeightingModel {
             index = rq.getIndex();
     }
 
-    private double getPivotedTermBurstiness(double l_t, double nD_t, double l_c, double nD) throws InvalidAlgorithmParameterException {
-        double res;
-        if (lambdaqNormalizationPivotization.equals("non_elite")) {
-            res = (l_t / nD_t) / (l_c / nD);
-        } else if (lambdaqNormalizationPivotization.equals("elite")) {
-            res = (l_t / nD_t) / getAverageTermBurstiness();
-        } else {
-            throw new InvalidAlgorithmParameterException("The value of the lambdaq.normalization.pivotization is invalid: " + lambdaqNormalizationPivotization);
+    private void initStatistics() {
+        try {
+            initIndex();
+            statistics = EPsStatistics.get(index);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
         }
-        return res;
+    }
+
+    private double getPivotedTermBurstiness(double l_t, double nD_t, double l_c, double nD) {
+        if (pivotization == NormalizationPivotization.ELITE)
+            return (l_t / nD_t) / getAverageTermBurstiness();
+        return (l_t / nD_t) / (l_c / nD);
     }
 
     private double getAverageTermBurstiness() {
-        double res = avgB;
-        if (res < 0) {
-            res = 0d;
-            initIndex();
-            Lexicon<String> lex = index.getLexicon();
-            int nT = lex.numberOfEntries();
-            for (int i = 0; i < nT; i++) {
-                LexiconEntry tie = lex.getIthLexiconEntry(i).getValue();
-                double l_t = tie.getFrequency();
-                double nD_t = tie.getDocumentFrequency();
-                res += l_t / nD_t;
-            }
-            res /= nT;
-            avgB = res;
-        }
-        return res;
+        if (avgB >= 0)
+            return avgB;
+        if (statistics == null)
+            initStatistics();
+        return statistics.avgB;
     }
 
-    private double getKD(double pivtl, double pivtb) throws InvalidAlgorithmParameterException {
-        double res;
-        if (lambdaqNormalizationCombination.equals("linear")) {
-            res = 1d - b + b * (1d - a) * pivtl + b * a * pivtb;
-        } else if (lambdaqNormalizationCombination.equals("product")) {
-            res = Math.pow(pivtl, b * (1d - a)) * Math.pow(pivtb, b * a);
-        } else {
-            throw new InvalidAlgorithmParameterException("The value of the lambdaq.normalization.combination is invalid: " + lambdaqNormalizationCombination);
-        }
-        return res;
+    private double getKD(double pivtl, double pivtb) {
+        return combination.getK(pivtl, pivtb, b, a);
     }
 
 
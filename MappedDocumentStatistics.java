@@ -0,0 +1,102 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Document statistics read from a memory-mapped sidecar file written by {@link DocumentStatisticsBuilder}.
+ * The file holds three primitive columns, l_d (int), nT_d (int) and l_d/nT_d (float), after a fixed header
+ * with the number of documents and of tokens of the index it was built from, which tell a stale file apart.
+ * The mapping is read-only, so the JVMs of the same host share its pages through the page cache.
+ *
+ * @author Aldo Lipani
+ */
+public class MappedDocumentStatistics implements DocumentStatistics {
+
+    static final String SUFFIX = ".docstats";
+
+    static final int MAGIC = 0x45504453;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 24;
+
+    /**
+     * Size of a mapped segment, a multiple of the column width so that no value crosses two segments.
+     */
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final int nD;
+    private final long numberOfTokens;
+
+    private final MappedByteBuffer[] segments;
+
+    public MappedDocumentStatistics(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, 1L << SEGMENT_SHIFT));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        if (segments.length == 0 || segments[0].getInt(0) != MAGIC || segments[0].getInt(4) != VERSION)
+            throw new IOException("Not a document statistics file of version " + VERSION + ": " + file);
+        nD = segments[0].getInt(8);
+        numberOfTokens = segments[0].getLong(16);
+        long size = 0L;
+        for (MappedByteBuffer segment : segments)
+            size += segment.capacity();
+        if (size < getColumnOffset(3, nD))
+            throw new IOException("Truncated document statistics file: " + file);
+    }
+
+    /**
+     * Returns true if the file was built from an index with the same numbers of documents and tokens as this one.
+     */
+    boolean matches(Index index) {
+        CollectionStatistics cs = index.getCollectionStatistics();
+        return nD == cs.getNumberOfDocuments() && numberOfTokens == cs.getNumberOfTokens();
+    }
+
+    static File getFile(IndexOnDisk index) {
+        return new File(index.getPath(), index.getPrefix() + SUFFIX);
+    }
+
+    static long getColumnOffset(int column, int nD) {
+        return HEADER_SIZE + 4L * nD * column;
+    }
+
+    public int getNumberOfDocuments() {
+        return nD;
+    }
+
+    public double getDocumentLength(int docId) {
+        return getInt(getColumnOffset(0, nD) + 4L * docId);
+    }
+
+    public double getNumberOfUniqueTerms(int docId) {
+        return getInt(getColumnOffset(1, nD) + 4L * docId);
+    }
+
+    public double getVerboseness(int docId) {
+        return getFloat(getColumnOffset(2, nD) + 4L * docId);
+    }
+
+    private int getInt(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].getInt((int) (position & SEGMENT_MASK));
+    }
+
+    private float getFloat(long position) {
+        return segments[(int) (position >>> SEGMENT_SHIFT)].getFloat((int) (position & SEGMENT_MASK));
+    }
+}
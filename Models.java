@@ -0,0 +1,27 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.utility.ApplicationSetup;
+
+/**
+ * Creates the weighting models of the command line tools from their class names, by their default constructor,
+ * which configures them from the properties.
+ *
+ * @author Aldo Lipani
+ */
+public class Models {
+
+    /**
+     * Returns a new instance of the model of the property trec.model, TFs_IDF_EPs by default.
+     */
+    public static WeightingModel fromProperties() throws ReflectiveOperationException {
+        return forName(ApplicationSetup.getProperty("trec.model", TFs_IDF_EPs.class.getName()));
+    }
+
+    /**
+     * Returns a new instance of the model of the given class name.
+     */
+    public static WeightingModel forName(String className) throws ReflectiveOperationException {
+        return (WeightingModel) Class.forName(className).getDeclaredConstructor().newInstance();
+    }
+}
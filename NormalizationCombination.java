@@ -0,0 +1,67 @@
+package at.ac.tuwien.ifs;
+
+/**
+ * The combinations of a pivoted length with a pivoted verboseness, or burstiness, into a normalization factor.
+ * Each value is its own class, so that a model configured once calls a single implementation for every posting.
+ *
+ * @author Aldo Lipani
+ */
+public enum NormalizationCombination {
+
+    LINEAR {
+        public double getK(double pivl, double pivv, double b, double a) {
+            return 1d - b + b * (1d - a) * pivl + b * a * pivv;
+        }
+
+        void getK(int[] l, double[] nT, double lengthPivot, double verbosenessPivot, double b, double a, int n, double[] K) {
+            double c = 1d - b;
+            double cl = b * (1d - a) / lengthPivot;
+            double cv = b * a / verbosenessPivot;
+            for (int i = 0; i < n; i++)
+                K[i] = c + cl * l[i] + cv * l[i] / nT[i];
+        }
+    },
+    PRODUCT {
+        public double getK(double pivl, double pivv, double b, double a) {
+            return Math.pow(pivl, b * (1d - a)) * Math.pow(pivv, b * a);
+        }
+
+        void getK(int[] l, double[] nT, double lengthPivot, double verbosenessPivot, double b, double a, int n, double[] K) {
+            for (int i = 0; i < n; i++)
+                K[i] = getK(l[i] / lengthPivot, (l[i] / nT[i]) / verbosenessPivot, b, a);
+        }
+    };
+
+    public abstract double getK(double pivl, double pivv, double b, double a);
+
+    /**
+     * Writes in K the normalization factors of n documents, given their lengths l and numbers of unique terms nT.
+     * The result is the same as the scalar variant up to rounding. The loop of LINEAR is arithmetic only, which
+     * the JIT can vectorize; that of PRODUCT calls Math.pow for every document, which it does not vectorize.
+     */
+    abstract void getK(int[] l, double[] nT, double lengthPivot, double verbosenessPivot, double b, double a, int n, double[] K);
+
+    /**
+     * Returns the minimum of K over the documents whose pivoted length and verboseness are within the given
+     * ranges. K being monotone in each of them, its extremes are at the corners of the ranges.
+     */
+    double getMinK(double minPivl, double maxPivl, double minPivv, double maxPivv, double b, double a) {
+        return Math.min(Math.min(getK(minPivl, minPivv, b, a), getK(minPivl, maxPivv, b, a)),
+                Math.min(getK(maxPivl, minPivv, b, a), getK(maxPivl, maxPivv, b, a)));
+    }
+
+    /**
+     * Returns the maximum of K over the documents whose pivoted length and verboseness are within the given ranges.
+     */
+    double getMaxK(double minPivl, double maxPivl, double minPivv, double maxPivv, double b, double a) {
+        return Math.max(Math.max(getK(minPivl, minPivv, b, a), getK(minPivl, maxPivv, b, a)),
+                Math.max(getK(maxPivl, minPivv, b, a), getK(maxPivl, maxPivv, b, a)));
+    }
+
+    public static NormalizationCombination of(String property, String value) {
+        for (NormalizationCombination c : values())
+            if (c.name().toLowerCase().equals(value))
+                return c;
+        throw new IllegalArgumentException("The value of the " + property + " is invalid: " + value);
+    }
+}
@@ -0,0 +1,20 @@
+package at.ac.tuwien.ifs;
+
+/**
+ * The pivots of the verboseness, or burstiness: the collection ratio (non_elite) or the average over
+ * the documents, or terms, of the collection (elite).
+ *
+ * @author Aldo Lipani
+ */
+public enum NormalizationPivotization {
+
+    NON_ELITE,
+    ELITE;
+
+    public static NormalizationPivotization of(String property, String value) {
+        for (NormalizationPivotization p : values())
+            if (p.name().toLowerCase().equals(value))
+                return p;
+        throw new IllegalArgumentException("The value of the " + property + " is invalid: " + value);
+    }
+}
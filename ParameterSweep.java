@@ -0,0 +1,260 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.querying.Request;
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Tunes the parameters of TFs_IDF_EPs, LMDs_EPs and LM_TFs_IDF_EPs on a query set. The postings of the queries
+ * are loaded in memory once, then every configuration is scored from memory, in parallel, and evaluated against
+ * the qrels with MAP and nDCG@k.
+ * <p>
+ * Usage: ParameterSweep queries qrels [grid|random|ascent]
+ * <p>
+ * The search space is set by the properties sweep.models, sweep.b, sweep.a and sweep.k1 (comma separated
+ * values), the quantifications, combinations and pivotizations being those listed by the models. The search is
+ * exhaustive (grid), on sweep.samples random configurations (random), or by coordinate ascent from the middle
+ * of the space (ascent), maximizing sweep.measure (map or ndcg) at cutoff sweep.k over rankings of sweep.depth
+ * documents.
+ *
+ * @author Aldo Lipani
+ */
+public class ParameterSweep {
+
+    private static final String[] MODELS = System.getProperty("sweep.models", "TFs_IDF_EPs,LMDs_EPs,LM_TFs_IDF_EPs").split(",");
+    private static final String[] B = System.getProperty("sweep.b", "0.0,0.1,0.2,0.3,0.4,0.5,0.6,0.7,0.8,0.9,1.0").split(",");
+    private static final String[] A = System.getProperty("sweep.a", "0.0,0.1,0.2,0.3,0.4,0.5,0.6,0.7,0.8,0.9,1.0").split(",");
+    private static final String[] K1 = System.getProperty("sweep.k1", "1.2").split(",");
+
+    private static final String MEASURE = System.getProperty("sweep.measure", "map");
+    private static final int K = Integer.parseInt(System.getProperty("sweep.k", "10"));
+    private static final int DEPTH = Integer.parseInt(System.getProperty("sweep.depth", "1000"));
+    private static final int SAMPLES = Integer.parseInt(System.getProperty("sweep.samples", "100"));
+    private static final long SEED = Long.parseLong(System.getProperty("sweep.seed", "1"));
+
+    private final Request rq;
+    private final CollectionStatistics cs;
+    private final List<QueryPostings> queries = new ArrayList<>();
+    private final List<Map<Integer, Integer>> relevance = new ArrayList<>();
+    private final List<Integer> numberOfRelevant = new ArrayList<>();
+
+    private final Map<String, double[]> evaluations = new ConcurrentHashMap<>();
+
+    public ParameterSweep(Index index, Map<String, String[]> queries, Qrels qrels) throws IOException {
+        this.rq = new Request();
+        this.rq.setIndex(index);
+        this.cs = index.getCollectionStatistics();
+        DocumentStatistics ds = DocumentStatistics.forIndex(index);
+        for (Map.Entry<String, String[]> q : queries.entrySet()) {
+            this.queries.add(QueryPostings.load(index, ds, q.getKey(), q.getValue()));
+            this.relevance.add(qrels.getRelevance(q.getKey(), index.getMetaIndex()));
+            this.numberOfRelevant.add(qrels.getNumberOfRelevant(q.getKey()));
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ParameterSweep queries qrels [grid|random|ascent]");
+            System.exit(1);
+        }
+        IndexOnDisk index = Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        ParameterSweep sweep = new ParameterSweep(index, Queries.read(args[0]), new Qrels(args[1]));
+        String method = args.length > 2 ? args[2] : "grid";
+        List<Configuration> evaluated;
+        if (method.equals("grid")) {
+            evaluated = sweep.grid();
+        } else if (method.equals("random")) {
+            evaluated = sweep.random();
+        } else if (method.equals("ascent")) {
+            evaluated = sweep.ascent();
+        } else {
+            throw new IllegalArgumentException("The search method is invalid: " + method);
+        }
+        for (Configuration c : evaluated) {
+            double[] e = sweep.evaluate(c);
+            System.out.println(c.newModel().getInfo() + "\t" + c.parameters + "\t" + e[0] + "\t" + e[1]);
+        }
+        Configuration best = evaluated.stream().max(Comparator.comparingDouble(sweep::getMeasure)).get();
+        System.err.println("Best: " + best.newModel().getInfo() + " " + best.parameters + " " + MEASURE + "=" + sweep.getMeasure(best));
+        index.close();
+    }
+
+    /**
+     * Evaluates every configuration of the space.
+     */
+    public List<Configuration> grid() {
+        List<Configuration> res = new ArrayList<>();
+        for (String model : MODELS)
+            grid(new Configuration(model, new LinkedHashMap<>()), new ArrayList<>(getSpace(model).entrySet()), 0, res);
+        res.parallelStream().forEach(this::evaluate);
+        return res;
+    }
+
+    private static void grid(Configuration c, List<Map.Entry<String, String[]>> space, int d, List<Configuration> res) {
+        if (d == space.size()) {
+            res.add(c);
+            return;
+        }
+        for (String v : space.get(d).getValue())
+            grid(c.with(space.get(d).getKey(), v), space, d + 1, res);
+    }
+
+    /**
+     * Evaluates sweep.samples configurations drawn uniformly from the space.
+     */
+    public List<Configuration> random() {
+        Random random = new Random(SEED);
+        Map<String, Configuration> res = new LinkedHashMap<>();
+        for (int i = 0; i < SAMPLES; i++) {
+            String model = MODELS[random.nextInt(MODELS.length)];
+            Configuration c = new Configuration(model, new LinkedHashMap<>());
+            for (Map.Entry<String, String[]> d : getSpace(model).entrySet())
+                c = c.with(d.getKey(), d.getValue()[random.nextInt(d.getValue().length)]);
+            res.put(c.getKey(), c);
+        }
+        res.values().parallelStream().forEach(this::evaluate);
+        return new ArrayList<>(res.values());
+    }
+
+    /**
+     * Optimizes one parameter at a time, all its values evaluated in parallel, until no parameter improves
+     * the measure.
+     */
+    public List<Configuration> ascent() {
+        Map<String, Configuration> res = new LinkedHashMap<>();
+        for (String model : MODELS) {
+            Map<String, String[]> space = getSpace(model);
+            Configuration current = new Configuration(model, new LinkedHashMap<>());
+            for (Map.Entry<String, String[]> d : space.entrySet())
+                current = current.with(d.getKey(), d.getValue()[(d.getValue().length - 1) / 2]);
+            res.put(current.getKey(), current);
+            boolean improved = true;
+            while (improved) {
+                improved = false;
+                for (Map.Entry<String, String[]> d : space.entrySet()) {
+                    List<Configuration> neighbours = new ArrayList<>();
+                    for (String v : d.getValue())
+                        neighbours.add(current.with(d.getKey(), v));
+                    neighbours.parallelStream().forEach(this::evaluate);
+                    for (Configuration c : neighbours)
+                        res.putIfAbsent(c.getKey(), c);
+                    Configuration best = neighbours.stream().max(Comparator.comparingDouble(this::getMeasure)).get();
+                    if (getMeasure(best) > getMeasure(current)) {
+                        current = best;
+                        improved = true;
+                    }
+                }
+            }
+        }
+        return new ArrayList<>(res.values());
+    }
+
+    private double getMeasure(Configuration c) {
+        return evaluate(c)[MEASURE.equals("ndcg") ? 1 : 0];
+    }
+
+    /**
+     * Returns MAP and nDCG@k of the configuration over the queries, evaluating it on first call.
+     */
+    public double[] evaluate(Configuration c) {
+        double[] res = evaluations.get(c.getKey());
+        if (res == null) {
+            WeightingModel model = c.newModel();
+            model.setRequest(rq);
+            model.setCollectionStatistics(cs);
+            int max = 0;
+            for (QueryPostings q : queries)
+                max = Math.max(max, q.getMaxNumberOfPostings());
+            double[] buffer = new double[max];
+            int[] ranking = new int[DEPTH];
+            double[] scores = new double[DEPTH];
+
+            double map = 0d, ndcg = 0d;
+            for (int i = 0; i < queries.size(); i++) {
+                QueryPostings q = queries.get(i);
+                double[] accumulators = new double[q.candidates.length];
+                q.score(model, accumulators, buffer);
+                TopK top = new TopK(DEPTH);
+                for (int j = 0; j < accumulators.length; j++)
+                    top.add(q.candidates[j], accumulators[j]);
+                int n = top.drain(ranking, scores);
+                map += Qrels.averagePrecision(ranking, n, relevance.get(i), numberOfRelevant.get(i));
+                ndcg += Qrels.ndcg(ranking, n, relevance.get(i), K);
+            }
+            res = new double[]{map / queries.size(), ndcg / queries.size()};
+            evaluations.put(c.getKey(), res);
+        }
+        return res;
+    }
+
+    static Map<String, String[]> getSpace(String model) {
+        Map<String, String[]> res = new LinkedHashMap<>();
+        if (model.equals("TFs_IDF_EPs")) {
+            res.put("q", TFs_IDF_EPs.tfQuantifications);
+            res.put("nc", TFs_IDF_EPs.tfNormalizationCombinations);
+            res.put("np", TFs_IDF_EPs.tfNormalizationPivotizations);
+            res.put("k1", K1);
+        } else if (model.equals("LMDs_EPs")) {
+            res.put("nc", LMDs_EPs.tfNormalizationCombinations);
+            res.put("np", LMDs_EPs.tfNormalizationPivotizations);
+        } else if (model.equals("LM_TFs_IDF_EPs")) {
+            res.put("nc", LM_TFs_IDF_EPs.lambdaqNormalizationCombinations);
+            res.put("np", LM_TFs_IDF_EPs.lambdaqNormalizationPivotizations);
+        } else {
+            throw new IllegalArgumentException("The model is invalid: " + model);
+        }
+        res.put("b", B);
+        res.put("a", A);
+        return res;
+    }
+
+    /**
+     * A model and the values of its parameters.
+     */
+    static class Configuration {
+
+        final String model;
+        final LinkedHashMap<String, String> parameters;
+
+        Configuration(String model, LinkedHashMap<String, String> parameters) {
+            this.model = model;
+            this.parameters = parameters;
+        }
+
+        Configuration with(String parameter, String value) {
+            LinkedHashMap<String, String> p = new LinkedHashMap<>(parameters);
+            p.put(parameter, value);
+            return new Configuration(model, p);
+        }
+
+        String getKey() {
+            return model + parameters;
+        }
+
+        WeightingModel newModel() {
+            double b = Double.parseDouble(parameters.get("b"));
+            double a = Double.parseDouble(parameters.get("a"));
+            if (model.equals("TFs_IDF_EPs"))
+                return new TFs_IDF_EPs(parameters.get("q"), parameters.get("nc"), parameters.get("np"), b, a,
+                        Double.parseDouble(parameters.get("k1")));
+            if (model.equals("LMDs_EPs"))
+                return new LMDs_EPs(parameters.get("nc"), parameters.get("np"), b, a);
+            return new LM_TFs_IDF_EPs(parameters.get("nc"), parameters.get("np"), b, a);
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.MetaIndex;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Intra-query parallelism: the document ids are split in ranges of equal size, and the documents of each range
+ * are matched by the {@link DocumentAtATimeMatcher} on a core of their own, into a top-k heap of their own,
+ * the heaps being merged at the end. The models are prepared once per query, in the calling thread, and only
+ * read by the partitions, which read the postings and the document statistics from a reader of their own, as
+ * the random access to an index on disk is not thread-safe. A document being scored by one partition only, in
+ * the order of the query terms, the results are those of the sequential matcher.
+ * <p>
+ * Each partition decodes, without scoring, the postings of the terms that precede its range, the posting lists
+ * having no skip pointers, so the speed-up comes from the scoring and the per-document lookups, and is the
+ * larger the longer the query.
+ * <p>
+ * Usage: PartitionedMatcher queries [k]
+ * <p>
+ * The model is that of the property trec.model, the number of partitions eps.partitions, one per core by
+ * default, and the results are printed in the TREC format.
+ *
+ * @author Aldo Lipani
+ */
+public class PartitionedMatcher implements AutoCloseable {
+
+    private static final int PARTITIONS = Integer.parseInt(System.getProperty("eps.partitions",
+            String.valueOf(Runtime.getRuntime().availableProcessors())));
+
+    private final Index index;
+    private final DocumentAtATimeMatcher matcher;
+    private final DocumentAtATimeMatcher[] partitions;
+    private final int[] bounds;
+    private final List<IndexOnDisk> readers = new ArrayList<>();
+    private final ExecutorService executor;
+
+    /**
+     * @param index      the index, which is also the reader of the first partition
+     * @param partitions the number of partitions, more than one only for an index on disk
+     */
+    public PartitionedMatcher(Index index, int partitions) throws IOException {
+        this.index = index;
+        this.matcher = new DocumentAtATimeMatcher(index);
+        if (!(index instanceof IndexOnDisk))
+            partitions = 1;
+        this.partitions = new DocumentAtATimeMatcher[partitions];
+        this.partitions[0] = matcher;
+        for (int p = 1; p < partitions; p++) {
+            IndexOnDisk reader = Index.createIndex(((IndexOnDisk) index).getPath(), ((IndexOnDisk) index).getPrefix());
+            if (reader == null)
+                throw new IOException(Index.getLastIndexLoadError());
+            readers.add(reader);
+            this.partitions[p] = new DocumentAtATimeMatcher(reader);
+        }
+        int nD = index.getCollectionStatistics().getNumberOfDocuments();
+        this.bounds = new int[partitions + 1];
+        for (int p = 0; p <= partitions; p++)
+            bounds[p] = (int) ((long) nD * p / partitions);
+        this.executor = Executors.newFixedThreadPool(partitions, r -> {
+            Thread t = new Thread(r, "PartitionedMatcher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: PartitionedMatcher queries [k]");
+            System.exit(1);
+        }
+        IndexOnDisk index = Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        WeightingModel model = Models.fromProperties();
+        MetaIndex meta = index.getMetaIndex();
+
+        int[] docIds = new int[k];
+        double[] scores = new double[k];
+        long start = System.nanoTime();
+        Map<String, String[]> queries = Queries.read(args[0]);
+        try (PartitionedMatcher matcher = new PartitionedMatcher(index, PARTITIONS)) {
+            for (Map.Entry<String, String[]> q : queries.entrySet()) {
+                int n = matcher.match(q.getValue(), model, k, docIds, scores);
+                for (int i = 0; i < n; i++)
+                    System.out.println(q.getKey() + " Q0 " + meta.getItem("docno", docIds[i]) + " " + i + " " + scores[i] + " " + model.getInfo());
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(queries.size() + " queries in " + seconds + " s");
+        index.close();
+    }
+
+    /**
+     * Writes the k best documents for the query terms into docIds and scores, best first. The queries are
+     * matched one at a time.
+     *
+     * @param terms the query terms, after the term pipeline
+     * @param model the model, cloned and prepared for each term
+     * @param k     the number of documents
+     * @return the number of documents written
+     * @throws IOException if a partition fails
+     */
+    public synchronized int match(String[] terms, WeightingModel model, int k, int[] docIds, double[] scores) throws IOException {
+        long start = EPsMetrics.ENABLED ? System.nanoTime() : 0L;
+        long scored = getNumberOfScoredPostings();
+        DocumentAtATimeMatcher.PreparedQuery query = matcher.prepare(terms, model);
+        List<Future<TopK>> futures = new ArrayList<>(partitions.length);
+        try {
+            for (int p = 0; p < partitions.length; p++) {
+                DocumentAtATimeMatcher partition = partitions[p];
+                int from = bounds[p], to = bounds[p + 1];
+                futures.add(executor.submit(() -> {
+                    TopK top = new TopK(k);
+                    partition.match(query, from, to, top);
+                    return top;
+                }));
+            }
+            TopK top = new TopK(k);
+            for (Future<TopK> f : futures)
+                top.addAll(get(f));
+            if (EPsMetrics.ENABLED)
+                EPsMetrics.recordQuery(getNumberOfScoredPostings() - scored, System.nanoTime() - start);
+            return top.drain(docIds, scores);
+        } finally {
+            for (Future<TopK> f : futures)
+                f.cancel(true);
+        }
+    }
+
+    private static TopK get(Future<TopK> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a partition", e);
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+        }
+    }
+
+    public int getNumberOfPartitions() {
+        return partitions.length;
+    }
+
+    public long getNumberOfScoredPostings() {
+        long n = 0;
+        for (DocumentAtATimeMatcher p : partitions)
+            n += p.getNumberOfScoredPostings();
+        return n;
+    }
+
+    /**
+     * Shuts the executor down and closes the readers opened by this matcher, not the index.
+     */
+    @Override
+    public void close() throws IOException {
+        executor.shutdownNow();
+        for (IndexOnDisk reader : readers)
+            reader.close();
+    }
+}
@@ -0,0 +1,93 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.MetaIndex;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Relevance judgments in the TREC qrels format, with average precision and nDCG computed as in trec_eval.
+ *
+ * @author Aldo Lipani
+ */
+public class Qrels {
+
+    private final Map<String, Map<String, Integer>> judgments = new HashMap<>();
+
+    public Qrels(String file) throws IOException {
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 4)
+                    continue;
+                judgments.computeIfAbsent(tokens[0], k -> new HashMap<>()).put(tokens[2], Integer.parseInt(tokens[3]));
+            }
+        }
+    }
+
+    /**
+     * Returns the judgments of the query keyed by document id, dropping the documents that are not in the index.
+     */
+    public Map<Integer, Integer> getRelevance(String qid, MetaIndex meta) throws IOException {
+        Map<Integer, Integer> res = new HashMap<>();
+        Map<String, Integer> q = judgments.get(qid);
+        if (q != null) {
+            for (Map.Entry<String, Integer> e : q.entrySet()) {
+                int docId = meta.getDocument("docno", e.getKey());
+                if (docId >= 0)
+                    res.put(docId, e.getValue());
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Returns the number of relevant documents of the query, including those that are not in the index.
+     */
+    public int getNumberOfRelevant(String qid) {
+        int res = 0;
+        Map<String, Integer> q = judgments.get(qid);
+        if (q != null)
+            for (int rel : q.values())
+                if (rel > 0)
+                    res++;
+        return res;
+    }
+
+    public static double averagePrecision(int[] ranking, int n, Map<Integer, Integer> relevance, int R) {
+        if (R == 0)
+            return 0d;
+        double res = 0d;
+        int hits = 0;
+        for (int i = 0; i < n; i++) {
+            Integer rel = relevance.get(ranking[i]);
+            if (rel != null && rel > 0)
+                res += (double) ++hits / (i + 1);
+        }
+        return res / R;
+    }
+
+    public static double ndcg(int[] ranking, int n, Map<Integer, Integer> relevance, int k) {
+        double dcg = 0d;
+        for (int i = 0; i < Math.min(n, k); i++) {
+            Integer rel = relevance.get(ranking[i]);
+            if (rel != null && rel > 0)
+                dcg += rel / log2(i + 2);
+        }
+        int[] ideal = relevance.values().stream().mapToInt(Integer::intValue).filter(rel -> rel > 0).toArray();
+        Arrays.sort(ideal);
+        double idcg = 0d;
+        for (int i = 0; i < Math.min(ideal.length, k); i++)
+            idcg += ideal[ideal.length - 1 - i] / log2(i + 2);
+        return idcg > 0 ? dcg / idcg : 0d;
+    }
+
+    private static double log2(double x) {
+        return Math.log(x) / Math.log(2d);
+    }
+}
@@ -0,0 +1,173 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Document statistics quantized on a log scale, read from a memory-mapped sidecar file written by
+ * {@link DocumentStatisticsBuilder}, for collections too large for the exact sidecar: each document holds an 8
+ * or 16-bit code of l_d and one of l_d/nT_d, 2 or 4 bytes instead of 12, and nT_d is derived from the two. A code
+ * indexes a table of 2^bits values, 0 for the empty documents, then a geometric progression from the minimum to
+ * the maximum of the collection, much like the norms of Lucene.
+ * <p>
+ * With a ratio e^s between consecutive values, every decoded value is within a relative error
+ * e^(s/2) - 1 of the exact one, for the length e_l and the verboseness e_v, which the builder reports. The
+ * pivoted length and verboseness read by the models are then within a relative error e = (1 + e_l)(1 + e_v) - 1,
+ * and so is K, for a and b in [0, 1]. To first order in e, a score of TFs_IDF_EPs is within a relative error e,
+ * whatever the quantification; a score of LMDs_EPs, a logarithm, within an absolute error 2e/ln 2 when the
+ * term is more frequent in the document than in the collection, max(2, K)e/ln 2 otherwise; a score of
+ * LM_TFs_IDF_EPs does not depend on them. The collection statistics are computed from the document index, so
+ * they are exact.
+ * <p>
+ * The file holds, after a fixed header with the minimum and maximum of l_d and l_d/nT_d and the number of tokens
+ * of the index it was built from, the column of the codes of l_d, then that of the codes of l_d/nT_d. It is
+ * only read if eps.docstats.quantized is true.
+ *
+ * @author Aldo Lipani
+ */
+public class QuantizedDocumentStatistics implements DocumentStatistics {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("eps.docstats.quantized", "false"));
+
+    static final String SUFFIX = ".qdocstats";
+
+    static final int MAGIC = 0x45505144;
+    static final int VERSION = 2;
+    static final int HEADER_SIZE = 56;
+
+    private static final int SEGMENT_SHIFT = 30;
+    private static final long SEGMENT_MASK = (1L << SEGMENT_SHIFT) - 1;
+
+    private final int nD;
+    private final int bits;
+    private final long numberOfTokens;
+    private final Codebook length;
+    private final Codebook verboseness;
+
+    private final MappedByteBuffer[] segments;
+
+    public QuantizedDocumentStatistics(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r");
+             FileChannel channel = raf.getChannel()) {
+            long size = channel.size();
+            segments = new MappedByteBuffer[(int) ((size + SEGMENT_MASK) >>> SEGMENT_SHIFT)];
+            for (int i = 0; i < segments.length; i++) {
+                long position = (long) i << SEGMENT_SHIFT;
+                segments[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(size - position, 1L << SEGMENT_SHIFT));
+                segments[i].order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+        if (segments.length == 0 || segments[0].getInt(0) != MAGIC || segments[0].getInt(4) != VERSION)
+            throw new IOException("Not a quantized document statistics file of version " + VERSION + ": " + file);
+        nD = segments[0].getInt(8);
+        bits = segments[0].getInt(12);
+        length = new Codebook(segments[0].getDouble(16), segments[0].getDouble(24), bits);
+        verboseness = new Codebook(segments[0].getDouble(32), segments[0].getDouble(40), bits);
+        numberOfTokens = segments[0].getLong(48);
+        long size = 0L;
+        for (MappedByteBuffer segment : segments)
+            size += segment.capacity();
+        if (size < getColumnOffset(2, nD, bits))
+            throw new IOException("Truncated quantized document statistics file: " + file);
+    }
+
+    /**
+     * Returns true if the file was built from an index with the same numbers of documents and tokens as this one.
+     */
+    boolean matches(Index index) {
+        CollectionStatistics cs = index.getCollectionStatistics();
+        return nD == cs.getNumberOfDocuments() && numberOfTokens == cs.getNumberOfTokens();
+    }
+
+    static File getFile(IndexOnDisk index) {
+        return new File(index.getPath(), index.getPrefix() + SUFFIX);
+    }
+
+    static long getColumnOffset(int column, int nD, int bits) {
+        return HEADER_SIZE + (long) nD * (bits / 8) * column;
+    }
+
+    public int getNumberOfDocuments() {
+        return nD;
+    }
+
+    public int getNumberOfBits() {
+        return bits;
+    }
+
+    public double getDocumentLength(int docId) {
+        return length.decode(getCode(0, docId));
+    }
+
+    /**
+     * Returns l_d over its verboseness, so that l_d/nT_d is the decoded verboseness up to rounding.
+     */
+    public double getNumberOfUniqueTerms(int docId) {
+        double v = getVerboseness(docId);
+        return v == 0d ? 0d : getDocumentLength(docId) / v;
+    }
+
+    public double getVerboseness(int docId) {
+        return verboseness.decode(getCode(1, docId));
+    }
+
+    /**
+     * Returns e, the bound of the relative error of the pivoted length and verboseness of a document.
+     */
+    public double getRelativeError() {
+        return (1d + length.getRelativeError()) * (1d + verboseness.getRelativeError()) - 1d;
+    }
+
+    private int getCode(int column, int docId) {
+        long position = getColumnOffset(column, nD, bits) + (long) (bits / 8) * docId;
+        MappedByteBuffer segment = segments[(int) (position >>> SEGMENT_SHIFT)];
+        int offset = (int) (position & SEGMENT_MASK);
+        return bits == 8 ? segment.get(offset) & 0xFF : segment.getShort(offset) & 0xFFFF;
+    }
+
+    /**
+     * The log-scale table of the values of a statistic: 0, then 2^bits - 1 values from min to max.
+     */
+    static class Codebook {
+
+        private final double logMin;
+        private final double step;
+        private final double[] values;
+
+        Codebook(double min, double max, int bits) {
+            if (bits != 8 && bits != 16)
+                throw new IllegalArgumentException("The number of bits is neither 8 nor 16: " + bits);
+            int n = 1 << bits;
+            this.logMin = min > 0d ? Math.log(min) : 0d;
+            this.step = min > 0d && max > min ? (Math.log(max) - logMin) / (n - 2) : 0d;
+            this.values = new double[n];
+            for (int c = 1; c < n; c++)
+                values[c] = Math.exp(logMin + (c - 1) * step);
+        }
+
+        int encode(double x) {
+            if (x <= 0d)
+                return 0;
+            if (step == 0d)
+                return 1;
+            long c = 1 + Math.round((Math.log(x) - logMin) / step);
+            return (int) Math.max(1, Math.min(values.length - 1, c));
+        }
+
+        double decode(int code) {
+            return values[code];
+        }
+
+        double getRelativeError() {
+            return Math.expm1(step / 2d);
+        }
+    }
+}
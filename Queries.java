@@ -0,0 +1,44 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.terms.BaseTermPipelineAccessor;
+import org.terrier.utility.ApplicationSetup;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Reads a query file with one query per line, its id followed by its terms separated by white spaces.
+ * The terms go through the term pipeline of the index (property termpipelines) and are deduplicated,
+ * as the models ignore the query term frequency.
+ *
+ * @author Aldo Lipani
+ */
+public class Queries {
+
+    public static Map<String, String[]> read(String file) throws IOException {
+        String pipes = ApplicationSetup.getProperty("termpipelines", "Stopwords,PorterStemmer").trim();
+        BaseTermPipelineAccessor pipeline = new BaseTermPipelineAccessor(pipes.isEmpty() ? new String[0] : pipes.split("\\s*,\\s*"));
+        Map<String, String[]> res = new LinkedHashMap<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(file))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                String[] tokens = line.trim().split("\\s+");
+                if (tokens.length < 2)
+                    continue;
+                Set<String> terms = new LinkedHashSet<>();
+                for (int i = 1; i < tokens.length; i++) {
+                    String term = pipeline.pipelineTerm(tokens[i].toLowerCase());
+                    if (term != null)
+                        terms.add(term);
+                }
+                res.put(tokens[0], terms.toArray(new String[terms.size()]));
+            }
+        }
+        return res;
+    }
+}
@@ -0,0 +1,159 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.structures.Index;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.postings.IterablePosting;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The postings of the terms of a query loaded in primitive arrays, with the per-document statistics the models
+ * need, so that a query can be scored many times without reading the index.
+ *
+ * @author Aldo Lipani
+ */
+public class QueryPostings {
+
+    public final String qid;
+
+    /**
+     * The terms of the query found in the lexicon, and their entries
+     */
+    public final String[] terms;
+    private final LexiconEntry[] entries;
+
+    /**
+     * The sorted ids of the documents that contain at least one term
+     */
+    public final int[] candidates;
+
+    /**
+     * Per term: the postings and, for each posting, the position of its document in the candidates
+     */
+    private final int[][] docIds;
+    private final int[][] tfs;
+    private final int[][] lengths;
+    private final double[][] uniqueTerms;
+    private final int[][] slots;
+
+    private QueryPostings(String qid, String[] terms, LexiconEntry[] entries,
+                          int[][] docIds, int[][] tfs, int[][] lengths, double[][] uniqueTerms) {
+        this.qid = qid;
+        this.terms = terms;
+        this.entries = entries;
+        this.docIds = docIds;
+        this.tfs = tfs;
+        this.lengths = lengths;
+        this.uniqueTerms = uniqueTerms;
+
+        int n = 0;
+        for (int[] ids : docIds)
+            n += ids.length;
+        int[] all = new int[n];
+        n = 0;
+        for (int[] ids : docIds) {
+            System.arraycopy(ids, 0, all, n, ids.length);
+            n += ids.length;
+        }
+        this.candidates = Arrays.stream(all).sorted().distinct().toArray();
+        this.slots = new int[docIds.length][];
+        for (int t = 0; t < docIds.length; t++) {
+            slots[t] = new int[docIds[t].length];
+            for (int i = 0; i < docIds[t].length; i++)
+                slots[t][i] = Arrays.binarySearch(candidates, docIds[t][i]);
+        }
+    }
+
+    public static QueryPostings load(Index index, DocumentStatistics ds, String qid, String[] terms) throws IOException {
+        List<String> found = new ArrayList<>();
+        List<LexiconEntry> entries = new ArrayList<>();
+        for (String term : terms) {
+            LexiconEntry le = index.getLexicon().getLexiconEntry(term);
+            if (le != null) {
+                found.add(term);
+                entries.add(le);
+            }
+        }
+        int T = found.size();
+        int[][] docIds = new int[T][], tfs = new int[T][], lengths = new int[T][];
+        double[][] uniqueTerms = new double[T][];
+        for (int t = 0; t < T; t++) {
+            LexiconEntry le = entries.get(t);
+            int df = le.getDocumentFrequency();
+            docIds[t] = new int[df];
+            tfs[t] = new int[df];
+            lengths[t] = new int[df];
+            uniqueTerms[t] = new double[df];
+            IterablePosting ip = index.getInvertedIndex().getPostings(le);
+            int i = 0;
+            while (ip.next() != IterablePosting.EOL) {
+                docIds[t][i] = ip.getId();
+                tfs[t][i] = ip.getFrequency();
+                lengths[t][i] = ip.getDocumentLength();
+                uniqueTerms[t][i] = ds.getNumberOfUniqueTerms(ip.getId());
+                i++;
+            }
+            ip.close();
+        }
+        return new QueryPostings(qid, found.toArray(new String[T]), entries.toArray(new LexiconEntry[T]),
+                docIds, tfs, lengths, uniqueTerms);
+    }
+
+    /**
+     * Reads the postings of a term, keeping only the frequencies of the term in the candidates.
+     *
+     * @param candidates the sorted ids of the documents
+     * @return the frequency of the term in each candidate, 0 if absent
+     */
+    static int[] loadFrequencies(Index index, LexiconEntry le, int[] candidates) throws IOException {
+        int[] res = new int[candidates.length];
+        IterablePosting ip = index.getInvertedIndex().getPostings(le);
+        // the next candidate is always past the current posting, as next(target) moves at least once
+        for (int c = 0; c < candidates.length; ) {
+            int id = ip.next(candidates[c]);
+            if (id == IterablePosting.EOL)
+                break;
+            while (c < candidates.length && candidates[c] < id)
+                c++;
+            if (c < candidates.length && candidates[c] == id)
+                res[c++] = ip.getFrequency();
+        }
+        ip.close();
+        return res;
+    }
+
+    public int getNumberOfPostings(int term) {
+        return docIds[term].length;
+    }
+
+    public int getMaxNumberOfPostings() {
+        int res = 0;
+        for (int[] ids : docIds)
+            res = Math.max(res, ids.length);
+        return res;
+    }
+
+    /**
+     * Adds the scores of the postings of every term to the accumulators of the candidates.
+     *
+     * @param model        the model, whose request and collection statistics are set
+     * @param accumulators the scores of the candidates
+     * @param buffer       scratch space of at least getMaxNumberOfPostings() values
+     */
+    public void score(WeightingModel model, double[] accumulators, double[] buffer) {
+        for (int t = 0; t < terms.length; t++) {
+            model.setEntryStatistics(entries[t]);
+            model.setKeyFrequency(1d);
+            model.prepare();
+            int n = docIds[t].length;
+            ((BatchWeightingModel) model).score(docIds[t], tfs[t], lengths[t], uniqueTerms[t], n, buffer);
+            int[] slot = slots[t];
+            for (int i = 0; i < n; i++)
+                accumulators[slot[i]] += buffer[i];
+        }
+    }
+}
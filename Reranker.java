@@ -0,0 +1,185 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.querying.Request;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexConfigurable;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.MetaIndex;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * Two-stage retrieval: a cheap model retrieves the N best candidates of a query, with the
+ * {@link DocumentAtATimeMatcher}, then one of the EPs models re-scores the candidates only. The statistics of
+ * the candidates are read in one pass in the order of their ids, and the frequencies of each query term in one
+ * pass over its postings, skipping to the candidates; the candidates containing a term are then scored in a
+ * batch with {@link BatchWeightingModel}. The per-document lookups and normalizations of the model are thus
+ * paid on N documents instead of all the postings, N being chosen per query to trade effectiveness for latency.
+ * <p>
+ * Usage: Reranker queries [k]
+ * <p>
+ * The second stage is the model of the property trec.model, the first stage that of eps.rerank.first, Terrier
+ * BM25 by default, and N is eps.rerank.depth, 100 by default. The results are printed in the TREC format.
+ *
+ * @author Aldo Lipani
+ */
+public class Reranker {
+
+    private static final String FIRST = System.getProperty("eps.rerank.first", "org.terrier.matching.models.BM25");
+    private static final int DEPTH = Integer.parseInt(System.getProperty("eps.rerank.depth", "100"));
+
+    private final Index index;
+    private final DocumentStatistics ds;
+    private final Request rq;
+    private final DocumentAtATimeMatcher matcher;
+    private final WeightingModel first;
+
+    private int[] candidates = new int[0];
+    private double[] firstScores = new double[0];
+
+    private long rescoredPostings;
+
+    /**
+     * @param first the model of the first stage
+     */
+    public Reranker(Index index, WeightingModel first) throws IOException {
+        this.index = index;
+        this.ds = IndexRegistry.getDocumentStatistics(index);
+        this.rq = new Request();
+        this.rq.setIndex(index);
+        this.matcher = new DocumentAtATimeMatcher(index);
+        this.first = first;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: Reranker queries [k]");
+            System.exit(1);
+        }
+        IndexOnDisk index = Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        int k = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+        WeightingModel model = Models.fromProperties();
+        WeightingModel first = Models.forName(FIRST);
+        MetaIndex meta = index.getMetaIndex();
+
+        Reranker reranker = new Reranker(index, first);
+        int[] docIds = new int[k];
+        double[] scores = new double[k];
+        long start = System.nanoTime();
+        Map<String, String[]> queries = Queries.read(args[0]);
+        for (Map.Entry<String, String[]> q : queries.entrySet()) {
+            int n = reranker.search(q.getValue(), model, DEPTH, k, docIds, scores);
+            for (int i = 0; i < n; i++)
+                System.out.println(q.getKey() + " Q0 " + meta.getItem("docno", docIds[i]) + " " + i + " " + scores[i] + " " + model.getInfo());
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        System.err.println(queries.size() + " queries in " + seconds + " s, " + reranker.rescoredPostings + " postings re-scored");
+        index.close();
+    }
+
+    /**
+     * Retrieves the depth best documents with the first stage, and writes the k best of them for the model
+     * into docIds and scores, best first.
+     *
+     * @param terms the query terms, after the term pipeline
+     * @param model the model of the second stage, which must implement {@link BatchWeightingModel}
+     * @param depth the number of candidates N
+     * @param k     the number of documents, at most N
+     * @return the number of documents written
+     */
+    public int search(String[] terms, WeightingModel model, int depth, int k, int[] docIds, double[] scores) throws IOException {
+        if (candidates.length < depth) {
+            candidates = new int[depth];
+            firstScores = new double[depth];
+        }
+        int n = matcher.match(terms, first, depth, candidates, firstScores);
+        return rerank(terms, model, candidates, n, k, docIds, scores);
+    }
+
+    /**
+     * Re-scores the first n candidates with the model, and writes the k best of them into docIds and scores,
+     * best first. The candidates containing none of the terms are left out, and the scores of the others are
+     * those of an exhaustive retrieval with the model.
+     *
+     * @param terms      the query terms, after the term pipeline
+     * @param model      the model, which must implement {@link BatchWeightingModel}
+     * @param candidates the ids of the candidates, in any order
+     * @return the number of documents written
+     * @throws IllegalArgumentException if the model does not score in batches
+     */
+    public int rerank(String[] terms, WeightingModel model, int[] candidates, int n, int k, int[] docIds, double[] scores) throws IOException {
+        if (!(model instanceof BatchWeightingModel))
+            throw new IllegalArgumentException("The model does not score in batches: " + model.getInfo());
+        int[] sorted = Arrays.stream(candidates, 0, n).sorted().distinct().toArray();
+        int N = sorted.length;
+        int[] l_d = new int[N];
+        double[] nT_d = new double[N];
+        for (int c = 0; c < N; c++) {
+            l_d[c] = (int) Math.round(ds.getDocumentLength(sorted[c]));
+            nT_d[c] = ds.getNumberOfUniqueTerms(sorted[c]);
+        }
+
+        double[] accumulators = new double[N];
+        boolean[] matched = new boolean[N];
+        int[] ids = new int[N], tfd = new int[N], l = new int[N], slots = new int[N];
+        double[] nT = new double[N];
+        double[] buffer = new double[N];
+        // the first clone takes the statistics on its prepare(), and the clones of it share them
+        WeightingModel prototype = model;
+        for (String term : terms) {
+            LexiconEntry le = index.getLexicon().getLexiconEntry(term);
+            if (le == null)
+                continue;
+            int[] tfs = QueryPostings.loadFrequencies(index, le, sorted);
+            int m = 0;
+            for (int c = 0; c < N; c++) {
+                if (tfs[c] > 0) {
+                    ids[m] = sorted[c];
+                    tfd[m] = tfs[c];
+                    l[m] = l_d[c];
+                    nT[m] = nT_d[c];
+                    slots[m++] = c;
+                }
+            }
+            WeightingModel wm = prepare(prototype, le);
+            if (prototype == model)
+                prototype = wm;
+            ((BatchWeightingModel) wm).score(ids, tfd, l, nT, m, buffer);
+            for (int i = 0; i < m; i++) {
+                accumulators[slots[i]] += buffer[i];
+                matched[slots[i]] = true;
+            }
+            rescoredPostings += m;
+        }
+
+        TopK top = new TopK(k);
+        for (int c = 0; c < N; c++)
+            if (matched[c])
+                top.add(sorted[c], accumulators[c]);
+        return top.drain(docIds, scores);
+    }
+
+    private WeightingModel prepare(WeightingModel model, LexiconEntry le) {
+        WeightingModel m = model.clone();
+        if (m instanceof IndexConfigurable)
+            ((IndexConfigurable) m).setIndex(index);
+        m.setRequest(rq);
+        m.setCollectionStatistics(index.getCollectionStatistics());
+        m.setEntryStatistics(le);
+        m.setKeyFrequency(1d);
+        m.prepare();
+        return m;
+    }
+
+    public long getNumberOfRescoredPostings() {
+        return rescoredPostings;
+    }
+}
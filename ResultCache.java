@@ -0,0 +1,257 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.Index;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Caches the results of the queries on an index, keyed by the configuration of the model, its getInfo(), and
+ * by the sorted query terms, so that a query repeated, or with its terms in another order, is not scored again.
+ * The results of a query are cached for the largest k it has been searched with, and serve any smaller k.
+ * <p>
+ * The results are evicted in least recently used order when their total size exceeds the budget. As they depend
+ * on the collection statistics, the cache is cleared when nZnD, avgV or avgB change, as they do when
+ * {@link IncrementalStatistics} are updated, or when the overrides of the statistics of the models are set, and
+ * the results of a query scored with other statistics or overrides than the current ones are not cached.
+ * <p>
+ * The cache is enabled with the property eps.result.cache=true, and its budget in bytes is set by
+ * eps.result.cache.budget, by default a sixteenth of the maximum heap. If eps.result.cache.file is set, the cache
+ * is loaded from the file when created, unless the statistics of the index have changed since, and saved to it
+ * when closed, so that a restarted service keeps its hits.
+ *
+ * @author Aldo Lipani
+ */
+public class ResultCache {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("eps.result.cache", "false"));
+
+    static final long BUDGET = Long.parseLong(System.getProperty("eps.result.cache.budget",
+            String.valueOf(Runtime.getRuntime().maxMemory() / 16)));
+
+    static final String FILE = System.getProperty("eps.result.cache.file");
+
+    private static final int MAGIC = 0x45505243;
+    private static final int VERSION = 2;
+
+    private final Index index;
+    private final long budget;
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long size = 0;
+
+    /**
+     * The statistics the cached results have been scored with
+     */
+    private EPsStatistics statistics;
+
+    /**
+     * The overrides of the statistics the cached results have been scored with, from {@link #getOverrides()}
+     */
+    private String overrides;
+
+    public ResultCache(Index index, long budget) throws IOException {
+        this.index = index;
+        this.budget = budget;
+        this.statistics = EPsStatistics.get(index);
+        this.overrides = getOverrides();
+    }
+
+    /**
+     * Returns the overrides of the collection statistics of the models, TFs_IDF_EPs.nZnD and avgV,
+     * LMDs_EPs.nZnD and avgV, and LM_TFs_IDF_EPs.nZnD and avgB, on which the scores depend as much as on the
+     * statistics of the index.
+     */
+    static String getOverrides() {
+        return TFs_IDF_EPs.nZnD + " " + TFs_IDF_EPs.avgV + " " + LMDs_EPs.nZnD + " " + LMDs_EPs.avgV + " " +
+                LM_TFs_IDF_EPs.nZnD + " " + LM_TFs_IDF_EPs.avgB;
+    }
+
+    /**
+     * Returns the k best documents of a query from the cache, or null if they are not cached.
+     *
+     * @param info  the configuration of the model
+     * @param terms the query terms
+     * @param qid   the identifier of the query the results are returned for
+     */
+    public synchronized BatchExecutor.Result get(String info, String[] terms, int k, String qid) throws IOException {
+        validate();
+        Entry e = entries.get(getKey(info, terms));
+        boolean hit = e != null && (e.k >= k || e.docIds.length < e.k);
+        if (EPsMetrics.ENABLED)
+            (hit ? EPsMetrics.RESULT_CACHE_HITS : EPsMetrics.RESULT_CACHE_MISSES).increment();
+        if (!hit)
+            return null;
+        BatchExecutor.Result res = new BatchExecutor.Result(qid, Math.min(k, e.docIds.length));
+        System.arraycopy(e.docIds, 0, res.docIds, 0, res.docIds.length);
+        System.arraycopy(e.scores, 0, res.scores, 0, res.scores.length);
+        return res;
+    }
+
+    /**
+     * Caches the k best documents of a query, unless they have been scored with other statistics or overrides
+     * than the current ones.
+     *
+     * @param statistics the statistics of the index taken before the query was scored
+     * @param overrides  the overrides of the statistics taken before the query was scored
+     */
+    public synchronized void put(String info, String[] terms, int k, BatchExecutor.Result res, EPsStatistics statistics,
+                                 String overrides) throws IOException {
+        validate();
+        if (!equals(this.statistics, statistics) || !this.overrides.equals(overrides))
+            return;
+        String key = getKey(info, terms);
+        Entry old = entries.get(key);
+        if (old != null && old.k >= k)
+            return;
+        put(key, new Entry(k, res.docIds.clone(), res.scores.clone()));
+    }
+
+    private void put(String key, Entry e) {
+        long bytes = getSize(key, e);
+        if (bytes > budget)
+            return;
+        Entry old = entries.remove(key);
+        if (old != null)
+            size -= getSize(key, old);
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (size + bytes > budget) {
+            Map.Entry<String, Entry> lru = it.next();
+            size -= getSize(lru.getKey(), lru.getValue());
+            it.remove();
+        }
+        entries.put(key, e);
+        size += bytes;
+    }
+
+    /**
+     * Clears the cache if the statistics of the index or their overrides have changed.
+     */
+    private void validate() throws IOException {
+        EPsStatistics current = EPsStatistics.get(index);
+        String currentOverrides = getOverrides();
+        if (!equals(statistics, current) || !overrides.equals(currentOverrides)) {
+            entries.clear();
+            size = 0;
+            statistics = current;
+            overrides = currentOverrides;
+        }
+    }
+
+    private static boolean equals(EPsStatistics s, EPsStatistics o) {
+        return s == o || s.nZnD == o.nZnD && Double.compare(s.avgV, o.avgV) == 0 && Double.compare(s.avgB, o.avgB) == 0;
+    }
+
+    /**
+     * Returns the key of a query: the configuration and the sorted terms, a repeated term kept as it is
+     * scored once per occurrence.
+     */
+    private static String getKey(String info, String[] terms) {
+        String[] sorted = terms.clone();
+        Arrays.sort(sorted);
+        StringBuilder sb = new StringBuilder(info);
+        for (String term : sorted)
+            sb.append('\n').append(term);
+        return sb.toString();
+    }
+
+    /**
+     * Returns an estimate of the bytes taken by an entry: the key, the arrays and the headers of the objects.
+     */
+    private static long getSize(String key, Entry e) {
+        return 2L * key.length() + 12L * e.docIds.length + 128;
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Loads the entries saved to a file, in least recently used order, unless the file is missing or the
+     * statistics, their overrides or the size of the index differ from those the entries have been scored with.
+     *
+     * @return the number of entries loaded
+     */
+    public synchronized int load(File file) throws IOException {
+        if (!file.exists())
+            return 0;
+        validate();
+        CollectionStatistics cs = index.getCollectionStatistics();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a result cache file: " + file);
+            int nD = in.readInt();
+            long numberOfTokens = in.readLong();
+            EPsStatistics s = new EPsStatistics(in.readInt(), in.readDouble(), in.readDouble());
+            if (nD != cs.getNumberOfDocuments() || numberOfTokens != cs.getNumberOfTokens() || !equals(statistics, s)
+                    || !overrides.equals(in.readUTF()))
+                return 0;
+            int n = in.readInt();
+            for (int i = 0; i < n; i++) {
+                String key = in.readUTF();
+                int k = in.readInt();
+                int[] docIds = new int[in.readInt()];
+                double[] scores = new double[docIds.length];
+                for (int j = 0; j < docIds.length; j++) {
+                    docIds[j] = in.readInt();
+                    scores[j] = in.readDouble();
+                }
+                put(key, new Entry(k, docIds, scores));
+            }
+            return n;
+        }
+    }
+
+    /**
+     * Saves the entries to a file, in least recently used order.
+     */
+    public synchronized void save(File file) throws IOException {
+        CollectionStatistics cs = index.getCollectionStatistics();
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(cs.getNumberOfDocuments());
+            out.writeLong(cs.getNumberOfTokens());
+            out.writeInt(statistics.nZnD);
+            out.writeDouble(statistics.avgV);
+            out.writeDouble(statistics.avgB);
+            out.writeUTF(overrides);
+            out.writeInt(entries.size());
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                out.writeUTF(e.getKey());
+                out.writeInt(e.getValue().k);
+                out.writeInt(e.getValue().docIds.length);
+                for (int j = 0; j < e.getValue().docIds.length; j++) {
+                    out.writeInt(e.getValue().docIds[j]);
+                    out.writeDouble(e.getValue().scores[j]);
+                }
+            }
+        }
+    }
+
+    /**
+     * The k best documents of a query, fewer if fewer documents match it.
+     */
+    private static class Entry {
+
+        final int k;
+        final int[] docIds;
+        final double[] scores;
+
+        Entry(int k, int[] docIds, double[] scores) {
+            this.k = k;
+            this.docIds = docIds;
+            this.scores = scores;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package at.ac.tuwien.ifs;
+
+/**
+ * Collection statistics estimated from a sample of the documents and terms of an index, together with the
+ * half-widths of their confidence intervals.
+ *
+ * @author Aldo Lipani
+ */
+public class SampledStatistics extends EPsStatistics {
+
+    public final double nZnDError;
+    public final double avgVError;
+    public final double avgBError;
+
+    public final long documentSampleSize;
+    public final long termSampleSize;
+
+    public SampledStatistics(int nZnD, double avgV, double avgB,
+                             double nZnDError, double avgVError, double avgBError,
+                             long documentSampleSize, long termSampleSize) {
+        super(nZnD, avgV, avgB);
+        this.nZnDError = nZnDError;
+        this.avgVError = avgVError;
+        this.avgBError = avgBError;
+        this.documentSampleSize = documentSampleSize;
+        this.termSampleSize = termSampleSize;
+    }
+
+    /**
+     * Returns the largest half-width of the confidence intervals relative to its estimate.
+     *
+     * @return the relative error of the estimate
+     */
+    public double getRelativeError() {
+        return Math.max(nZnDError / nZnD, Math.max(avgVError / avgV, avgBError / avgB));
+    }
+
+    public String toString() {
+        return "nZnD=" + nZnD + " +- " + String.format("%.1f", nZnDError) +
+                " avgV=" + avgV + " +- " + String.format("%.6f", avgVError) +
+                " avgB=" + avgB + " +- " + String.format("%.6f", avgBError) +
+                " (" + documentSampleSize + " documents, " + termSampleSize + " terms)";
+    }
+}
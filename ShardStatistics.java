@@ -0,0 +1,220 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.Lexicon;
+import org.terrier.structures.LexiconEntry;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+
+/**
+ * The partial sums of the collection statistics of a shard of a corpus: its numbers of documents, tokens and
+ * pointers, its number of non-zero length documents and the sum of their verboseness, and the frequency and
+ * document frequency of each of its terms. The sums of the shards merge into the sums of the corpus, from
+ * which {@link GlobalStatistics} derives the statistics every shard scores with, so that their scores are
+ * comparable. The burstiness of a term is that of its global frequencies, so the terms are part of the sums.
+ * <p>
+ * The sums are exchanged as files: each shard writes its own, a coordinator merges them into the global file,
+ * which every shard then loads with the property eps.global.statistics.
+ * <p>
+ * Usage: ShardStatistics [path prefix], to write the sums of a shard to &lt;prefix&gt;.shard
+ * <br>
+ * Usage: ShardStatistics -merge global shard..., to merge the sums of the shards
+ *
+ * @author Aldo Lipani
+ */
+public class ShardStatistics {
+
+    static final String SUFFIX = ".shard";
+
+    private static final int MAGIC = 0x45505353;
+    private static final int VERSION = 1;
+
+    final int nD;
+    final long numberOfTokens;
+    final long numberOfPointers;
+    final int nZnD;
+    final double sumV;
+
+    /**
+     * The sorted terms, their frequencies and document frequencies
+     */
+    final String[] terms;
+    final int[] termFrequencies;
+    final int[] documentFrequencies;
+
+    ShardStatistics(int nD, long numberOfTokens, long numberOfPointers, int nZnD, double sumV,
+                    String[] terms, int[] termFrequencies, int[] documentFrequencies) {
+        this.nD = nD;
+        this.numberOfTokens = numberOfTokens;
+        this.numberOfPointers = numberOfPointers;
+        this.nZnD = nZnD;
+        this.sumV = sumV;
+        this.terms = terms;
+        this.termFrequencies = termFrequencies;
+        this.documentFrequencies = documentFrequencies;
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length > 0 && args[0].equals("-merge")) {
+            if (args.length < 3) {
+                System.err.println("Usage: ShardStatistics -merge global shard...");
+                System.exit(1);
+            }
+            ShardStatistics[] shards = new ShardStatistics[args.length - 2];
+            for (int i = 0; i < shards.length; i++)
+                shards[i] = read(new File(args[i + 2]));
+            ShardStatistics global = merge(shards);
+            global.write(new File(args[1]));
+            System.err.println("Merged " + shards.length + " shards: " + global);
+            return;
+        }
+        IndexOnDisk index = args.length == 2 ? Index.createIndex(args[0], args[1]) : Index.createIndex();
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        File file = new File(index.getPath(), index.getPrefix() + SUFFIX);
+        ShardStatistics shard = compute(index);
+        shard.write(file);
+        index.close();
+        System.err.println("Shard statistics written to " + file + ": " + shard);
+    }
+
+    /**
+     * Computes the sums of the index from its local statistics, those stored in its properties if any.
+     */
+    public static ShardStatistics compute(Index index) throws IOException {
+        CollectionStatistics cs = index.getCollectionStatistics();
+        EPsStatistics s = EPsStatistics.load(index);
+        if (s == null)
+            s = EPsStatistics.compute(index);
+
+        Lexicon<String> lex = index.getLexicon();
+        int nT = lex.numberOfEntries();
+        String[] terms = new String[nT];
+        LexiconEntry[] entries = new LexiconEntry[nT];
+        for (int i = 0; i < nT; i++) {
+            Map.Entry<String, LexiconEntry> e = lex.getIthLexiconEntry(i);
+            terms[i] = e.getKey();
+            entries[i] = e.getValue();
+        }
+        Integer[] order = new Integer[nT];
+        for (int i = 0; i < nT; i++)
+            order[i] = i;
+        Arrays.sort(order, (x, y) -> terms[x].compareTo(terms[y]));
+        String[] sortedTerms = new String[nT];
+        int[] termFrequencies = new int[nT];
+        int[] documentFrequencies = new int[nT];
+        for (int t = 0; t < nT; t++) {
+            sortedTerms[t] = terms[order[t]];
+            termFrequencies[t] = entries[order[t]].getFrequency();
+            documentFrequencies[t] = entries[order[t]].getDocumentFrequency();
+        }
+        return new ShardStatistics(cs.getNumberOfDocuments(), cs.getNumberOfTokens(), cs.getNumberOfPointers(),
+                s.nZnD, s.avgV * s.nZnD, sortedTerms, termFrequencies, documentFrequencies);
+    }
+
+    /**
+     * Returns the sums of the shards, the frequencies of the terms they share added.
+     *
+     * @throws ArithmeticException if a sum exceeds the range of an int, as the statistics of Terrier do
+     */
+    public static ShardStatistics merge(ShardStatistics... shards) {
+        ShardStatistics res = shards[0];
+        for (int i = 1; i < shards.length; i++)
+            res = res.merge(shards[i]);
+        return res;
+    }
+
+    private ShardStatistics merge(ShardStatistics other) {
+        int n = terms.length + other.terms.length;
+        String[] t = new String[n];
+        int[] tf = new int[n];
+        int[] df = new int[n];
+        int i = 0, j = 0, m = 0;
+        while (i < terms.length || j < other.terms.length) {
+            int c = i == terms.length ? 1 : j == other.terms.length ? -1 : terms[i].compareTo(other.terms[j]);
+            if (c <= 0) {
+                t[m] = terms[i];
+                tf[m] = termFrequencies[i];
+                df[m] = documentFrequencies[i++];
+            }
+            if (c >= 0) {
+                t[m] = other.terms[j];
+                tf[m] = c == 0 ? Math.addExact(tf[m], other.termFrequencies[j]) : other.termFrequencies[j];
+                df[m] = c == 0 ? Math.addExact(df[m], other.documentFrequencies[j]) : other.documentFrequencies[j];
+                j++;
+            }
+            m++;
+        }
+        return new ShardStatistics(Math.addExact(nD, other.nD), numberOfTokens + other.numberOfTokens,
+                numberOfPointers + other.numberOfPointers, Math.addExact(nZnD, other.nZnD), sumV + other.sumV,
+                Arrays.copyOf(t, m), Arrays.copyOf(tf, m), Arrays.copyOf(df, m));
+    }
+
+    /**
+     * Returns the statistics of the models derived from the sums.
+     */
+    public EPsStatistics getStatistics() {
+        double sumB = 0d;
+        for (int t = 0; t < terms.length; t++)
+            sumB += (double) termFrequencies[t] / documentFrequencies[t];
+        return new EPsStatistics(nZnD, sumV / nZnD, sumB / terms.length);
+    }
+
+    public void write(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(nD);
+            out.writeLong(numberOfTokens);
+            out.writeLong(numberOfPointers);
+            out.writeInt(nZnD);
+            out.writeDouble(sumV);
+            out.writeInt(terms.length);
+            for (int t = 0; t < terms.length; t++) {
+                out.writeUTF(terms[t]);
+                out.writeInt(termFrequencies[t]);
+                out.writeInt(documentFrequencies[t]);
+            }
+        }
+    }
+
+    public static ShardStatistics read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("Not a shard statistics file: " + file);
+            int nD = in.readInt();
+            long numberOfTokens = in.readLong();
+            long numberOfPointers = in.readLong();
+            int nZnD = in.readInt();
+            double sumV = in.readDouble();
+            int nT = in.readInt();
+            String[] terms = new String[nT];
+            int[] termFrequencies = new int[nT];
+            int[] documentFrequencies = new int[nT];
+            for (int t = 0; t < nT; t++) {
+                terms[t] = in.readUTF();
+                termFrequencies[t] = in.readInt();
+                documentFrequencies[t] = in.readInt();
+            }
+            return new ShardStatistics(nD, numberOfTokens, numberOfPointers, nZnD, sumV,
+                    terms, termFrequencies, documentFrequencies);
+        }
+    }
+
+    public String toString() {
+        return "nD=" + nD + " tokens=" + numberOfTokens + " terms=" + terms.length + " " + getStatistics();
+    }
+}
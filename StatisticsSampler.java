@@ -0,0 +1,220 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.structures.Index;
+import org.terrier.structures.Lexicon;
+import org.terrier.structures.LexiconEntry;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.util.Random;
+
+/**
+ * Estimates the collection statistics of an index from a stratified random sample of its documents and
+ * lexicon entries, so that a cold JVM does not wait for the full scan of {@link EPsStatistics#compute}.
+ * <p>
+ * The document ids and the lexicon are split in strata of equal size, sampled proportionally and with
+ * replacement. The first estimate is computed synchronously. A daemon thread then keeps doubling the sample
+ * until the confidence intervals are within the tolerance, or until the sample is as large as the collection,
+ * in which case the exact statistics are computed instead.
+ * <p>
+ * The sampling is enabled with the property eps.statistics.sampling=true, and is configured by
+ * eps.statistics.sampling.size (initial sample size), .strata, .tolerance (relative half-width),
+ * .z (confidence interval quantile) and .seed.
+ *
+ * @author Aldo Lipani
+ */
+public class StatisticsSampler implements Runnable {
+
+    static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("eps.statistics.sampling", "false"));
+
+    private static final int SIZE = Integer.parseInt(System.getProperty("eps.statistics.sampling.size", "10000"));
+    private static final int STRATA = Integer.parseInt(System.getProperty("eps.statistics.sampling.strata", "64"));
+    private static final double TOLERANCE = Double.parseDouble(System.getProperty("eps.statistics.sampling.tolerance", "0.001"));
+    private static final double Z = Double.parseDouble(System.getProperty("eps.statistics.sampling.z", "1.96"));
+    private static final long SEED = Long.parseLong(System.getProperty("eps.statistics.sampling.seed", "1"));
+
+    /**
+     * The index, held weakly so that a refinement still running does not keep an index no one uses.
+     */
+    private final WeakReference<Index> index;
+    private final DocumentStatistics ds;
+    private final Lexicon<String> lex;
+    private final Random random = new Random(SEED);
+
+    private final int nD;
+    private final int nT;
+
+    /**
+     * Per stratum of documents: sample size, non-zero length documents, sum and sum of squares of their verboseness.
+     */
+    private final long[] dn = new long[STRATA];
+    private final double[] dx = new double[STRATA];
+    private final double[] dy = new double[STRATA];
+    private final double[] dyy = new double[STRATA];
+
+    /**
+     * Per stratum of terms: sample size, sum and sum of squares of their burstiness.
+     */
+    private final long[] tn = new long[STRATA];
+    private final double[] ty = new double[STRATA];
+    private final double[] tyy = new double[STRATA];
+
+    private volatile EPsStatistics estimate;
+    private volatile boolean done;
+
+    private StatisticsSampler(Index index) throws IOException {
+        this.index = new WeakReference<>(index);
+        this.ds = DocumentStatistics.forIndex(index);
+        this.lex = index.getLexicon();
+        this.nD = ds.getNumberOfDocuments();
+        this.nT = lex.numberOfEntries();
+    }
+
+    /**
+     * Returns a new sampler of the index, computing its first estimate and starting its refinement. The
+     * {@link IndexRegistry} keeps one per index.
+     *
+     * @param index the index
+     * @return the sampler of the index
+     */
+    public static StatisticsSampler start(Index index) throws IOException {
+        StatisticsSampler sampler = new StatisticsSampler(index);
+        sampler.estimate = sampler.sample(SIZE);
+        System.err.println("Sampled statistics: " + sampler.estimate);
+        Thread thread = new Thread(sampler, "eps-statistics-sampler");
+        thread.setDaemon(true);
+        thread.start();
+        return sampler;
+    }
+
+    /**
+     * Returns the current estimate, an {@link SampledStatistics} until the refinement computes the exact ones.
+     *
+     * @return the current estimate
+     */
+    public EPsStatistics getEstimate() {
+        return estimate;
+    }
+
+    /**
+     * Returns true once the estimate is within the tolerance or exact, after which it does not change.
+     */
+    public boolean isDone() {
+        return done;
+    }
+
+    public void run() {
+        try {
+            long size = SIZE;
+            while (((SampledStatistics) estimate).getRelativeError() > TOLERANCE) {
+                if (size >= nD && size >= nT) {
+                    Index index = this.index.get();
+                    if (index == null)
+                        return;
+                    estimate = EPsStatistics.compute(index);
+                    System.err.println("Exact statistics: " + estimate);
+                    break;
+                }
+                estimate = sample(size);
+                size *= 2;
+                System.err.println("Sampled statistics: " + estimate);
+            }
+            done = true;
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Draws a further sample of the given size from the documents and from the terms, and returns the estimate
+     * over everything sampled so far.
+     */
+    private SampledStatistics sample(long size) throws IOException {
+        for (int h = 0; h < STRATA; h++) {
+            int from = stratumStart(h, nD);
+            int to = stratumStart(h + 1, nD);
+            long n = Math.round((double) size * (to - from) / nD);
+            for (long i = 0; i < n; i++) {
+                int docId = from + random.nextInt(to - from);
+                double l_d = ds.getDocumentLength(docId);
+                dn[h]++;
+                if (l_d > 0) {
+                    double v = l_d / ds.getNumberOfUniqueTerms(docId);
+                    dx[h]++;
+                    dy[h] += v;
+                    dyy[h] += v * v;
+                }
+            }
+        }
+        for (int h = 0; h < STRATA; h++) {
+            int from = stratumStart(h, nT);
+            int to = stratumStart(h + 1, nT);
+            long n = Math.round((double) size * (to - from) / nT);
+            for (long i = 0; i < n; i++) {
+                LexiconEntry tie = lex.getIthLexiconEntry(from + random.nextInt(to - from)).getValue();
+                double b = (double) tie.getFrequency() / tie.getDocumentFrequency();
+                tn[h]++;
+                ty[h] += b;
+                tyy[h] += b * b;
+            }
+        }
+        return estimate();
+    }
+
+    /**
+     * Stratified estimates of the proportion of non-zero length documents, of the average verboseness as the
+     * ratio of the mean verboseness to that proportion, and of the average burstiness. The variance of the ratio
+     * is approximated by linearization.
+     */
+    private SampledStatistics estimate() {
+        double X = 0d, Y = 0d, B = 0d;
+        long documentSampleSize = 0, termSampleSize = 0;
+        for (int h = 0; h < STRATA; h++) {
+            if (dn[h] > 0) {
+                double W = weight(h, nD);
+                X += W * dx[h] / dn[h];
+                Y += W * dy[h] / dn[h];
+                documentSampleSize += dn[h];
+            }
+            if (tn[h] > 0) {
+                B += weight(h, nT) * ty[h] / tn[h];
+                termSampleSize += tn[h];
+            }
+        }
+        double R = Y / X;
+
+        double varX = 0d, varR = 0d, varB = 0d;
+        for (int h = 0; h < STRATA; h++) {
+            if (dn[h] > 1) {
+                double W = weight(h, nD);
+                double n = dn[h];
+                double mx = dx[h] / n;
+                double my = dy[h] / n;
+                double sxx = (dx[h] - n * mx * mx) / (n - 1);
+                double sxy = (dy[h] - n * mx * my) / (n - 1);
+                double syy = (dyy[h] - n * my * my) / (n - 1);
+                varX += W * W * sxx / n;
+                varR += W * W * Math.max(0d, syy - 2 * R * sxy + R * R * sxx) / n;
+            }
+            if (tn[h] > 1) {
+                double W = weight(h, nT);
+                double n = tn[h];
+                double my = ty[h] / n;
+                varB += W * W * Math.max(0d, (tyy[h] - n * my * my) / (n - 1)) / n;
+            }
+        }
+        varR /= X * X;
+
+        return new SampledStatistics((int) Math.round(X * nD), R, B,
+                Z * nD * Math.sqrt(varX), Z * Math.sqrt(varR), Z * Math.sqrt(varB),
+                documentSampleSize, termSampleSize);
+    }
+
+    private static int stratumStart(int h, int n) {
+        return (int) ((long) n * h / STRATA);
+    }
+
+    private static double weight(int h, int n) {
+        return (double) (stratumStart(h + 1, n) - stratumStart(h, n)) / n;
+    }
+}
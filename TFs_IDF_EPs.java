@@ -2,13 +2,11 @@ package at.ac.tuwien.ifs;
 
 import org.terrier.matching.models.WeightingModel;
 import org.terrier.matching.models.WeightingModelLibrary;
-import org.terrier.structures.DocumentIndex;
-import org.terrier.structures.DocumentIndexEntry;
 import org.terrier.structures.Index;
+import org.terrier.structures.IndexConfigurable;
 import org.terrier.structures.postings.Posting;
 
 import java.io.IOException;
-import java.security.InvalidAlgorithmParameterException;
 
 /**
  * This class implements the TF_IDF weighting model with verboseness and 4 TF Quantifications,
@@ -16,11 +14,21 @@ import java.security.InvalidAlgorithmParameterException;
  *
  * @author Aldo Lipani
  */
-public class TFs_IDF_EPs extends WeightingModel {
+public class TFs_IDF_EPs extends WeightingModel implements BatchWeightingModel, BoundedWeightingModel, FactoredWeightingModel, IndexConfigurable {
 
     private static final long serialVersionUID = 1L;
 
-    private static Index index;
+    /**
+     * The index of the statistics, set by setIndex() or taken from the request, and kept by the clones, whose
+     * per-index state is in the {@link IndexRegistry}
+     */
+    private transient volatile Index index;
+
+    /**
+     * The document statistics of the index, resolved by the first score(Posting) that needs them; a prepared
+     * instance may score from many threads, which then resolve the same instance
+     */
+    private transient volatile DocumentStatistics documentStatistics;
 
     /**
      * tf quantification
@@ -39,7 +47,7 @@ public class TFs_IDF_EPs extends WeightingModel {
     /**
      * tf normalization pivotization
      **/
-    private String tfNormalizationPivotization;
+    private final String tfNormalizationPivotization;
 
     //static final public String[] tfNormalizationPivotizations = new String[]{"non_elite", "elite"};
     static final public String[] tfNormalizationPivotizations = new String[]{"non_elite"};
@@ -60,22 +68,51 @@ public class TFs_IDF_EPs extends WeightingModel {
     private final double b;
     private final double a;
 
-    public static double avgV = -1d;
-    public static int nZnD = -1;
+    private final TfQuantification quantification;
+    private final NormalizationCombination combination;
+    private final NormalizationPivotization pivotization;
+
+    /**
+     * Overrides of the collection statistics of every index, when set to non-negative values.
+     */
+    public static volatile double avgV = -1d;
+    public static volatile int nZnD = -1;
+
+    /**
+     * Collection statistics of the index, taken on the first prepare() and kept by this instance and the clones
+     * made of it afterwards, so that they do not change during a query whose terms are cloned from the first
+     * prepared one; the clones of an unprepared instance, one per term in Terrier's matching, take them each
+     */
+    private EPsStatistics statistics;
+
+    /**
+     * Constants of the query term, computed by prepare()
+     */
+    private double lengthPivot;
+    private double verbosenessPivot;
+    private float[] documentFactors;
+    private double IDF;
+
+    /**
+     * Metrics of the configuration, when enabled
+     */
+    private EPsMetrics.Scoring metrics;
 
     /**
      * A default constructor to make this model.
      */
     public TFs_IDF_EPs() {
-        super();
-        this.tfQuantification = System.getProperty("tf.quantification", "total").toLowerCase();
-        this.tfNormalizationCombination = System.getProperty("tf.normalization.combination", "linear").toLowerCase();
-        this.tfNormalizationPivotization = System.getProperty("tf.normalization.pivotization", "non_elite").toLowerCase();
-        this.b = Double.parseDouble(System.getProperty("b", "0.5d"));
-        this.a = Double.parseDouble(System.getProperty("a", "0.5d"));
-        this.k_1 = Double.parseDouble(System.getProperty("k1", "1.2d"));
+        this(System.getProperty("tf.quantification", "total").toLowerCase(),
+                System.getProperty("tf.normalization.combination", "linear").toLowerCase(),
+                System.getProperty("tf.normalization.pivotization", "non_elite").toLowerCase(),
+                Double.parseDouble(System.getProperty("b", "0.5d")),
+                Double.parseDouble(System.getProperty("a", "0.5d")),
+                Double.parseDouble(System.getProperty("k1", "1.2d")));
     }
 
+    /**
+     * @throws IllegalArgumentException if the quantification, combination or pivotization is invalid
+     */
     public TFs_IDF_EPs(String tfQuantification,
                        String tfNormalizationCombination,
                        String tfNormalizationPivotization,
@@ -88,6 +125,9 @@ public class TFs_IDF_EPs extends WeightingModel {
         this.b = b;
         this.a = a;
         this.k_1 = k_1;
+        this.quantification = TfQuantification.of("tf.quantification", tfQuantification);
+        this.combination = NormalizationCombination.of("tf.normalization.combination", tfNormalizationCombination);
+        this.pivotization = NormalizationPivotization.of("tf.normalization.pivotization", tfNormalizationPivotization);
     }
 
     /**
@@ -105,34 +145,130 @@ public class TFs_IDF_EPs extends WeightingModel {
                 ".a_" + String.format("%.1f", a);
     }
 
+    /**
+     * Takes the current collection statistics of the index and computes the constants of the query term,
+     * so that score(Posting) is left with the document-dependent part only.
+     */
     @Override
-    public double score(Posting p) {
-        int docId = p.getId();
-        double tfd = p.getFrequency();
-        double l_d = p.getDocumentLength();
+    public void prepare() {
+        if (statistics == null && (nZnD < 0 || avgV < 0))
+            initStatistics();
+        if (statistics instanceof GlobalStatistics) {
+            GlobalStatistics global = (GlobalStatistics) statistics;
+            cs = global.getCollectionStatistics();
+            es = global.getEntryStatistics(es);
+        }
+        super.prepare();
         double nD = getNumberOfNonZeroLengthDocuments();
-        double df = documentFrequency;
         double l_c = numberOfTokens * nD;
-        double nT = numberOfUniqueTerms;
-        double nT_d = getNumberOfDocumentUniqueTerms(docId);
+        lengthPivot = getLengthPivot(l_c, nD);
+        verbosenessPivot = getVerbosenessPivot(l_c, numberOfUniqueTerms);
+        if (DocumentFactorCache.ENABLED)
+            documentFactors = getDocumentFactors();
+        IDF = getIDF(nD, documentFrequency);
+        if (EPsMetrics.ENABLED) {
+            if (metrics == null)
+                metrics = EPsMetrics.getScoring(getInfo());
+            metrics.terms.increment();
+        }
+    }
 
-        return score(tfd, l_d, nD, nT_d, df, l_c, nT);
+    @Override
+    public double score(Posting p) {
+        if (EPsMetrics.ENABLED && metrics.sample()) {
+            long start = System.nanoTime();
+            double score = getScore(p);
+            metrics.record(System.nanoTime() - start);
+            return score;
+        }
+        return getScore(p);
     }
 
-    public double score(double tfd, double l_d, double nD, double nT_d, double df, double l_c, double nT) {
-        try {
-            double pivdv = getPivotedVerboseness(l_d, nT_d, l_c, nT);
-            double pivdl = getPivotedLength(l_d, l_c, nD);
-
-            double KD = getKD(pivdl, pivdv);
-            double TFD = getTFD(tfd, KD);
-            double IDF = WeightingModelLibrary.log(nD / df);
-            return TFD * IDF;
-        } catch (InvalidAlgorithmParameterException e) {
-            e.printStackTrace();
-            System.exit(1);
+    private double getScore(Posting p) {
+        double tfd = p.getFrequency();
+        double KD = documentFactors != null ? documentFactors[p.getId()] :
+                getDocumentFactor(p.getDocumentLength(), getNumberOfDocumentUniqueTerms(p.getId()));
+        return getTFD(tfd, KD) * IDF;
+    }
+
+    /**
+     * Returns KD, cached or computed.
+     */
+    public double getDocumentFactor(int docId, double l_d, double nT_d) {
+        return documentFactors != null ? documentFactors[docId] : getDocumentFactor(l_d, nT_d);
+    }
+
+    public double score(double tfd, double l_d, double documentFactor) {
+        if (EPsMetrics.ENABLED && metrics.sample()) {
+            long start = System.nanoTime();
+            double score = getTFD(tfd, documentFactor) * IDF;
+            metrics.record(System.nanoTime() - start);
+            return score;
         }
-        return 0d;
+        return getTFD(tfd, documentFactor) * IDF;
+    }
+
+    /**
+     * Scores a block of n postings of the query term, given as parallel arrays, into scores, without allocating.
+     * The document ids are read when the document factors are cached, the lengths and numbers of unique terms
+     * otherwise. The scores are those of score(Posting) up to rounding.
+     */
+    public void score(int[] docIds, int[] tfd, int[] l_d, double[] nT_d, int n, double[] scores) {
+        long start = EPsMetrics.ENABLED ? System.nanoTime() : 0L;
+        if (documentFactors != null) {
+            for (int i = 0; i < n; i++)
+                scores[i] = documentFactors[docIds[i]];
+        } else {
+            combination.getK(l_d, nT_d, lengthPivot, verbosenessPivot, b, a, n, scores);
+            for (int i = 0; i < n; i++)
+                scores[i] *= k_1;
+        }
+        quantification.getTFD(tfd, scores, n);
+        for (int i = 0; i < n; i++)
+            scores[i] *= IDF;
+        if (EPsMetrics.ENABLED)
+            metrics.record(System.nanoTime() - start, n);
+    }
+
+    /**
+     * The score increases with the tf and decreases with KD, so it is bounded by the quantified maximum tf over
+     * the minimum KD of the documents, or, when the IDF is negative, by the minimum tf over the maximum KD.
+     * The float rounding of the cached document factors is taken into account.
+     */
+    public double getUpperBound(int maxTfd, int minL_d, int maxL_d, double minV_d, double maxV_d) {
+        double minPivl = minL_d / lengthPivot, maxPivl = maxL_d / lengthPivot;
+        double minPivv = minV_d / verbosenessPivot, maxPivv = maxV_d / verbosenessPivot;
+        if (IDF < 0) {
+            double KD = k_1 * combination.getMaxK(minPivl, maxPivl, minPivv, maxPivv, b, a);
+            if (documentFactors != null)
+                KD = Math.max(KD, (float) KD);
+            return getTFD(1d, KD) * IDF;
+        }
+        double KD = k_1 * combination.getMinK(minPivl, maxPivl, minPivv, maxPivv, b, a);
+        if (documentFactors != null)
+            KD = Math.min(KD, (float) KD);
+        return getTFD(maxTfd, KD) * IDF;
+    }
+
+    /**
+     * Returns KD, the part of the score that depends only on the document.
+     */
+    private double getDocumentFactor(double l_d, double nT_d) {
+        return getKD(l_d / lengthPivot, (l_d / nT_d) / verbosenessPivot);
+    }
+
+    public double score(double tfd, double l_d, double nD, double nT_d, double df, double l_c, double nT) {
+        double pivdv = getPivotedVerboseness(l_d, nT_d, l_c, nT);
+        double pivdl = getPivotedLength(l_d, l_c, nD);
+
+        double KD = getKD(pivdl, pivdv);
+        double TFD = getTFD(tfd, KD);
+        double IDF = getIDF(nD, df);
+        return TFD * IDF;
+    }
+
+    private double getIDF(double nD, double df) {
+        return WeightingModelLibrary.log(nD / df);
     }
 
     public double score(double tfd, double l_d) {
@@ -141,10 +277,8 @@ public class TFs_IDF_EPs extends WeightingModel {
 
     private double getNumberOfDocumentUniqueTerms(int docId) {
         try {
-            initIndex();
-            DocumentIndex doi = index.getDocumentIndex();
-            DocumentIndexEntry die = doi.getDocumentEntry(docId);
-            return die.getNumberOfEntries();
+            initDocumentStatistics();
+            return documentStatistics.getNumberOfUniqueTerms(docId);
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(1);
@@ -152,14 +286,23 @@ public class TFs_IDF_EPs extends WeightingModel {
         return 0;
     }
 
-    private double getPivotedLength(double l_d, double l_c, double nD) throws InvalidAlgorithmParameterException {
-        double res;
-        if (tfNormalizationPivotization.equals("elite") || tfNormalizationPivotization.equals("non_elite")) {
-            res = l_d / (l_c / nD);
-        } else {
-            throw new InvalidAlgorithmParameterException("The value of the tf.normalization.pivotization is invalid: " + tfNormalizationPivotization);
+    private double getPivotedLength(double l_d, double l_c, double nD) {
+        return l_d / getLengthPivot(l_c, nD);
+    }
+
+    private double getLengthPivot(double l_c, double nD) {
+        return l_c / nD;
+    }
+
+    /**
+     * Called by the matching before prepare(), which may precede setRequest().
+     */
+    public void setIndex(Index index) {
+        if (this.index != index) {
+            this.index = index;
+            statistics = null;
+            documentStatistics = null;
         }
-        return res;
     }
 
     private void initIndex() {
@@ -167,99 +310,69 @@ public class TFs_IDF_EPs extends WeightingModel {
             index = rq.getIndex();
     }
 
-    private double getPivotedVerboseness(double l_d, double nT_d, double l_c, double nT) throws InvalidAlgorithmParameterException {
-        double res;
-        if (tfNormalizationPivotization.equals("non_elite")) {
-            res = (l_d / nT_d) / (l_c / nT);
-        } else if (tfNormalizationPivotization.equals("elite")) {
-            res = (l_d / nT_d) / getAverageVerboseness();
-        } else {
-            throw new InvalidAlgorithmParameterException("The value of the tf.normalization.pivotization is invalid: " + tfNormalizationPivotization);
+    private void initStatistics() {
+        try {
+            initIndex();
+            statistics = EPsStatistics.get(index);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
         }
-        return res;
     }
 
-    private int getNumberOfNonZeroLengthDocuments() {
-        int res = nZnD;
-        if (res < 0) {
-            try {
-                res = 0;
-                initIndex();
-                DocumentIndex doi = index.getDocumentIndex();
-                int nD = doi.getNumberOfDocuments();
-                int nZnD = 0;
-                for (int i = 0; i < nD; i++) {
-                    DocumentIndexEntry die = doi.getDocumentEntry(i);
-                    double l_d = die.getDocumentLength();
-                    if(l_d > 0) {
-                        nZnD++;
-                    }
-                }
-                res = nZnD;
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-            nZnD = res;
+    private float[] getDocumentFactors() {
+        try {
+            initDocumentStatistics();
+            String key = name + ".nc_" + tfNormalizationCombination + ".np_" + tfNormalizationPivotization +
+                    ".k1_" + k_1 + ".b_" + b + ".a_" + a + ".pl_" + lengthPivot + ".pv_" + verbosenessPivot;
+            return DocumentFactorCache.get(index, key, documentStatistics, this::getDocumentFactor);
+        } catch (IOException e) {
+            e.printStackTrace();
+            System.exit(1);
+        }
+        return null;
+    }
+
+    private void initDocumentStatistics() throws IOException {
+        if (documentStatistics == null) {
+            initIndex();
+            documentStatistics = IndexRegistry.getDocumentStatistics(index);
         }
-        return res;
+    }
+
+    private double getPivotedVerboseness(double l_d, double nT_d, double l_c, double nT) {
+        return (l_d / nT_d) / getVerbosenessPivot(l_c, nT);
+    }
+
+    private double getVerbosenessPivot(double l_c, double nT) {
+        if (pivotization == NormalizationPivotization.ELITE)
+            return getAverageVerboseness();
+        return l_c / nT;
+    }
+
+    private int getNumberOfNonZeroLengthDocuments() {
+        if (nZnD >= 0)
+            return nZnD;
+        if (statistics == null)
+            initStatistics();
+        return statistics.nZnD;
     }
 
 
     private double getAverageVerboseness() {
-        double res = avgV;
-        if (res < 0) {
-            try {
-                res = 0d;
-                initIndex();
-                DocumentIndex doi = index.getDocumentIndex();
-                int nD = doi.getNumberOfDocuments();
-                int nZnD = 0;
-                for (int i = 0; i < nD; i++) {
-                    DocumentIndexEntry die = doi.getDocumentEntry(i);
-                    double l_d = die.getDocumentLength();
-                    if(l_d > 0) {
-                        double nT_d = die.getNumberOfEntries();
-                        res += l_d / nT_d;
-                        nZnD++;
-                    }
-                }
-                res /= nZnD;
-            } catch (IOException e) {
-                e.printStackTrace();
-                System.exit(1);
-            }
-            avgV = res;
-        }
-        return res;
+        if (avgV >= 0)
+            return avgV;
+        if (statistics == null)
+            initStatistics();
+        return statistics.avgV;
     }
 
-    private double getKD(double pivdl, double pivdv) throws InvalidAlgorithmParameterException {
-        double res;
-        if (tfNormalizationCombination.equals("linear")) {
-            res = 1d - b + b * (1d - a) * pivdl + b * a * pivdv;
-        } else if (tfNormalizationCombination.equals("product")) {
-            res = Math.pow(pivdl, b * (1d - a)) * Math.pow(pivdv, b * a);
-        } else {
-            throw new InvalidAlgorithmParameterException("The value of the tf.normalization.combination is invalid: " + tfNormalizationCombination);
-        }
-        return k_1 * res;
+    private double getKD(double pivdl, double pivdv) {
+        return k_1 * combination.getK(pivdl, pivdv, b, a);
     }
 
-    private double getTFD(double tfd, double Kd) throws InvalidAlgorithmParameterException {
-        double res;
-        if (tfQuantification.equals("total")) {
-            res = tfd / Kd;
-        } else if (tfQuantification.equals("log")) {
-            res = WeightingModelLibrary.log(tfd / Kd + 1d);
-        } else if (tfQuantification.equals("bm25")) {
-            res = 2d * tfd / (tfd + Kd);
-        } else if (tfQuantification.equals("constant")) {
-            res = 1d / Kd;
-        } else {
-            throw new InvalidAlgorithmParameterException("The value of the tf.quantification is invalid: " + tfQuantification);
-        }
-        return res;
+    private double getTFD(double tfd, double Kd) {
+        return quantification.getTFD(tfd, Kd);
     }
 
     public void setParameter(double _b) {}
@@ -0,0 +1,69 @@
+package at.ac.tuwien.ifs;
+
+import org.terrier.matching.models.WeightingModelLibrary;
+
+/**
+ * The tf quantifications of TFs_IDF_EPs. Each value is its own class, so that a model configured once
+ * calls a single implementation for every posting. The bulk variants are plain loops over primitive arrays.
+ * Those of TOTAL, BM25 and CONSTANT are arithmetic only, which the JIT can unroll and vectorize; that of LOG
+ * calls the logarithm for every posting, which it does not vectorize, so it only saves the call per posting.
+ *
+ * @author Aldo Lipani
+ */
+public enum TfQuantification {
+
+    TOTAL {
+        public double getTFD(double tfd, double Kd) {
+            return tfd / Kd;
+        }
+
+        void getTFD(int[] tfd, double[] Kd, int n) {
+            for (int i = 0; i < n; i++)
+                Kd[i] = tfd[i] / Kd[i];
+        }
+    },
+    LOG {
+        public double getTFD(double tfd, double Kd) {
+            return WeightingModelLibrary.log(tfd / Kd + 1d);
+        }
+
+        void getTFD(int[] tfd, double[] Kd, int n) {
+            for (int i = 0; i < n; i++)
+                Kd[i] = WeightingModelLibrary.log(tfd[i] / Kd[i] + 1d);
+        }
+    },
+    BM25 {
+        public double getTFD(double tfd, double Kd) {
+            return 2d * tfd / (tfd + Kd);
+        }
+
+        void getTFD(int[] tfd, double[] Kd, int n) {
+            for (int i = 0; i < n; i++)
+                Kd[i] = 2d * tfd[i] / (tfd[i] + Kd[i]);
+        }
+    },
+    CONSTANT {
+        public double getTFD(double tfd, double Kd) {
+            return 1d / Kd;
+        }
+
+        void getTFD(int[] tfd, double[] Kd, int n) {
+            for (int i = 0; i < n; i++)
+                Kd[i] = 1d / Kd[i];
+        }
+    };
+
+    public abstract double getTFD(double tfd, double Kd);
+
+    /**
+     * Replaces the first n values of Kd with the quantified tf of the postings.
+     */
+    abstract void getTFD(int[] tfd, double[] Kd, int n);
+
+    public static TfQuantification of(String property, String value) {
+        for (TfQuantification q : values())
+            if (q.name().toLowerCase().equals(value))
+                return q;
+        throw new IllegalArgumentException("The value of the " + property + " is invalid: " + value);
+    }
+}
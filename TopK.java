@@ -0,0 +1,113 @@
+package at.ac.tuwien.ifs;
+
+/**
+ * The k best scored documents, kept in a binary min-heap of primitive arrays. Ties are broken by the lower
+ * document id, as in Terrier.
+ *
+ * @author Aldo Lipani
+ */
+public class TopK {
+
+    private final int k;
+    private final int[] docIds;
+    private final double[] scores;
+    private int size = 0;
+
+    public TopK(int k) {
+        this.k = k;
+        this.docIds = new int[k];
+        this.scores = new double[k];
+    }
+
+    /**
+     * Returns the score a document must exceed to enter, when the heap is full.
+     */
+    public double getThreshold() {
+        return size < k ? Double.NEGATIVE_INFINITY : scores[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void add(int docId, double score) {
+        if (size < k) {
+            docIds[size] = docId;
+            scores[size] = score;
+            up(size++);
+        } else if (k > 0 && worse(docIds[0], scores[0], docId, score)) {
+            docIds[0] = docId;
+            scores[0] = score;
+            down(0);
+        }
+    }
+
+    public void addAll(TopK other) {
+        for (int i = 0; i < other.size; i++)
+            add(other.docIds[i], other.scores[i]);
+    }
+
+    /**
+     * Empties the heap into the given arrays, best first.
+     *
+     * @return the number of documents
+     */
+    public int drain(int[] docIds, double[] scores) {
+        int n = size;
+        for (int i = n - 1; i >= 0; i--) {
+            docIds[i] = this.docIds[0];
+            scores[i] = this.scores[0];
+            size--;
+            this.docIds[0] = this.docIds[size];
+            this.scores[0] = this.scores[size];
+            down(0);
+        }
+        return n;
+    }
+
+    public int[] getDocIds() {
+        int[] ids = new int[size];
+        drain(ids, new double[size]);
+        return ids;
+    }
+
+    /**
+     * Whether the document a ranks below the document b.
+     */
+    private static boolean worse(int a, double sa, int b, double sb) {
+        return sa < sb || (sa == sb && a > b);
+    }
+
+    private void up(int i) {
+        while (i > 0) {
+            int p = (i - 1) >>> 1;
+            if (!worse(docIds[i], scores[i], docIds[p], scores[p]))
+                break;
+            swap(i, p);
+            i = p;
+        }
+    }
+
+    private void down(int i) {
+        while (true) {
+            int l = 2 * i + 1;
+            if (l >= size)
+                break;
+            int r = l + 1;
+            int c = r < size && worse(docIds[r], scores[r], docIds[l], scores[l]) ? r : l;
+            if (!worse(docIds[c], scores[c], docIds[i], scores[i]))
+                break;
+            swap(i, c);
+            i = c;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int d = docIds[i];
+        docIds[i] = docIds[j];
+        docIds[j] = d;
+        double s = scores[i];
+        scores[i] = scores[j];
+        scores[j] = s;
+    }
+}
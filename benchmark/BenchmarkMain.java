@@ -0,0 +1,24 @@
+package at.ac.tuwien.ifs.benchmark;
+
+import org.openjdk.jmh.Main;
+
+import java.util.Arrays;
+
+/**
+ * Runs the JMH suite with the command line options of JMH, adding the GC profiler, which reports the allocation
+ * rate next to the throughput, unless other profilers are given with -prof.
+ *
+ * @author Aldo Lipani
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        if (!Arrays.asList(args).contains("-prof")) {
+            String[] withGc = Arrays.copyOf(args, args.length + 2);
+            withGc[args.length] = "-prof";
+            withGc[args.length + 1] = "gc";
+            args = withGc;
+        }
+        Main.main(args);
+    }
+}
@@ -0,0 +1,450 @@
+package at.ac.tuwien.ifs.benchmark;
+
+import at.ac.tuwien.ifs.BlockMaxIndex;
+import at.ac.tuwien.ifs.BlockMaxIndexBuilder;
+import at.ac.tuwien.ifs.BlockMaxWand;
+import at.ac.tuwien.ifs.DocumentAtATimeMatcher;
+import at.ac.tuwien.ifs.DocumentStatistics;
+import at.ac.tuwien.ifs.DocumentStatisticsBuilder;
+import at.ac.tuwien.ifs.EPsStatistics;
+import at.ac.tuwien.ifs.ImpactIndex;
+import at.ac.tuwien.ifs.ImpactIndexBuilder;
+import at.ac.tuwien.ifs.ImpactMatcher;
+import at.ac.tuwien.ifs.IncrementalStatistics;
+import at.ac.tuwien.ifs.Models;
+import at.ac.tuwien.ifs.PartitionedMatcher;
+import at.ac.tuwien.ifs.Queries;
+import at.ac.tuwien.ifs.QueryPostings;
+import at.ac.tuwien.ifs.TFs_IDF_EPs;
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.querying.Request;
+import org.terrier.structures.DocumentIndex;
+import org.terrier.structures.DocumentIndexEntry;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexConfigurable;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.postings.IterablePosting;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks the retrieval paths of the models against an exhaustive term-at-a-time evaluation, and the incremental
+ * statistics against a recomputation, on the synthetic corpus of {@link ThroughputBenchmark}. It exits with
+ * status 1 if a check fails.
+ * <p>
+ * Usage: ConsistencyCheck dir [documents]
+ * <p>
+ * The corpus is generated and indexed in dir when missing, of 5000 documents by default. For each of
+ * bench.models, the k best documents, check.k, of the first check.queries queries of the log, and of queries
+ * with one of the most frequent terms, must be the same with BlockMaxWand, DocumentAtATimeMatcher and
+ * PartitionedMatcher as exhaustively, and the batch scoring of QueryPostings must give every document its
+ * exhaustive score, up to the rounding of the order of the sums. The scores of ImpactMatcher must be within
+ * half an impact per query term of the exhaustive ones. The same checks run with TFs_IDF_EPs for half the
+ * documents, so that the most frequent terms score below 0 only, which the bounds of Block-Max WAND count as 0.
+ * <p>
+ * The checks run with the memory-mapped document statistics, then again in a new JVM with the quantized ones,
+ * which the exhaustive evaluation then reads too. The memory-mapped document statistics are also checked
+ * against the document index.
+ *
+ * @author Aldo Lipani
+ */
+public class ConsistencyCheck {
+
+    private static final int QUERIES = Integer.parseInt(System.getProperty("check.queries", "100"));
+    private static final int K = Integer.parseInt(System.getProperty("check.k", "100"));
+    private static final boolean QUANTIZED = Boolean.parseBoolean(System.getProperty("eps.docstats.quantized", "false"));
+
+    /**
+     * The number of the most frequent terms checked, which score below 0 only with TFs_IDF_EPs for half the
+     * documents
+     */
+    private static final int FREQUENT_TERMS = 20;
+
+    private static final int PARTITIONS = 4;
+    private static final int BLOCK_SIZE = 64;
+    private static final int LEVELS = 255;
+    private static final long SEED = 1L;
+
+    private static final double TOLERANCE = 1e-9;
+
+    private final Index index;
+    private final Request rq;
+    private final double[] exact;
+    private final int[] touched;
+
+    private BlockMaxWand wand;
+    private DocumentAtATimeMatcher daat;
+    private PartitionedMatcher partitioned;
+    private DocumentStatistics documentStatistics;
+
+    private int failures;
+    private int negativeTerms;
+
+    private ConsistencyCheck(Index index) {
+        this.index = index;
+        this.rq = new Request();
+        this.rq.setIndex(index);
+        this.exact = new double[index.getCollectionStatistics().getNumberOfDocuments()];
+        this.touched = new int[exact.length];
+        Arrays.fill(exact, Double.NaN);
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1) {
+            System.err.println("Usage: ConsistencyCheck dir [documents]");
+            System.exit(1);
+        }
+        File dir = new File(args[0]);
+        ThroughputBenchmark.configure();
+        if (!new File(dir, "corpus.trec").exists())
+            ThroughputBenchmark.generate(dir, args.length > 1 ? Integer.parseInt(args[1]) : 5000);
+        String path = ThroughputBenchmark.getIndexPath(dir);
+        if (!Index.existsIndex(path, "data"))
+            ThroughputBenchmark.index(dir);
+        if (!QUANTIZED) {
+            DocumentStatisticsBuilder.main(new String[]{path, "data"});
+            DocumentStatisticsBuilder.main(new String[]{"-quantize", "8", path, "data"});
+        }
+
+        IndexOnDisk index = Index.createIndex(path, "data");
+        if (index == null) {
+            System.err.println(Index.getLastIndexLoadError());
+            System.exit(1);
+        }
+        ConsistencyCheck check = new ConsistencyCheck(index);
+        if (!QUANTIZED)
+            check.checkDocumentStatistics();
+        check.checkMatchers(dir, getQueries(dir));
+        if (!QUANTIZED)
+            check.checkIncrementalStatistics();
+        index.close();
+
+        int failures = check.failures;
+        if (!QUANTIZED && fork(dir) != 0)
+            failures++;
+        System.err.println((failures == 0 ? "Passed" : failures + " checks failed") +
+                (QUANTIZED ? " with the quantized document statistics" : ""));
+        System.exit(failures == 0 ? 0 : 1);
+    }
+
+    /**
+     * Returns the first queries of the log, then a query of each of the most frequent terms with a term of
+     * the log.
+     */
+    private static Map<String, String[]> getQueries(File dir) throws IOException {
+        Map<String, String[]> res = new LinkedHashMap<>();
+        for (Map.Entry<String, String[]> q : Queries.read(new File(dir, "queries.txt").getPath()).entrySet()) {
+            if (res.size() == QUERIES)
+                break;
+            res.put(q.getKey(), q.getValue());
+        }
+        for (int t = 0; t < FREQUENT_TERMS; t++)
+            res.put("F" + t, new String[]{ThroughputBenchmark.getTerm(t), ThroughputBenchmark.getTerm(100 + t)});
+        return res;
+    }
+
+    /**
+     * Checks the memory-mapped document statistics against the document index.
+     */
+    private void checkDocumentStatistics() throws IOException {
+        DocumentStatistics ds = DocumentStatistics.forIndex(index);
+        DocumentIndex doi = index.getDocumentIndex();
+        int mismatches = 0;
+        for (int d = 0; d < exact.length; d++) {
+            DocumentIndexEntry die = doi.getDocumentEntry(d);
+            if (ds.getDocumentLength(d) != die.getDocumentLength() || ds.getNumberOfUniqueTerms(d) != die.getNumberOfEntries())
+                mismatches++;
+        }
+        report(mismatches == 0, "document statistics", ds.getClass().getSimpleName(),
+                mismatches + " documents differ from the document index");
+    }
+
+    /**
+     * Checks the matchers with each of bench.models, then with TFs_IDF_EPs for half the documents, whose IDF,
+     * and so every score, is negative for the terms in more than half of them.
+     */
+    private void checkMatchers(File dir, Map<String, String[]> queries) throws Exception {
+        File blockMaxFile = new File(dir, QUANTIZED ? "quantized.blockmax" : "mapped.blockmax");
+        BlockMaxIndexBuilder.build(index, blockMaxFile, BLOCK_SIZE);
+        wand = new BlockMaxWand(index, new BlockMaxIndex(blockMaxFile));
+        daat = new DocumentAtATimeMatcher(index);
+        documentStatistics = DocumentStatistics.forIndex(index);
+        try (PartitionedMatcher partitioned = new PartitionedMatcher(index, PARTITIONS)) {
+            this.partitioned = partitioned;
+            for (String className : ThroughputBenchmark.MODELS) {
+                WeightingModel model = Models.forName(className);
+                checkMatchers(dir, queries, model, model.getInfo());
+            }
+            TFs_IDF_EPs.nZnD = exact.length / 2;
+            try {
+                WeightingModel model = new TFs_IDF_EPs();
+                checkMatchers(dir, queries, model, model.getInfo() + ".nZnD_" + TFs_IDF_EPs.nZnD);
+            } finally {
+                TFs_IDF_EPs.nZnD = -1;
+            }
+        }
+    }
+
+    private void checkMatchers(File dir, Map<String, String[]> queries, WeightingModel model, String info) throws IOException {
+        File impactsFile = new File(dir, "check.impacts");
+        ImpactIndexBuilder.build(index, model, impactsFile, LEVELS);
+        ImpactIndex impacts = new ImpactIndex(impactsFile);
+        ImpactMatcher impactMatcher = new ImpactMatcher(index, impacts);
+        int[] docIds = new int[K];
+        double[] scores = new double[K];
+        int[] referenceDocIds = new int[K];
+        double[] referenceScores = new double[K];
+        negativeTerms = 0;
+        int before = failures;
+
+        for (Map.Entry<String, String[]> q : queries.entrySet()) {
+            String[] terms = q.getValue();
+            int touchedDocuments = score(terms, model);
+            int n = getTopK(touchedDocuments, referenceDocIds, referenceScores);
+            String query = info + " " + q.getKey();
+
+            int m = wand.match(terms, model, K, docIds, scores);
+            compare("BlockMaxWand", query, referenceScores, n, docIds, scores, m);
+            m = daat.match(terms, model, K, docIds, scores);
+            compare("DocumentAtATimeMatcher", query, referenceScores, n, docIds, scores, m);
+            m = partitioned.match(terms, model, K, docIds, scores);
+            compare("PartitionedMatcher", query, referenceScores, n, docIds, scores, m);
+            checkBatch(query, terms, model, touchedDocuments);
+
+            m = impactMatcher.match(terms, K, Long.MAX_VALUE, 0L, docIds, scores);
+            double bound = terms.length * impacts.getScale() / 2;
+            int mismatches = 0;
+            for (int i = 0; i < m; i++)
+                if (!(Math.abs(exact[docIds[i]] - scores[i]) <= bound * (1d + TOLERANCE)))
+                    mismatches++;
+            report(mismatches == 0, "ImpactMatcher", query, mismatches + " scores beyond " + bound);
+
+            for (int i = 0; i < touchedDocuments; i++)
+                exact[touched[i]] = Double.NaN;
+        }
+        System.err.println(info + ": " + (failures == before ? "passed" : failures - before + " checks failed") +
+                " on " + queries.size() + " queries, " + negativeTerms + " of their terms scoring below 0 only");
+    }
+
+    /**
+     * Scores exhaustively every posting of the query terms, term after term, into exact, and the documents
+     * into touched.
+     *
+     * @return the number of documents
+     */
+    private int score(String[] terms, WeightingModel model) throws IOException {
+        int n = 0;
+        WeightingModel first = null;
+        for (String term : terms) {
+            LexiconEntry le = index.getLexicon().getLexiconEntry(term);
+            if (le == null)
+                continue;
+            WeightingModel m = (first != null ? first : model).clone();
+            if (m instanceof IndexConfigurable)
+                ((IndexConfigurable) m).setIndex(index);
+            m.setRequest(rq);
+            m.setCollectionStatistics(index.getCollectionStatistics());
+            m.setEntryStatistics(le);
+            m.setKeyFrequency(1d);
+            m.prepare();
+            if (first == null)
+                first = m;
+            double max = Double.NEGATIVE_INFINITY;
+            IterablePosting ip = index.getInvertedIndex().getPostings(le);
+            while (ip.next() != IterablePosting.EOL) {
+                int docId = ip.getId();
+                double score = m.score(ip);
+                max = Math.max(max, score);
+                if (Double.isNaN(exact[docId])) {
+                    exact[docId] = 0d;
+                    touched[n++] = docId;
+                }
+                exact[docId] += score;
+            }
+            ip.close();
+            if (max < 0)
+                negativeTerms++;
+        }
+        return n;
+    }
+
+    /**
+     * Writes the k best of the documents scored into docIds and scores, best first.
+     */
+    private int getTopK(int n, int[] docIds, double[] scores) {
+        Integer[] sorted = new Integer[n];
+        for (int i = 0; i < n; i++)
+            sorted[i] = touched[i];
+        Arrays.sort(sorted, (a, b) -> Double.compare(exact[b], exact[a]));
+        int k = Math.min(K, n);
+        for (int i = 0; i < k; i++) {
+            docIds[i] = sorted[i];
+            scores[i] = exact[sorted[i]];
+        }
+        return k;
+    }
+
+    /**
+     * Compares the results of a path to the exhaustive ones by score, rank by rank, as documents of equal score
+     * may come in another order, and checks that every document returned has its exhaustive score.
+     */
+    private void compare(String path, String query, double[] referenceScores, int n, int[] docIds, double[] scores, int m) {
+        int mismatches = 0;
+        for (int i = 0; i < Math.min(n, m); i++)
+            if (!equals(referenceScores[i], scores[i]) || !equals(exact[docIds[i]], scores[i]))
+                mismatches++;
+        report(n == m && mismatches == 0, path, query, m + " documents instead of " + n + ", " + mismatches + " differ");
+    }
+
+    /**
+     * Checks that the batch scoring of the postings of the query gives every document its exhaustive score.
+     */
+    private void checkBatch(String query, String[] terms, WeightingModel model, int n) throws IOException {
+        QueryPostings qp = QueryPostings.load(index, documentStatistics, query, terms);
+        WeightingModel m = model.clone();
+        m.setRequest(rq);
+        m.setCollectionStatistics(index.getCollectionStatistics());
+        double[] accumulators = new double[qp.candidates.length];
+        qp.score(m, accumulators, new double[qp.getMaxNumberOfPostings()]);
+        int mismatches = 0;
+        for (int i = 0; i < accumulators.length; i++)
+            if (!equals(exact[qp.candidates[i]], accumulators[i]))
+                mismatches++;
+        report(accumulators.length == n && mismatches == 0, "QueryPostings", query,
+                accumulators.length + " documents instead of " + n + ", " + mismatches + " differ");
+    }
+
+    /**
+     * Adds and removes documents, some with terms of frequency 0, to incremental statistics, and checks them
+     * against the statistics recomputed from the documents of the index and those added and not removed. It
+     * also checks that removing a document that was not added is refused and leaves the statistics unchanged.
+     */
+    private void checkIncrementalStatistics() throws IOException {
+        IncrementalStatistics statistics = new IncrementalStatistics(index);
+        Random random = new Random(SEED);
+        List<Map<String, Integer>> added = new ArrayList<>();
+        for (int d = 0; d < 200; d++) {
+            Map<String, Integer> doc = new HashMap<>();
+            for (int i = 1 + random.nextInt(50); i > 0; i--) {
+                String term = random.nextInt(10) == 0 ? "new" + random.nextInt(100) : ThroughputBenchmark.getTerm(random.nextInt(5000));
+                doc.put(term, random.nextInt(6));
+            }
+            added.add(doc);
+            statistics.addDocument(doc);
+        }
+        checkStatistics("adding", statistics.getSnapshot(), added, new ArrayList<>());
+
+        List<Map<String, Integer>> kept = new ArrayList<>();
+        List<Map<String, Integer>> removed = new ArrayList<>();
+        for (int d = 0; d < added.size(); d++) {
+            if (d % 2 == 0) {
+                statistics.removeDocument(added.get(d));
+                removed.add(added.get(d));
+            } else {
+                kept.add(added.get(d));
+            }
+        }
+        checkStatistics("removing", statistics.getSnapshot(), kept, removed);
+
+        EPsStatistics snapshot = statistics.getSnapshot();
+        boolean refused = false;
+        try {
+            Map<String, Integer> doc = new HashMap<>();
+            doc.put(ThroughputBenchmark.getTerm(0), 1);
+            doc.put("new0", 1000);
+            statistics.removeDocument(doc);
+        } catch (IllegalArgumentException e) {
+            refused = true;
+        }
+        report(refused && statistics.getSnapshot() == snapshot, "IncrementalStatistics", "invalid removal",
+                "the removal of a document that was not added is accepted");
+    }
+
+    /**
+     * Checks the statistics against those recomputed from the documents of the index and the documents added,
+     * the terms of the documents removed staying in the statistics with a burstiness of 0.
+     */
+    private void checkStatistics(String operation, EPsStatistics snapshot, List<Map<String, Integer>> added,
+                                 List<Map<String, Integer>> removed) throws IOException {
+        int nZnD = 0;
+        double sumV = 0d;
+        DocumentIndex doi = index.getDocumentIndex();
+        for (int d = 0; d < exact.length; d++) {
+            DocumentIndexEntry die = doi.getDocumentEntry(d);
+            if (die.getDocumentLength() > 0) {
+                nZnD++;
+                sumV += (double) die.getDocumentLength() / die.getNumberOfEntries();
+            }
+        }
+        Map<String, long[]> terms = new HashMap<>();
+        for (Map.Entry<String, LexiconEntry> e : index.getLexicon())
+            terms.put(e.getKey(), new long[]{e.getValue().getFrequency(), e.getValue().getDocumentFrequency()});
+        for (Map<String, Integer> doc : added) {
+            long l_d = 0;
+            int nT_d = 0;
+            for (Map.Entry<String, Integer> e : doc.entrySet()) {
+                if (e.getValue() == 0)
+                    continue;
+                long[] t = terms.computeIfAbsent(e.getKey(), key -> new long[2]);
+                t[0] += e.getValue();
+                t[1]++;
+                l_d += e.getValue();
+                nT_d++;
+            }
+            if (l_d > 0) {
+                nZnD++;
+                sumV += (double) l_d / nT_d;
+            }
+        }
+        for (Map<String, Integer> doc : removed)
+            for (Map.Entry<String, Integer> e : doc.entrySet())
+                if (e.getValue() > 0)
+                    terms.computeIfAbsent(e.getKey(), key -> new long[2]);
+        double sumB = 0d;
+        for (long[] t : terms.values())
+            if (t[1] > 0)
+                sumB += (double) t[0] / t[1];
+        EPsStatistics expected = new EPsStatistics(nZnD, sumV / nZnD, sumB / terms.size());
+
+        boolean equal = snapshot.nZnD == expected.nZnD && Math.abs(snapshot.avgV - expected.avgV) <= TOLERANCE * expected.avgV
+                && Math.abs(snapshot.avgB - expected.avgB) <= TOLERANCE * expected.avgB;
+        report(equal, "IncrementalStatistics", "after " + operation, snapshot + " instead of " + expected);
+    }
+
+    private void report(boolean passed, String path, String query, String message) {
+        if (passed)
+            return;
+        failures++;
+        System.err.println("FAILED " + path + " " + query + ": " + message);
+    }
+
+    private static boolean equals(double a, double b) {
+        return Math.abs(a - b) <= TOLERANCE * Math.max(1d, Math.abs(a));
+    }
+
+    /**
+     * Runs the checks in a new JVM with the quantized document statistics, which are chosen when the class that
+     * reads them is loaded.
+     */
+    private static int fork(File dir) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-Deps.docstats.quantized=true");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ConsistencyCheck.class.getName());
+        command.add(dir.getPath());
+        return new ProcessBuilder(command).inheritIO().start().waitFor();
+    }
+}
@@ -0,0 +1,156 @@
+package at.ac.tuwien.ifs.benchmark;
+
+import at.ac.tuwien.ifs.BatchWeightingModel;
+import at.ac.tuwien.ifs.LMDs_EPs;
+import at.ac.tuwien.ifs.LM_TFs_IDF_EPs;
+import at.ac.tuwien.ifs.TFs_IDF_EPs;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.terrier.matching.models.WeightingModel;
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.DocumentIndexEntry;
+import org.terrier.structures.IndexConfigurable;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.postings.BasicPostingImpl;
+
+import java.util.Random;
+
+/**
+ * Benchmarks the scalar score(double...), score(Posting) and the batch score of every configuration of the
+ * three models, on the postings of a mid-frequency term of a {@link SyntheticIndex}. A configuration is given
+ * as model:quantification:combination:pivotization, the quantification being omitted for the LM models.
+ * The throughput is per posting.
+ *
+ * @author Aldo Lipani
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OperationsPerInvocation(ModelBenchmark.POSTINGS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ModelBenchmark {
+
+    static final int POSTINGS = 1024;
+
+    private static final int DOCUMENTS = 100000;
+    private static final int TERMS = 50000;
+    private static final int TERM = 1000;
+    private static final long SEED = 1;
+
+    @Param({
+            "TFs_IDF_EPs:total:linear:non_elite", "TFs_IDF_EPs:total:linear:elite",
+            "TFs_IDF_EPs:total:product:non_elite", "TFs_IDF_EPs:total:product:elite",
+            "TFs_IDF_EPs:log:linear:non_elite", "TFs_IDF_EPs:log:linear:elite",
+            "TFs_IDF_EPs:log:product:non_elite", "TFs_IDF_EPs:log:product:elite",
+            "TFs_IDF_EPs:bm25:linear:non_elite", "TFs_IDF_EPs:bm25:linear:elite",
+            "TFs_IDF_EPs:bm25:product:non_elite", "TFs_IDF_EPs:bm25:product:elite",
+            "TFs_IDF_EPs:constant:linear:non_elite", "TFs_IDF_EPs:constant:linear:elite",
+            "TFs_IDF_EPs:constant:product:non_elite", "TFs_IDF_EPs:constant:product:elite",
+            "LMDs_EPs:linear:non_elite", "LMDs_EPs:linear:elite",
+            "LMDs_EPs:product:non_elite", "LMDs_EPs:product:elite",
+            "LM_TFs_IDF_EPs:linear:non_elite", "LM_TFs_IDF_EPs:linear:elite",
+            "LM_TFs_IDF_EPs:product:non_elite", "LM_TFs_IDF_EPs:product:elite"})
+    public String configuration;
+
+    @Param({"0.5"})
+    public double b;
+
+    @Param({"0.5"})
+    public double a;
+
+    @Param({"1.2"})
+    public double k1;
+
+    private WeightingModel model;
+    private TFs_IDF_EPs tfs;
+    private LMDs_EPs lmds;
+    private LM_TFs_IDF_EPs lmtfs;
+
+    private double nD, nT, l_c, df, l_t;
+
+    private final BasicPostingImpl[] postings = new BasicPostingImpl[POSTINGS];
+    private final int[] docIds = new int[POSTINGS];
+    private final int[] tfds = new int[POSTINGS];
+    private final int[] l_ds = new int[POSTINGS];
+    private final double[] nT_ds = new double[POSTINGS];
+    private final double[] scores = new double[POSTINGS];
+
+    @Setup
+    public void setup() throws Exception {
+        SyntheticIndex index = new SyntheticIndex(DOCUMENTS, TERMS, SEED);
+        String[] c = configuration.split(":");
+        if (c[0].equals("TFs_IDF_EPs"))
+            model = tfs = new TFs_IDF_EPs(c[1], c[2], c[3], b, a, k1);
+        else if (c[0].equals("LMDs_EPs"))
+            model = lmds = new LMDs_EPs(c[1], c[2], b, a);
+        else
+            model = lmtfs = new LM_TFs_IDF_EPs(c[1], c[2], b, a);
+
+        CollectionStatistics cs = index.getCollectionStatistics();
+        LexiconEntry le = index.getTerm(TERM);
+        ((IndexConfigurable) model).setIndex(index);
+        model.setCollectionStatistics(cs);
+        model.setEntryStatistics(le);
+        model.setKeyFrequency(1d);
+        model.prepare();
+
+        nD = cs.getNumberOfDocuments();
+        nT = cs.getNumberOfUniqueTerms();
+        l_c = cs.getNumberOfTokens();
+        df = le.getDocumentFrequency();
+        l_t = le.getFrequency();
+
+        Random random = new Random(SEED);
+        for (int i = 0; i < POSTINGS; i++) {
+            DocumentIndexEntry die;
+            int docId;
+            do {
+                docId = random.nextInt(DOCUMENTS);
+                die = index.getDocumentIndex().getDocumentEntry(docId);
+            } while (die.getDocumentLength() == 0);
+            docIds[i] = docId;
+            l_ds[i] = die.getDocumentLength();
+            nT_ds[i] = die.getNumberOfEntries();
+            tfds[i] = 1 + Math.min(l_ds[i] - 1, (int) (-2d * Math.log(1d - random.nextDouble())));
+            postings[i] = new BasicPostingImpl(docId, tfds[i]);
+            postings[i].setDocumentLength(l_ds[i]);
+        }
+    }
+
+    @Benchmark
+    public void scalar(Blackhole bh) {
+        for (int i = 0; i < POSTINGS; i++) {
+            double s;
+            if (tfs != null)
+                s = tfs.score(tfds[i], l_ds[i], nD, nT_ds[i], df, l_c, nT);
+            else if (lmds != null)
+                s = lmds.score(tfds[i], l_ds[i], nD, l_c, nT, l_t, nT_ds[i]);
+            else
+                s = lmtfs.score(tfds[i], nD, df, l_c, l_t);
+            bh.consume(s);
+        }
+    }
+
+    @Benchmark
+    public void posting(Blackhole bh) {
+        for (int i = 0; i < POSTINGS; i++)
+            bh.consume(model.score(postings[i]));
+    }
+
+    @Benchmark
+    public double[] batch() {
+        ((BatchWeightingModel) model).score(docIds, tfds, l_ds, nT_ds, POSTINGS, scores);
+        return scores;
+    }
+}
@@ -0,0 +1,86 @@
+package at.ac.tuwien.ifs.benchmark;
+
+import at.ac.tuwien.ifs.DocumentStatistics;
+import at.ac.tuwien.ifs.EPsStatistics;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmarks the initialisation of the collection statistics of the models, nZnD, avgV and avgB, on a
+ * {@link SyntheticIndex}: the full pass of {@link EPsStatistics#compute}, and the document and term scans it
+ * is made of.
+ *
+ * @author Aldo Lipani
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatisticsBenchmark {
+
+    @Param({"100000", "1000000"})
+    public int documents;
+
+    @Param({"100000"})
+    public int terms;
+
+    private SyntheticIndex index;
+    private DocumentStatistics ds;
+
+    @Setup
+    public void setup() throws IOException {
+        index = new SyntheticIndex(documents, terms, 1);
+        ds = DocumentStatistics.forIndex(index);
+    }
+
+    @Benchmark
+    public EPsStatistics compute() throws IOException {
+        return EPsStatistics.compute(index);
+    }
+
+    /**
+     * nZnD and the sum of the verboseness, as in getNumberOfNonZeroLengthDocuments and getAverageVerboseness.
+     */
+    @Benchmark
+    public double documents() throws IOException {
+        double nZnD = 0d, v = 0d;
+        int nD = ds.getNumberOfDocuments();
+        for (int i = 0; i < nD; i++) {
+            double l_d = ds.getDocumentLength(i);
+            if (l_d > 0) {
+                nZnD++;
+                v += l_d / ds.getNumberOfUniqueTerms(i);
+            }
+        }
+        return v / nZnD;
+    }
+
+    /**
+     * The sum of the burstiness, as in getAverageTermBurstiness.
+     */
+    @Benchmark
+    public double terms() {
+        double B = 0d;
+        int nT = index.getLexicon().numberOfEntries();
+        for (int i = 0; i < nT; i++) {
+            double l_t = index.getLexicon().getIthLexiconEntry(i).getValue().getFrequency();
+            double nD_t = index.getLexicon().getIthLexiconEntry(i).getValue().getDocumentFrequency();
+            B += l_t / nD_t;
+        }
+        return B / nT;
+    }
+}
@@ -0,0 +1,164 @@
+package at.ac.tuwien.ifs.benchmark;
+
+import org.terrier.structures.BasicDocumentIndexEntry;
+import org.terrier.structures.BasicLexiconEntry;
+import org.terrier.structures.CollectionStatistics;
+import org.terrier.structures.DocumentIndex;
+import org.terrier.structures.DocumentIndexEntry;
+import org.terrier.structures.Index;
+import org.terrier.structures.Lexicon;
+import org.terrier.structures.LexiconEntry;
+import org.terrier.structures.MetaIndex;
+import org.terrier.structures.PostingIndex;
+
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * An in-memory index with a document index and a lexicon only, generated from a fixed seed, on which the
+ * models and their statistics can be benchmarked without reading from disk.
+ * <p>
+ * Document lengths are geometric around 300 tokens, 1% of the documents are empty, and the term frequencies
+ * follow a Zipf distribution over the vocabulary.
+ *
+ * @author Aldo Lipani
+ */
+public class SyntheticIndex extends Index {
+
+    private static final double AVERAGE_LENGTH = 300d;
+    private static final double EMPTY = 0.01d;
+
+    private final DocumentIndexEntry[] documents;
+    private final List<Map.Entry<String, LexiconEntry>> terms;
+    private final CollectionStatistics cs;
+
+    private final DocumentIndex doi = new DocumentIndex() {
+        public DocumentIndexEntry getDocumentEntry(int docid) {
+            return documents[docid];
+        }
+
+        public int getDocumentLength(int docid) {
+            return documents[docid].getDocumentLength();
+        }
+
+        public int getNumberOfDocuments() {
+            return documents.length;
+        }
+    };
+
+    private final Lexicon<String> lex = new Lexicon<String>() {
+        public int numberOfEntries() {
+            return terms.size();
+        }
+
+        public LexiconEntry getLexiconEntry(String term) {
+            return term.startsWith("t") ? getLexiconEntry(Integer.parseInt(term.substring(1))).getValue() : null;
+        }
+
+        public Map.Entry<String, LexiconEntry> getLexiconEntry(int termid) {
+            return terms.get(termid);
+        }
+
+        public Map.Entry<String, LexiconEntry> getIthLexiconEntry(int index) {
+            return terms.get(index);
+        }
+
+        public Iterator<Map.Entry<String, LexiconEntry>> getLexiconEntryRange(String from, String to) {
+            throw new UnsupportedOperationException();
+        }
+
+        public Iterator<Map.Entry<String, LexiconEntry>> iterator() {
+            return terms.iterator();
+        }
+
+        public void close() {
+        }
+    };
+
+    public SyntheticIndex(int nD, int nT, long seed) {
+        Random random = new Random(seed);
+        documents = new DocumentIndexEntry[nD];
+        long tokens = 0;
+        long pointers = 0;
+        for (int i = 0; i < nD; i++) {
+            int l_d = 0;
+            int nT_d = 0;
+            if (random.nextDouble() >= EMPTY) {
+                l_d = 1 + (int) (-AVERAGE_LENGTH * Math.log(1d - random.nextDouble()));
+                nT_d = Math.min(l_d, 1 + (int) (l_d * (0.4d + 0.4d * random.nextDouble())));
+            }
+            documents[i] = new BasicDocumentIndexEntry(l_d, (byte) 0, 0L, (byte) 0, nT_d);
+            tokens += l_d;
+            pointers += nT_d;
+        }
+
+        double H = 0d;
+        for (int t = 1; t <= nT; t++)
+            H += 1d / t;
+        terms = new ArrayList<>(nT);
+        for (int t = 0; t < nT; t++) {
+            int l_t = Math.max(1, (int) (tokens / ((t + 1) * H)));
+            int nD_t = Math.max(1, Math.min(nD, (int) (l_t / (1d + random.nextDouble()))));
+            terms.add(new AbstractMap.SimpleImmutableEntry<>("t" + t, new BasicLexiconEntry(t, nD_t, l_t)));
+        }
+
+        cs = new CollectionStatistics(nD, nT, tokens, pointers, new long[0]);
+    }
+
+    /**
+     * Returns the document frequency and term frequency of the i-th term.
+     */
+    public LexiconEntry getTerm(int i) {
+        return terms.get(i).getValue();
+    }
+
+    public void close() {
+    }
+
+    public void flush() {
+    }
+
+    public CollectionStatistics getCollectionStatistics() {
+        return cs;
+    }
+
+    public PostingIndex<?> getDirectIndex() {
+        return null;
+    }
+
+    public DocumentIndex getDocumentIndex() {
+        return doi;
+    }
+
+    public Object getIndexStructure(String structureName) {
+        if (structureName.equals("document"))
+            return doi;
+        if (structureName.equals("lexicon"))
+            return lex;
+        return null;
+    }
+
+    public Object getIndexStructureInputStream(String structureName) {
+        return null;
+    }
+
+    public PostingIndex<?> getInvertedIndex() {
+        return null;
+    }
+
+    public Lexicon<String> getLexicon() {
+        return lex;
+    }
+
+    public MetaIndex getMetaIndex() {
+        return null;
+    }
+
+    public String toString() {
+        return "synthetic-" + documents.length + "-" + terms.size();
+    }
+}
@@ -0,0 +1,307 @@
+package at.ac.tuwien.ifs.benchmark;
+
+import at.ac.tuwien.ifs.DocumentStatisticsBuilder;
+import org.terrier.indexing.Collection;
+import org.terrier.indexing.TRECCollection;
+import org.terrier.querying.Manager;
+import org.terrier.querying.SearchRequest;
+import org.terrier.structures.Index;
+import org.terrier.structures.IndexOnDisk;
+import org.terrier.structures.indexing.classical.BasicIndexer;
+import org.terrier.utility.ApplicationSetup;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * End-to-end throughput of the models on a synthetic corpus, from the index on disk.
+ * <p>
+ * Usage: ThroughputBenchmark run|generate|index|replay dir [documents|model]
+ * <p>
+ * generate writes a reproducible corpus of the given number of documents, dir/corpus.trec, and a query log,
+ * dir/queries.txt. The terms are drawn from a Zipf distribution over bench.vocabulary terms with exponent
+ * bench.zipf. The document lengths and verboseness are log-normal, of means bench.length and
+ * bench.verboseness and of shapes bench.length.sigma and bench.verboseness.sigma. The log has bench.queries
+ * queries of 1 to bench.query.terms terms.
+ * <p>
+ * index builds the Terrier index dir/index/data of the corpus, and its document statistics sidecar when
+ * bench.docstats=true, so that the DocumentIndex lookups can be compared to the mapped ones.
+ * <p>
+ * replay opens the index, runs the first query (cold start), replays the log bench.warmup times, then once
+ * more measured, with the given model. It reports the queries per second, the p50, p99 and p999 latencies,
+ * the cold start time and the heap used after a full GC and at its peak.
+ * <p>
+ * run generates and indexes the corpus when missing, then replays the log with each of bench.models, each in
+ * a new JVM started with the arguments of this one, so that no model starts with the caches of another.
+ *
+ * @author Aldo Lipani
+ */
+public class ThroughputBenchmark {
+
+    static final String[] MODELS = System.getProperty("bench.models",
+            "at.ac.tuwien.ifs.TFs_IDF_EPs,at.ac.tuwien.ifs.LMDs_EPs,at.ac.tuwien.ifs.LM_TFs_IDF_EPs").split(",");
+
+    private static final int VOCABULARY = Integer.parseInt(System.getProperty("bench.vocabulary", "1000000"));
+    private static final double ZIPF = Double.parseDouble(System.getProperty("bench.zipf", "1.0"));
+    private static final double LENGTH = Double.parseDouble(System.getProperty("bench.length", "300"));
+    private static final double LENGTH_SIGMA = Double.parseDouble(System.getProperty("bench.length.sigma", "0.8"));
+    private static final double VERBOSENESS = Double.parseDouble(System.getProperty("bench.verboseness", "1.5"));
+    private static final double VERBOSENESS_SIGMA = Double.parseDouble(System.getProperty("bench.verboseness.sigma", "0.2"));
+    private static final int QUERIES = Integer.parseInt(System.getProperty("bench.queries", "10000"));
+    private static final int QUERY_TERMS = Integer.parseInt(System.getProperty("bench.query.terms", "4"));
+    private static final int WARMUP = Integer.parseInt(System.getProperty("bench.warmup", "1"));
+    private static final boolean DOCSTATS = Boolean.parseBoolean(System.getProperty("bench.docstats", "false"));
+    private static final long SEED = Long.parseLong(System.getProperty("bench.seed", "1"));
+
+    /**
+     * The most frequent terms, left out of the queries as stopwords would be.
+     */
+    private static final int STOPWORDS = 100;
+
+    private static final String CONSONANTS = "bcdfghjklmnpqrstvwxz";
+    private static final String VOWELS = "aeiou";
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 2) {
+            System.err.println("Usage: ThroughputBenchmark run|generate|index|replay dir [documents|model]");
+            System.exit(1);
+        }
+        File dir = new File(args[1]);
+        configure();
+        if (args[0].equals("generate")) {
+            generate(dir, Integer.parseInt(args[2]));
+        } else if (args[0].equals("index")) {
+            index(dir);
+        } else if (args[0].equals("replay")) {
+            replay(dir, args[2]);
+        } else if (args[0].equals("run")) {
+            if (!new File(dir, "corpus.trec").exists())
+                generate(dir, Integer.parseInt(args[2]));
+            if (!Index.existsIndex(getIndexPath(dir), "data"))
+                index(dir);
+            System.out.println("model\tqps\tp50_ms\tp99_ms\tp999_ms\tcold_ms\theap_mb\tpeak_heap_mb");
+            for (String model : MODELS)
+                fork(dir, model);
+        } else {
+            throw new IllegalArgumentException("The command is invalid: " + args[0]);
+        }
+    }
+
+    /**
+     * Sets the properties of Terrier for the corpus: no term pipeline, and the docno as the only metadata.
+     */
+    static void configure() {
+        ApplicationSetup.setProperty("termpipelines", "");
+        ApplicationSetup.setProperty("TrecDocTags.doctag", "DOC");
+        ApplicationSetup.setProperty("TrecDocTags.idtag", "DOCNO");
+        ApplicationSetup.setProperty("TrecDocTags.skip", "");
+        ApplicationSetup.setProperty("indexer.meta.forward.keys", "docno");
+        ApplicationSetup.setProperty("indexer.meta.forward.keylens", "16");
+    }
+
+    /**
+     * Writes the corpus and the query log.
+     */
+    public static void generate(File dir, int nD) throws IOException {
+        dir.mkdirs();
+        Random random = new Random(SEED);
+        double[] cdf = getZipfDistribution();
+        BitSet seen = new BitSet(VOCABULARY);
+        int[] terms = new int[VOCABULARY / 2];
+        long start = System.nanoTime();
+        try (Writer w = new BufferedWriter(new FileWriter(new File(dir, "corpus.trec")), 1 << 16)) {
+            for (int d = 0; d < nD; d++) {
+                int l_d = (int) Math.max(1, Math.round(logNormal(random, LENGTH, LENGTH_SIGMA)));
+                double v = Math.max(1d, logNormal(random, VERBOSENESS, VERBOSENESS_SIGMA));
+                int nT_d = (int) Math.min(terms.length, Math.max(1, Math.round(l_d / v)));
+                for (int i = 0; i < nT_d; ) {
+                    int t = sample(random, cdf);
+                    if (!seen.get(t)) {
+                        seen.set(t);
+                        terms[i++] = t;
+                    }
+                }
+                w.write("<DOC>\n<DOCNO>D");
+                w.write(Integer.toString(d));
+                w.write("</DOCNO>\n");
+                for (int i = 0; i < Math.max(l_d, nT_d); i++) {
+                    w.write(getTerm(terms[i < nT_d ? i : random.nextInt(nT_d)]));
+                    w.write(' ');
+                }
+                w.write("\n</DOC>\n");
+                for (int i = 0; i < nT_d; i++)
+                    seen.clear(terms[i]);
+            }
+        }
+        try (Writer w = new BufferedWriter(new FileWriter(new File(dir, "queries.txt")))) {
+            for (int q = 0; q < QUERIES; q++) {
+                w.write("Q" + q);
+                int n = 1 + random.nextInt(QUERY_TERMS);
+                for (int i = 0; i < n; i++) {
+                    int t;
+                    do {
+                        t = sample(random, cdf);
+                    } while (t < STOPWORDS);
+                    w.write(" " + getTerm(t));
+                }
+                w.write("\n");
+            }
+        }
+        System.err.println("Corpus of " + nD + " documents generated in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     * Indexes the corpus.
+     */
+    public static void index(File dir) throws IOException {
+        String path = getIndexPath(dir);
+        new File(path).mkdirs();
+        long start = System.nanoTime();
+        try (InputStream in = new BufferedInputStream(new FileInputStream(new File(dir, "corpus.trec")), 1 << 16)) {
+            new BasicIndexer(path, "data").index(new Collection[]{new TRECCollection(in)});
+        }
+        System.err.println("Index built in " + (System.nanoTime() - start) / 1000000 + " ms");
+        if (DOCSTATS)
+            DocumentStatisticsBuilder.main(new String[]{path, "data"});
+    }
+
+    /**
+     * Replays the query log with the model, and prints a line of measures.
+     */
+    public static void replay(File dir, String model) throws IOException {
+        List<String[]> queries = new ArrayList<>();
+        try (BufferedReader br = new BufferedReader(new FileReader(new File(dir, "queries.txt")))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                int i = line.indexOf(' ');
+                queries.add(new String[]{line.substring(0, i), line.substring(i + 1)});
+            }
+        }
+
+        long start = System.nanoTime();
+        IndexOnDisk index = Index.createIndex(getIndexPath(dir), "data");
+        if (index == null)
+            throw new IOException(Index.getLastIndexLoadError());
+        Manager manager = new Manager(index);
+        search(manager, model, queries.get(0));
+        long cold = System.nanoTime() - start;
+
+        for (int w = 0; w < WARMUP; w++)
+            for (String[] q : queries)
+                search(manager, model, q);
+
+        long[] latencies = new long[queries.size()];
+        start = System.nanoTime();
+        for (int i = 0; i < latencies.length; i++) {
+            long t = System.nanoTime();
+            search(manager, model, queries.get(i));
+            latencies[i] = System.nanoTime() - t;
+        }
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+
+        System.gc();
+        long heap = Runtime.getRuntime().totalMemory() - Runtime.getRuntime().freeMemory();
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans())
+            if (pool.getType() == MemoryType.HEAP)
+                peak += pool.getPeakUsage().getUsed();
+
+        System.out.println(model + "\t" +
+                String.format("%.1f", latencies.length / (elapsed / 1e9)) + "\t" +
+                String.format("%.3f", getPercentile(latencies, 0.5) / 1e6) + "\t" +
+                String.format("%.3f", getPercentile(latencies, 0.99) / 1e6) + "\t" +
+                String.format("%.3f", getPercentile(latencies, 0.999) / 1e6) + "\t" +
+                cold / 1000000 + "\t" +
+                heap / (1 << 20) + "\t" +
+                peak / (1 << 20));
+        index.close();
+    }
+
+    private static void search(Manager manager, String model, String[] query) {
+        SearchRequest srq = manager.newSearchRequest(query[0], query[1]);
+        srq.addMatchingModel("Matching", model);
+        manager.runPreProcessing(srq);
+        manager.runMatching(srq);
+        manager.runPostProcessing(srq);
+        manager.runPostFilters(srq);
+    }
+
+    /**
+     * Replays the log with the model in a new JVM.
+     */
+    private static void fork(File dir, String model) throws IOException, InterruptedException {
+        List<String> command = new ArrayList<>();
+        command.add(new File(System.getProperty("java.home"), "bin/java").getPath());
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(ThroughputBenchmark.class.getName());
+        command.add("replay");
+        command.add(dir.getPath());
+        command.add(model);
+        int status = new ProcessBuilder(command).inheritIO().start().waitFor();
+        if (status != 0)
+            throw new IOException("The replay of " + model + " failed with status " + status);
+    }
+
+    static String getIndexPath(File dir) {
+        return new File(dir, "index").getPath();
+    }
+
+    private static long getPercentile(long[] sorted, double p) {
+        return sorted[Math.min(sorted.length - 1, (int) Math.ceil(p * sorted.length) - 1)];
+    }
+
+    /**
+     * The cumulative Zipf distribution over the term ranks.
+     */
+    private static double[] getZipfDistribution() {
+        double[] cdf = new double[VOCABULARY];
+        double sum = 0d;
+        for (int t = 0; t < VOCABULARY; t++)
+            cdf[t] = sum += Math.pow(t + 1, -ZIPF);
+        for (int t = 0; t < VOCABULARY; t++)
+            cdf[t] /= sum;
+        return cdf;
+    }
+
+    private static int sample(Random random, double[] cdf) {
+        int t = Arrays.binarySearch(cdf, random.nextDouble());
+        return Math.min(cdf.length - 1, t < 0 ? -t - 1 : t);
+    }
+
+    private static double logNormal(Random random, double mean, double sigma) {
+        return Math.exp(Math.log(mean) - sigma * sigma / 2 + sigma * random.nextGaussian());
+    }
+
+    /**
+     * The term of a rank, of alternating consonants and vowels, which the tokeniser keeps as is.
+     */
+    static String getTerm(int t) {
+        StringBuilder sb = new StringBuilder();
+        int i = 0;
+        do {
+            String letters = i++ % 2 == 0 ? CONSONANTS : VOWELS;
+            sb.append(letters.charAt(t % letters.length()));
+            t /= letters.length();
+        } while (t > 0);
+        return sb.toString();
+    }
+}
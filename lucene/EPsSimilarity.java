@@ -0,0 +1,103 @@
+package at.ac.tuwien.ifs.lucene;
+
+import org.apache.lucene.index.FieldInvertState;
+import org.apache.lucene.search.CollectionStatistics;
+import org.apache.lucene.search.Explanation;
+import org.apache.lucene.search.TermStatistics;
+import org.apache.lucene.search.similarities.Similarity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The base of the Lucene similarities of the EPs models. The norm of a document packs its length, in the high
+ * 32 bits, with its number of unique terms, in the low 32 bits, so that its verboseness is known at search time
+ * without any other lookup. The collection statistics are those of a {@link FieldStatistics}, computed once
+ * from the index and kept, like those of the models, so that they do not change during a query; the statistics
+ * of a term are those given by Lucene.
+ * <p>
+ * A norm is not monotone in the score, as Lucene assumes for the impacts and the block-max scores, so the
+ * searches must collect in the COMPLETE score mode, e.g. with a TopScoreDocCollector whose total hits
+ * threshold is Integer.MAX_VALUE; the scores of LMDs_EPs may moreover be negative. A query of many terms at
+ * the same position, such as a phrase, scores the sum of the scores of its terms.
+ *
+ * @author Aldo Lipani
+ */
+public abstract class EPsSimilarity extends Similarity {
+
+    protected final FieldStatistics statistics;
+
+    protected EPsSimilarity(FieldStatistics statistics) {
+        this.statistics = statistics;
+    }
+
+    /**
+     * Returns the length and the number of unique terms of the field, never 0 for a non-empty field.
+     */
+    @Override
+    public long computeNorm(FieldInvertState state) {
+        return (long) state.getLength() << 32 | state.getUniqueTermCount();
+    }
+
+    public static int getDocumentLength(long norm) {
+        return (int) (norm >>> 32);
+    }
+
+    public static int getNumberOfUniqueTerms(long norm) {
+        return (int) norm;
+    }
+
+    @Override
+    public final SimScorer scorer(float boost, CollectionStatistics collectionStats, TermStatistics... termStats) {
+        if (termStats.length == 1)
+            return new BoostedScorer(boost, scorer(termStats[0]));
+        List<TermScorer> scorers = new ArrayList<>();
+        for (TermStatistics ts : termStats)
+            scorers.add(scorer(ts));
+        return new BoostedScorer(boost, new TermScorer() {
+            @Override
+            public double score(double tfd, long norm) {
+                double score = 0d;
+                for (TermScorer s : scorers)
+                    score += s.score(tfd, norm);
+                return score;
+            }
+        });
+    }
+
+    /**
+     * Computes the constants of the term, as the prepare() of the model does.
+     */
+    protected abstract TermScorer scorer(TermStatistics termStats);
+
+    /**
+     * The score of a term in a document, in double precision, from its frequency and the norm of the document.
+     */
+    protected interface TermScorer {
+
+        double score(double tfd, long norm);
+    }
+
+    private static class BoostedScorer extends SimScorer {
+
+        private final float boost;
+        private final TermScorer scorer;
+
+        BoostedScorer(float boost, TermScorer scorer) {
+            this.boost = boost;
+            this.scorer = scorer;
+        }
+
+        @Override
+        public float score(float freq, long norm) {
+            return (float) (boost * scorer.score(freq, norm));
+        }
+
+        @Override
+        public Explanation explain(Explanation freq, long norm) {
+            return Explanation.match(score(freq.getValue().floatValue(), norm),
+                    "score(freq=" + freq.getValue() + ", l_d=" + getDocumentLength(norm) +
+                            ", nT_d=" + getNumberOfUniqueTerms(norm) + "), boost " + boost, freq);
+        }
+    }
+}
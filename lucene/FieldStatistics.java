@@ -0,0 +1,85 @@
+package at.ac.tuwien.ifs.lucene;
+
+import at.ac.tuwien.ifs.EPsStatistics;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.MultiTerms;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+
+import java.io.IOException;
+
+/**
+ * The collection statistics of a field of a Lucene index, as the models take them from a Terrier index: nZnD,
+ * avgV and avgB, and the number of documents, tokens and unique terms of the collection. The lengths and
+ * numbers of unique terms of the documents are read from the norms written by {@link EPsSimilarity}, the
+ * frequencies of the terms from the terms of the field.
+ *
+ * @author Aldo Lipani
+ */
+public class FieldStatistics extends EPsStatistics {
+
+    public final int numberOfDocuments;
+    public final long numberOfTokens;
+    public final long numberOfUniqueTerms;
+
+    public FieldStatistics(int nZnD, double avgV, double avgB, int numberOfDocuments, long numberOfTokens, long numberOfUniqueTerms) {
+        super(nZnD, avgV, avgB);
+        this.numberOfDocuments = numberOfDocuments;
+        this.numberOfTokens = numberOfTokens;
+        this.numberOfUniqueTerms = numberOfUniqueTerms;
+    }
+
+    /**
+     * Computes the statistics of the field, whose norms must have been written by an {@link EPsSimilarity}.
+     * The deleted documents are counted until they are merged away, as they are in the term statistics.
+     *
+     * @param reader the reader of the index
+     * @param field  the field
+     * @return the statistics of the field
+     * @throws IllegalArgumentException if the field is not indexed
+     */
+    public static FieldStatistics compute(IndexReader reader, String field) throws IOException {
+        Terms terms = MultiTerms.getTerms(reader, field);
+        if (terms == null)
+            throw new IllegalArgumentException("The field is not indexed: " + field);
+
+        int nZnD = 0;
+        double V = 0d;
+        for (LeafReaderContext context : reader.leaves()) {
+            NumericDocValues norms = context.reader().getNormValues(field);
+            if (norms == null)
+                continue;
+            for (int doc = norms.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = norms.nextDoc()) {
+                double l_d = EPsSimilarity.getDocumentLength(norms.longValue());
+                if (l_d > 0) {
+                    nZnD++;
+                    V += l_d / EPsSimilarity.getNumberOfUniqueTerms(norms.longValue());
+                }
+            }
+        }
+
+        long nT = 0;
+        double B = 0d;
+        TermsEnum te = terms.iterator();
+        while (te.next() != null) {
+            nT++;
+            B += (double) te.totalTermFreq() / te.docFreq();
+        }
+        return new FieldStatistics(nZnD, V / nZnD, B / nT, reader.maxDoc(), terms.getSumTotalTermFreq(), nT);
+    }
+
+    /**
+     * Returns the average length of the documents, counting those of zero length, as Terrier does.
+     */
+    public double getAverageDocumentLength() {
+        return numberOfDocuments == 0 ? 0d : (double) numberOfTokens / numberOfDocuments;
+    }
+
+    @Override
+    public String toString() {
+        return super.toString() + " nD=" + numberOfDocuments + " tokens=" + numberOfTokens + " nT=" + numberOfUniqueTerms;
+    }
+}
@@ -0,0 +1,59 @@
+package at.ac.tuwien.ifs.lucene;
+
+import at.ac.tuwien.ifs.NormalizationCombination;
+import at.ac.tuwien.ifs.NormalizationPivotization;
+import org.apache.lucene.search.TermStatistics;
+import org.terrier.matching.models.WeightingModelLibrary;
+
+/**
+ * The similarity of LMDs_EPs. The score of a term in a document is that of score(double...) of the model,
+ * computed in double precision in the same order, and rounded to a float, within a relative error of 2^-24.
+ * It is negative when the smoothed probability of the term in the document is below that in the collection.
+ *
+ * @author Aldo Lipani
+ */
+public class LMDs_EPsSimilarity extends EPsSimilarity {
+
+    private final NormalizationCombination combination;
+    private final double b;
+    private final double a;
+
+    /**
+     * Constants of the collection
+     */
+    private final double l_c;
+    private final double lengthPivot;
+    private final double verbosenessPivot;
+
+    /**
+     * @throws IllegalArgumentException if the combination or pivotization is invalid
+     */
+    public LMDs_EPsSimilarity(FieldStatistics statistics,
+                              String tfNormalizationCombination,
+                              String tfNormalizationPivotization,
+                              double b,
+                              double a) {
+        super(statistics);
+        this.combination = NormalizationCombination.of("tf.normalization.combination", tfNormalizationCombination);
+        NormalizationPivotization pivotization = NormalizationPivotization.of("tf.normalization.pivotization", tfNormalizationPivotization);
+        this.b = b;
+        this.a = a;
+        double nD = statistics.nZnD;
+        l_c = statistics.numberOfTokens * nD;
+        lengthPivot = l_c / nD;
+        verbosenessPivot = pivotization == NormalizationPivotization.ELITE ?
+                statistics.avgV : l_c / statistics.numberOfUniqueTerms;
+    }
+
+    @Override
+    protected TermScorer scorer(TermStatistics termStats) {
+        double ILF = l_c / termStats.totalTermFreq();
+        return (tfd, norm) -> {
+            double l_d = getDocumentLength(norm);
+            double nT_d = getNumberOfUniqueTerms(norm);
+            double K = combination.getK(l_d / lengthPivot, (l_d / nT_d) / verbosenessPivot, b, a);
+            double lambda = K / (K + 1d);
+            return WeightingModelLibrary.log(1d - lambda + lambda * (tfd / l_d) * ILF);
+        };
+    }
+}
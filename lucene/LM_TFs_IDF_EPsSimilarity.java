@@ -0,0 +1,57 @@
+package at.ac.tuwien.ifs.lucene;
+
+import at.ac.tuwien.ifs.NormalizationCombination;
+import at.ac.tuwien.ifs.NormalizationPivotization;
+import org.apache.lucene.search.TermStatistics;
+import org.terrier.matching.models.WeightingModelLibrary;
+
+/**
+ * The similarity of LM_TFs_IDF_EPs, whose IDF is smoothed by the length and burstiness of the term. The score
+ * of a term in a document is that of score(double...) of the model rounded to a float, within a relative error
+ * of 2^-24; the norm of the document is not read.
+ *
+ * @author Aldo Lipani
+ */
+public class LM_TFs_IDF_EPsSimilarity extends EPsSimilarity {
+
+    private final NormalizationCombination combination;
+    private final NormalizationPivotization pivotization;
+    private final double b;
+    private final double a;
+
+    /**
+     * Constants of the collection
+     */
+    private final double nD;
+    private final double l_c;
+
+    /**
+     * @throws IllegalArgumentException if the combination or pivotization is invalid
+     */
+    public LM_TFs_IDF_EPsSimilarity(FieldStatistics statistics,
+                                    String lambdaqNormalizationCombination,
+                                    String lambdaqNormalizationPivotization,
+                                    double b,
+                                    double a) {
+        super(statistics);
+        this.combination = NormalizationCombination.of("lambdaq.normalization.combination", lambdaqNormalizationCombination);
+        this.pivotization = NormalizationPivotization.of("lambdaq.normalization.pivotization", lambdaqNormalizationPivotization);
+        this.b = b;
+        this.a = a;
+        nD = statistics.nZnD;
+        l_c = statistics.getAverageDocumentLength() * nD;
+    }
+
+    @Override
+    protected TermScorer scorer(TermStatistics termStats) {
+        double df = termStats.docFreq();
+        double l_t = termStats.totalTermFreq();
+        double pivtb = pivotization == NormalizationPivotization.ELITE ?
+                (l_t / df) / statistics.avgB : (l_t / df) / (l_c / nD);
+        double pivtl = l_t / (l_c / nD);
+        double KT = combination.getK(pivtl, pivtb, b, a);
+        double lambdaq = KT / (KT + 1);
+        double IDF = WeightingModelLibrary.log(1d - lambdaq + lambdaq * nD / df);
+        return (tfd, norm) -> tfd * IDF;
+    }
+}
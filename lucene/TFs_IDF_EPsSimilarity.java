@@ -0,0 +1,64 @@
+package at.ac.tuwien.ifs.lucene;
+
+import at.ac.tuwien.ifs.NormalizationCombination;
+import at.ac.tuwien.ifs.NormalizationPivotization;
+import at.ac.tuwien.ifs.TfQuantification;
+import org.apache.lucene.search.TermStatistics;
+import org.terrier.matching.models.WeightingModelLibrary;
+
+/**
+ * The similarity of TFs_IDF_EPs. The score of a term in a document is that of score(double...) of the model,
+ * computed in double precision in the same order, and rounded to a float, within a relative error of 2^-24.
+ *
+ * @author Aldo Lipani
+ */
+public class TFs_IDF_EPsSimilarity extends EPsSimilarity {
+
+    private final TfQuantification quantification;
+    private final NormalizationCombination combination;
+    private final double b;
+    private final double a;
+    private final double k_1;
+
+    /**
+     * Constants of the collection
+     */
+    private final double nD;
+    private final double lengthPivot;
+    private final double verbosenessPivot;
+
+    /**
+     * @throws IllegalArgumentException if the quantification, combination or pivotization is invalid
+     */
+    public TFs_IDF_EPsSimilarity(FieldStatistics statistics,
+                                 String tfQuantification,
+                                 String tfNormalizationCombination,
+                                 String tfNormalizationPivotization,
+                                 double b,
+                                 double a,
+                                 double k_1) {
+        super(statistics);
+        this.quantification = TfQuantification.of("tf.quantification", tfQuantification);
+        this.combination = NormalizationCombination.of("tf.normalization.combination", tfNormalizationCombination);
+        NormalizationPivotization pivotization = NormalizationPivotization.of("tf.normalization.pivotization", tfNormalizationPivotization);
+        this.b = b;
+        this.a = a;
+        this.k_1 = k_1;
+        nD = statistics.nZnD;
+        double l_c = statistics.numberOfTokens * nD;
+        lengthPivot = l_c / nD;
+        verbosenessPivot = pivotization == NormalizationPivotization.ELITE ?
+                statistics.avgV : l_c / statistics.numberOfUniqueTerms;
+    }
+
+    @Override
+    protected TermScorer scorer(TermStatistics termStats) {
+        double IDF = WeightingModelLibrary.log(nD / termStats.docFreq());
+        return (tfd, norm) -> {
+            double l_d = getDocumentLength(norm);
+            double nT_d = getNumberOfUniqueTerms(norm);
+            double KD = k_1 * combination.getK(l_d / lengthPivot, (l_d / nT_d) / verbosenessPivot, b, a);
+            return quantification.getTFD(tfd, KD) * IDF;
+        };
+    }
+}